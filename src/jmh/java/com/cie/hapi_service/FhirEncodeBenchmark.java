@@ -0,0 +1,82 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a search result Bundle into the response body.
+ *
+ * <p>The {@code perRequest*String} benchmarks are what the controllers used to
+ * do: a new parser per request and one String of the whole payload. The
+ * {@code shared*Stream} benchmarks are the current path through
+ * {@link FhirJsonEncoder}, which writes straight to the response stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FhirEncodeBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int entries;
+
+    @Param({"Observation", "DiagnosticReport", "DocumentReference"})
+    public String resourceType;
+
+    private FhirContext fhirContext;
+
+    private FhirJsonEncoder encoder;
+
+    private Bundle bundle;
+
+    @Setup
+    public void setUp() {
+        fhirContext = FhirContext.forR4();
+        // A composite registry without children records nothing, like running without a backend
+        encoder = new FhirJsonEncoder(fhirContext, new CompositeMeterRegistry());
+        bundle = BundleFixtures.searchset(resourceType, entries);
+    }
+
+    @Benchmark
+    public String perRequestPrettyString() {
+        return fhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToString(bundle);
+    }
+
+    @Benchmark
+    public String perRequestCompactString() {
+        return fhirContext.newJsonParser().encodeResourceToString(bundle);
+    }
+
+    @Benchmark
+    public String sharedCompactString() {
+        return encoder.parser(false).encodeResourceToString(bundle);
+    }
+
+    @Benchmark
+    public void sharedPrettyStream() throws IOException {
+        encoder.encode(bundle, true, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void sharedCompactStream() throws IOException {
+        encoder.encode(bundle, false, OutputStream.nullOutputStream());
+    }
+}
@@ -0,0 +1,70 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of parsing an upstream search result, as the FHIR client does for every
+ * search, with a per-request parser and with the shared per-thread parser.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FhirParseBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int entries;
+
+    @Param({"Observation", "DiagnosticReport", "DocumentReference"})
+    public String resourceType;
+
+    private FhirContext fhirContext;
+
+    private FhirJsonEncoder encoder;
+
+    private String json;
+
+    private byte[] jsonBytes;
+
+    @Setup
+    public void setUp() {
+        fhirContext = FhirContext.forR4();
+        encoder = new FhirJsonEncoder(fhirContext, new CompositeMeterRegistry());
+        json = fhirContext.newJsonParser().encodeResourceToString(BundleFixtures.searchset(resourceType, entries));
+        jsonBytes = json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Bundle perRequestParserFromString() {
+        return fhirContext.newJsonParser().parseResource(Bundle.class, json);
+    }
+
+    @Benchmark
+    public Bundle sharedParserFromString() {
+        return encoder.parser(false).parseResource(Bundle.class, json);
+    }
+
+    @Benchmark
+    public Bundle sharedParserFromStream() {
+        return encoder.parse(Bundle.class, new ByteArrayInputStream(jsonBytes));
+    }
+}
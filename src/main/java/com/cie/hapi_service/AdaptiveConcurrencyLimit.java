@@ -0,0 +1,147 @@
+package com.cie.hapi_service;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrency limit that adapts to upstream latency, in the style of TCP Vegas
+ * with AIMD updates.
+ *
+ * <p>The no-queueing baseline is a low percentile of the last
+ * {@link #WINDOW} latencies, so that one unusually fast call does not set it
+ * and a permanently slower upstream moves it up. While the smoothed latency
+ * stays within {@code tolerance} times that baseline and the limit is being
+ * used, it grows by one. When latency rises beyond it, or a call fails, it
+ * shrinks by {@code backoffRatio}. After a latency-driven decrease, further
+ * ones wait until as many calls as the new limit have completed, since calls
+ * already in flight were queued under the old limit. Latency alone does not
+ * lower the limit before {@link #MIN_SAMPLES} calls have been seen.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    /** Number of recent latencies the baseline is taken from. */
+    static final int WINDOW = 100;
+
+    /** Latencies needed before latency alone can lower the limit. */
+    static final int MIN_SAMPLES = 20;
+
+    /** Percentile of the window used as the baseline. */
+    private static final double BASELINE_PERCENTILE = 0.1;
+
+    /** Weight of the newest sample in the smoothed latency. */
+    private static final double SMOOTHING = 0.2;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double backoffRatio;
+
+    private final double tolerance;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile int limit;
+
+    private final long[] window = new long[WINDOW];
+
+    private int next;
+
+    private int samples;
+
+    private long baselineNanos;
+
+    private double smoothedNanos;
+
+    private int cooldown;
+
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, double backoffRatio, double tolerance) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= min <= max");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.tolerance = tolerance;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Takes a slot if fewer than {@link #getLimit()} calls are in flight. Every
+     * successful acquire must be followed by {@link #release}.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a slot without a latency sample, for calls that were abandoned
+     * by the client and say nothing about the server.
+     */
+    public void cancel() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Frees a slot and feeds the call's latency into the limit. {@code dropped}
+     * marks a call that failed in a way that suggests the upstream is overloaded.
+     */
+    public void release(long latencyNanos, boolean dropped) {
+        int inFlightAtCompletion = inFlight.getAndDecrement();
+        synchronized (this) {
+            if (dropped) {
+                decrease();
+                return;
+            }
+
+            window[next] = latencyNanos;
+            next = (next + 1) % WINDOW;
+            samples = Math.min(WINDOW, samples + 1);
+            long[] recent = Arrays.copyOf(window, samples);
+            Arrays.sort(recent);
+            baselineNanos = recent[(int) (recent.length * BASELINE_PERCENTILE)];
+            smoothedNanos = smoothedNanos == 0 ? latencyNanos : smoothedNanos + SMOOTHING * (latencyNanos - smoothedNanos);
+
+            if (cooldown > 0) {
+                cooldown--;
+            } else if (smoothedNanos > baselineNanos * tolerance) {
+                // With too few samples the percentile is close to the minimum
+                if (samples >= MIN_SAMPLES) {
+                    decrease();
+                    cooldown = limit;
+                }
+            } else if (inFlightAtCompletion * 2 >= limit) {
+                // Only grow when the current limit is actually being used
+                limit = Math.min(maxLimit, limit + 1);
+            }
+        }
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    synchronized long getBaselineNanos() {
+        return baselineNanos;
+    }
+
+    synchronized long getSmoothedNanos() {
+        return (long) smoothedNanos;
+    }
+
+    private void decrease() {
+        limit = Math.max(minLimit, (int) (limit * backoffRatio));
+    }
+}
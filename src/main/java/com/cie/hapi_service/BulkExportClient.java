@@ -0,0 +1,175 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a FHIR Bulk Data system-level {@code $export} and downloads its NDJSON
+ * files: kick-off with {@code Prefer: respond-async}, poll the status URL
+ * until the manifest is ready, then fetch each output file.
+ */
+@Component
+public class BulkExportClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkExportClient.class);
+
+    @Autowired
+    private IGenericClient fhirClient;
+
+    @Autowired
+    private CloseableHttpClient fhirHttpClient;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${fhir.store.export.poll-interval:5s}")
+    private Duration pollInterval;
+
+    @Value("${fhir.store.export.timeout:6h}")
+    private Duration timeout;
+
+    /**
+     * The export manifest's transaction time and the downloaded files per resource type.
+     */
+    public record Export(Instant transactionTime, Map<String, List<Path>> files) {
+    }
+
+    /**
+     * Exports the given resource types into {@code directory}.
+     *
+     * @throws BaseServerResponseException if the server rejects or fails the export
+     */
+    public Export export(List<String> types, Path directory) throws IOException, InterruptedException {
+        String serverBase = fhirClient.getServerBase().endsWith("/") ? fhirClient.getServerBase() : fhirClient.getServerBase() + "/";
+        HttpGet kickOff = new HttpGet(serverBase + "$export?_type=" + URLEncoder.encode(String.join(",", types), StandardCharsets.UTF_8));
+        kickOff.setHeader(HttpHeaders.ACCEPT, "application/fhir+json");
+        kickOff.setHeader("Prefer", "respond-async");
+
+        String statusUrl;
+        try (CloseableHttpResponse response = execute(kickOff)) {
+            int status = response.getStatusLine().getStatusCode();
+            Header location = response.getFirstHeader("Content-Location");
+            if (status != 202 || location == null) {
+                throw error(response);
+            }
+            statusUrl = location.getValue();
+            EntityUtils.consume(response.getEntity());
+        }
+        logger.info("Started $export of {}, polling {}", types, statusUrl);
+
+        JsonNode manifest = awaitManifest(statusUrl);
+        Instant transactionTime = Instant.parse(manifest.path("transactionTime").asText());
+        for (JsonNode error : manifest.path("error")) {
+            logger.warn("$export reported errors for {} in {}", error.path("type").asText(), error.path("url").asText());
+        }
+
+        Map<String, List<Path>> files = new LinkedHashMap<>();
+        Files.createDirectories(directory);
+        for (JsonNode output : manifest.path("output")) {
+            String type = output.path("type").asText();
+            List<Path> typeFiles = files.computeIfAbsent(type, key -> new ArrayList<>());
+            Path file = directory.resolve(type + "-" + typeFiles.size() + ".ndjson");
+            download(output.path("url").asText(), file, manifest.path("requiresAccessToken").asBoolean(false));
+            typeFiles.add(file);
+        }
+
+        // Let the server release the export files; failure here only leaves them until they expire
+        try (CloseableHttpResponse response = execute(new HttpDelete(statusUrl))) {
+            EntityUtils.consume(response.getEntity());
+        } catch (RuntimeException e) {
+            logger.debug("Failed to delete $export job {}: {}", statusUrl, e.toString());
+        }
+        return new Export(transactionTime, files);
+    }
+
+    private JsonNode awaitManifest(String statusUrl) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (true) {
+            HttpGet poll = new HttpGet(statusUrl);
+            poll.setHeader(HttpHeaders.ACCEPT, "application/json");
+            Duration wait = pollInterval;
+            try (CloseableHttpResponse response = execute(poll)) {
+                int status = response.getStatusLine().getStatusCode();
+                if (status == 200) {
+                    return objectMapper.readTree(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+                }
+                if (status != 202) {
+                    throw error(response);
+                }
+                Header progress = response.getFirstHeader("X-Progress");
+                logger.debug("$export in progress: {}", progress != null ? progress.getValue() : "no progress reported");
+                Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+                if (retryAfter != null && retryAfter.getValue().matches("\\d+")) {
+                    wait = Duration.ofSeconds(Long.parseLong(retryAfter.getValue()));
+                }
+                EntityUtils.consume(response.getEntity());
+            }
+            if (System.nanoTime() + wait.toNanos() > deadline) {
+                throw new IOException("$export did not complete within " + timeout);
+            }
+            Thread.sleep(wait.toMillis());
+        }
+    }
+
+    private void download(String url, Path file, boolean requiresAccessToken) throws IOException {
+        if (requiresAccessToken) {
+            logger.warn("$export output {} requires an access token, which this client does not send", url);
+        }
+        HttpGet get = new HttpGet(url);
+        get.setHeader(HttpHeaders.ACCEPT, "application/fhir+ndjson");
+        try (CloseableHttpResponse response = execute(get)) {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw error(response);
+            }
+            try (InputStream body = response.getEntity().getContent()) {
+                Files.copy(body, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        logger.info("Downloaded {} ({} bytes)", file.getFileName(), Files.size(file));
+    }
+
+    private CloseableHttpResponse execute(HttpUriRequest request) {
+        try {
+            return fhirHttpClient.execute(request);
+        } catch (IOException e) {
+            throw new FhirClientConnectionException(e);
+        }
+    }
+
+    private static BaseServerResponseException error(CloseableHttpResponse response) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : "";
+        return BaseServerResponseException.newInstance(status, "$export failed with HTTP " + status + " "
+                + response.getStatusLine().getReasonPhrase() + ": " + body);
+    }
+}
@@ -0,0 +1,42 @@
+package com.cie.hapi_service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Guards read-through caches against a load that started before an
+ * invalidation putting its now stale result back afterwards.
+ *
+ * <p>A loader takes a {@link #stamp} before going upstream and only stores its
+ * result if the key was not invalidated since. Keys share a fixed number of
+ * stripes, so an invalidation can occasionally keep an unrelated result out
+ * of the cache, but never lets a stale one in.
+ */
+final class CacheInvalidations {
+
+    private static final int STRIPES = 64;
+
+    private final AtomicLongArray counters = new AtomicLongArray(STRIPES);
+
+    long stamp(Object key) {
+        return counters.get(stripe(key));
+    }
+
+    void invalidated(Object key) {
+        counters.incrementAndGet(stripe(key));
+    }
+
+    void invalidatedAll() {
+        for (int i = 0; i < STRIPES; i++) {
+            counters.incrementAndGet(i);
+        }
+    }
+
+    boolean unchangedSince(Object key, long stamp) {
+        return counters.get(stripe(key)) == stamp;
+    }
+
+    private static int stripe(Object key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+}
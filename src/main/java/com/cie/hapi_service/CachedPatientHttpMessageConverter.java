@@ -0,0 +1,64 @@
+package com.cie.hapi_service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes {@link PatientCache.CachedPatient} resources. Honours
+ * {@code _pretty=true} like {@link FhirResourceHttpMessageConverter}.
+ */
+public class CachedPatientHttpMessageConverter extends AbstractHttpMessageConverter<PatientCache.CachedPatient> {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public CachedPatientHttpMessageConverter() {
+        super(StandardCharsets.UTF_8,
+                new MediaType("application", "fhir+json", StandardCharsets.UTF_8),
+                new MediaType("application", "json", StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return PatientCache.CachedPatient.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected PatientCache.CachedPatient readInternal(Class<? extends PatientCache.CachedPatient> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Cached patients cannot be read", inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(PatientCache.CachedPatient patient, HttpOutputMessage outputMessage) throws IOException {
+        if (!FhirResourceHttpMessageConverter.isPrettyRequested()) {
+            outputMessage.getBody().write(patient.json());
+            return;
+        }
+        try (JsonParser parser = JSON_FACTORY.createParser(patient.json());
+             JsonGenerator generator = JSON_FACTORY.createGenerator(outputMessage.getBody())) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.useDefaultPrettyPrinter();
+            while (parser.nextToken() != null) {
+                generator.copyCurrentEventExact(parser);
+            }
+        }
+    }
+
+    @Override
+    protected Long getContentLength(PatientCache.CachedPatient patient, MediaType contentType) {
+        return FhirResourceHttpMessageConverter.isPrettyRequested() ? null : (long) patient.json().length;
+    }
+}
@@ -0,0 +1,64 @@
+package com.cie.hapi_service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes {@link SubjectSearchCache.CachedSearch} Bundles. Honours
+ * {@code _pretty=true} like {@link FhirResourceHttpMessageConverter}.
+ */
+public class CachedSearchHttpMessageConverter extends AbstractHttpMessageConverter<SubjectSearchCache.CachedSearch> {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public CachedSearchHttpMessageConverter() {
+        super(StandardCharsets.UTF_8,
+                new MediaType("application", "fhir+json", StandardCharsets.UTF_8),
+                new MediaType("application", "json", StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return SubjectSearchCache.CachedSearch.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected SubjectSearchCache.CachedSearch readInternal(Class<? extends SubjectSearchCache.CachedSearch> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Cached searches cannot be read", inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(SubjectSearchCache.CachedSearch search, HttpOutputMessage outputMessage) throws IOException {
+        if (!FhirResourceHttpMessageConverter.isPrettyRequested()) {
+            outputMessage.getBody().write(search.json());
+            return;
+        }
+        try (JsonParser parser = JSON_FACTORY.createParser(search.json());
+             JsonGenerator generator = JSON_FACTORY.createGenerator(outputMessage.getBody())) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.useDefaultPrettyPrinter();
+            while (parser.nextToken() != null) {
+                generator.copyCurrentEventExact(parser);
+            }
+        }
+    }
+
+    @Override
+    protected Long getContentLength(SubjectSearchCache.CachedSearch search, MediaType contentType) {
+        return FhirResourceHttpMessageConverter.isPrettyRequested() ? null : (long) search.json().length;
+    }
+}
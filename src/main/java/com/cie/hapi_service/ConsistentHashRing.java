@@ -0,0 +1,73 @@
+package com.cie.hapi_service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps keys to nodes by consistent hashing.
+ *
+ * <p>Each node is placed on the ring at {@code virtualNodes} points derived from
+ * its name, and a key belongs to the node at the first point at or after the
+ * key's hash. Adding or removing a node therefore only moves the keys on its
+ * own arcs, and many points per node keep the arcs evenly sized. Hashes are
+ * stable across JVMs, so every instance of the service routes alike.
+ */
+final class ConsistentHashRing<T> {
+
+    private final long[] points;
+
+    private final List<T> owners;
+
+    /**
+     * @param nodes nodes by a stable name, e.g. their base URL
+     */
+    ConsistentHashRing(Map<String, T> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one node");
+        }
+        TreeMap<Long, T> ring = new TreeMap<>();
+        for (Map.Entry<String, T> node : nodes.entrySet()) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // On the rare collision the first node keeps the point
+                ring.putIfAbsent(hash(node.getKey() + "#" + i), node.getValue());
+            }
+        }
+        this.points = new long[ring.size()];
+        this.owners = new ArrayList<>(ring.size());
+        int index = 0;
+        for (Map.Entry<Long, T> point : ring.entrySet()) {
+            points[index++] = point.getKey();
+            owners.add(point.getValue());
+        }
+    }
+
+    T nodeFor(String key) {
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners.get(index == points.length ? 0 : index);
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, with MurmurHash3's finalizer to
+     * spread similar keys such as consecutive IDs across the ring.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
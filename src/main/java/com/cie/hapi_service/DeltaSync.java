@@ -0,0 +1,179 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * Incremental sync of one patient's resources of one type.
+ *
+ * <p>A client calls a {@code /changes} endpoint without a watermark for
+ * everything, then with the cursor from the {@value #CURSOR_HEADER} header of
+ * the previous response for what was created or changed since. Each call is
+ * one {@code _lastUpdated=gt} search on the FHIR server, streamed as NDJSON
+ * with every page, oldest change first.
+ *
+ * <p>The next watermark is the server's search time, from the first page's
+ * {@code meta.lastUpdated}, minus {@code fhir.sync.overlap}: a change committed
+ * while the search ran may carry an earlier timestamp than the search, so
+ * clients get some resources twice and should apply them as upserts. Resources
+ * marked entered-in-error are sent as tombstones in the Bulk Data format, a
+ * transaction Bundle with one DELETE entry. Resources deleted outright do not
+ * match a search and are not reported.
+ */
+@Component
+public class DeltaSync {
+
+    public static final String CURSOR_HEADER = "X-Sync-Cursor";
+
+    private static final Logger logger = LoggerFactory.getLogger(DeltaSync.class);
+
+    @Autowired
+    private FhirUpstreamService fhirUpstreamService;
+
+    @Autowired
+    private NdjsonBundleStreamer ndjsonBundleStreamer;
+
+    @Value("${fhir.sync.page-size:200}")
+    private int pageSize;
+
+    @Value("${fhir.sync.overlap:5s}")
+    private Duration overlap;
+
+    /**
+     * Resolves the watermark of a sync request from either a {@code since}
+     * date-time or the cursor of a previous sync.
+     *
+     * @return the watermark, or {@code null} to sync everything
+     * @throws IllegalArgumentException if both are given, {@code since} is not
+     *                                  a date-time or the cursor is malformed or
+     *                                  was issued for another type or patient
+     */
+    public Instant watermark(String resourceType, String patientId, String since, String cursor) {
+        if (since != null && cursor != null) {
+            throw new IllegalArgumentException("Pass either since or cursor, not both");
+        }
+        if (cursor != null) {
+            Cursor decoded = Cursor.decode(cursor);
+            if (!decoded.resourceType().equals(resourceType)
+                    || !decoded.patientId().equals(FhirUpstreamService.normalizePatientId(patientId))) {
+                throw new IllegalArgumentException("Cursor was issued for another resource type or patient");
+            }
+            return decoded.since();
+        }
+        if (since != null) {
+            try {
+                return new DateTimeType(since).getValue().toInstant();
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("since must be a FHIR date or dateTime: " + since, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Searches the changes after {@code watermark} and returns them as an NDJSON
+     * stream, with the next cursor in the {@value #CURSOR_HEADER} header. The
+     * first page is fetched here so upstream errors still map to a status code.
+     */
+    public ResponseEntity<StreamingResponseBody> changes(Class<? extends Resource> resourceType, String patientId, Instant watermark) {
+        Instant requestedAt = Instant.now();
+        Bundle firstPage = fhirUpstreamService.searchBySubjectChangedSince(resourceType, patientId, watermark, pageSize);
+
+        // Prefer the server's clock; ours may be ahead of it
+        Instant searchedAt = firstPage.getMeta().hasLastUpdated()
+                ? firstPage.getMeta().getLastUpdated().toInstant()
+                : requestedAt;
+        Instant next = searchedAt.minus(overlap);
+        if (watermark != null && next.isBefore(watermark)) {
+            next = watermark;
+        }
+        String typeName = resourceType.getSimpleName();
+        logger.info("Syncing {} changes for patient {} after {}, next watermark {}", typeName, patientId, watermark, next);
+
+        return ResponseEntity.ok()
+                .contentType(NdjsonBundleStreamer.NDJSON)
+                .header(CURSOR_HEADER, new Cursor(typeName,
+                        FhirUpstreamService.normalizePatientId(patientId), next).encode())
+                .body(ndjsonBundleStreamer.streamAll(firstPage, DeltaSync::tombstoneIfDeleted));
+    }
+
+    /**
+     * Replaces a resource marked entered-in-error with a tombstone.
+     */
+    static Resource tombstoneIfDeleted(Resource resource) {
+        if (!isEnteredInError(resource)) {
+            return resource;
+        }
+        Bundle tombstone = new Bundle();
+        tombstone.setType(Bundle.BundleType.TRANSACTION);
+        if (resource.getMeta().hasLastUpdated()) {
+            tombstone.getMeta().setLastUpdated(resource.getMeta().getLastUpdated());
+        }
+        tombstone.addEntry().getRequest()
+                .setMethod(Bundle.HTTPVerb.DELETE)
+                .setUrl(resource.fhirType() + "/" + resource.getIdElement().getIdPart());
+        return tombstone;
+    }
+
+    private static boolean isEnteredInError(Resource resource) {
+        if (resource instanceof Observation observation) {
+            return observation.getStatus() == Observation.ObservationStatus.ENTEREDINERROR;
+        }
+        if (resource instanceof DiagnosticReport report) {
+            return report.getStatus() == DiagnosticReport.DiagnosticReportStatus.ENTEREDINERROR;
+        }
+        if (resource instanceof DocumentReference document) {
+            return document.getStatus() == Enumerations.DocumentReferenceStatus.ENTEREDINERROR;
+        }
+        return false;
+    }
+
+    /**
+     * Where a sync left off. Encoded as base64url so clients treat it as opaque
+     * and the format can change with the version prefix.
+     */
+    record Cursor(String resourceType, String patientId, Instant since) {
+
+        private static final String VERSION = "1";
+
+        String encode() {
+            String plain = String.join("|", VERSION, resourceType, patientId, Long.toString(since.toEpochMilli()));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static Cursor decode(String cursor) {
+            String[] parts;
+            try {
+                parts = new String(Base64.getUrlDecoder().decode(cursor.trim()), StandardCharsets.UTF_8).split("\\|", -1);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Malformed sync cursor", e);
+            }
+            if (parts.length != 4 || !parts[0].equals(VERSION)) {
+                throw new IllegalArgumentException("Malformed sync cursor");
+            }
+            try {
+                return new Cursor(parts[1], parts[2], Instant.ofEpochMilli(Long.parseLong(parts[3])));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed sync cursor", e);
+            }
+        }
+    }
+}
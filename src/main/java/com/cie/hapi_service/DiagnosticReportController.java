@@ -1,7 +1,5 @@
 package com.cie.hapi_service;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import org.hl7.fhir.r4.model.Bundle;
@@ -9,18 +7,24 @@ import org.hl7.fhir.r4.model.DiagnosticReport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.tags.Tag;
 
+import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -32,64 +36,269 @@ public class DiagnosticReportController {
     private static final Logger logger = LoggerFactory.getLogger(DiagnosticReportController.class);
 
     @Autowired
-    private IGenericClient fhirClient;
+    private FhirUpstreamService fhirUpstreamService;
 
     @Autowired
-    private FhirContext fhirContext;
+    private FhirRequestExecutor fhirRequestExecutor;
+
+    @Autowired
+    private NdjsonBundleStreamer ndjsonBundleStreamer;
+
+    @Autowired
+    private DeltaSync deltaSync;
+
+    @Autowired
+    private ResourceStore resourceStore;
+
+    @Autowired
+    private SubjectSearchCache subjectSearchCache;
+
+    @Value("${fhir.passthrough.enabled:true}")
+    private boolean passthroughEnabled;
 
     @GetMapping("/patient/{patientId}")
     @Operation(summary = "Get diagnostic reports by patient ID", description = "Retrieves all DiagnosticReport resources associated with a specific patient")
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "Diagnostic reports found and returned successfully"),
+            @ApiResponse(responseCode = "400", description = "Invalid _elements, _summary, _count or _sort"),
             @ApiResponse(responseCode = "404", description = "Diagnostic reports not found for the patient"),
-            @ApiResponse(responseCode = "503", description = "FHIR server connection failed"),
+            @ApiResponse(responseCode = "503", description = "FHIR server connection failed or overloaded; see Retry-After"),
+            @ApiResponse(responseCode = "504", description = "No response within the request deadline"),
             @ApiResponse(responseCode = "500", description = "Internal server error")
     })
-    public ResponseEntity<?> getDiagnosticReportsByPatient(
+    public DeferredResult<ResponseEntity<?>> getDiagnosticReportsByPatient(
             @Parameter(description = "Patient ID", required = true, example = "123")
-            @PathVariable String patientId) {
-        try {
-            logger.info("Fetching diagnostic reports for patient ID: {}", patientId);
+            @PathVariable String patientId,
+            @Parameter(description = "Comma-separated elements to return for each resource", example = "code,status,conclusion")
+            @RequestParam(name = "_elements", required = false) String elements,
+            @Parameter(description = "Summary mode: true, text, data, count or false", example = "true")
+            @RequestParam(name = "_summary", required = false) String summary,
+            @Parameter(description = "Page size requested from the FHIR server", example = "50")
+            @RequestParam(name = "_count", required = false) Integer count,
+            @Parameter(description = "Comma-separated sort parameters, prefixed with - for descending", example = "-date")
+            @RequestParam(name = "_sort", required = false) String sort) {
+        return fhirRequestExecutor.submit(() -> {
+            SearchOptions options;
+            try {
+                options = SearchOptions.of(elements, summary, count, sort);
+            } catch (IllegalArgumentException e) {
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Invalid request");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error);
+            }
+            try {
+                logger.info("Fetching diagnostic reports for patient ID: {}", patientId);
             
-            // Search for diagnostic reports by patient reference
-            Bundle bundle = fhirClient.search()
-                    .forResource(DiagnosticReport.class)
-                    .where(DiagnosticReport.SUBJECT.hasId(patientId))
-                    .returnBundle(Bundle.class)
-                    .execute();
+                // A current export snapshot answers without an upstream call
+                StoredResources stored = options.isEmpty() ? resourceStore.find("DiagnosticReport", patientId) : null;
+                if (stored != null) {
+                    return ResponseEntity.ok()
+                            .contentType(FhirResourceHttpMessageConverter.FHIR_JSON)
+                            .body(stored);
+                }
+
+                if (options.isEmpty() && subjectSearchCache.isEnabled()) {
+                    // Repeated plain searches are answered from the cache; see SubjectSearchCache
+                    return ResponseEntity.ok()
+                            .contentType(FhirResourceHttpMessageConverter.FHIR_JSON)
+                            .body(subjectSearchCache.get(DiagnosticReport.class, patientId));
+                }
 
-            logger.info("Found {} diagnostic reports for patient: {}", bundle.getTotal(), patientId);
+                if (passthroughEnabled && !options.isProjection()) {
+                    // Nothing here changes the Bundle, so skip parsing and stream the upstream bytes.
+                    // Projections are parsed so they can be enforced if the server ignores them
+                    RawFhirResponse response = fhirUpstreamService.searchBySubjectRaw(DiagnosticReport.class, patientId, options);
+                    return ResponseEntity.ok()
+                            .contentType(FhirResourceHttpMessageConverter.FHIR_JSON)
+                            .body(response);
+                }
 
-            // Convert bundle to JSON string
-            String jsonResponse = fhirContext.newJsonParser()
-                    .setPrettyPrint(true)
-                    .encodeResourceToString(bundle);
+                // Search for diagnostic reports by patient reference
+                Bundle bundle = fhirUpstreamService.searchBySubject(DiagnosticReport.class, patientId, options);
 
-            return ResponseEntity.ok(jsonResponse);
+                logger.info("Found {} diagnostic reports for patient: {}", bundle.getTotal(), patientId);
+
+                return ResponseEntity.ok(bundle);
             
-        } catch (ResourceNotFoundException e) {
-            logger.warn("Diagnostic reports not found for patient ID: {}", patientId);
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "Diagnostic reports not found");
-            error.put("patientId", patientId);
-            error.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(error);
+            } catch (ResourceNotFoundException e) {
+                logger.warn("Diagnostic reports not found for patient ID: {}", patientId);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Diagnostic reports not found");
+                error.put("patientId", patientId);
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body(error);
             
-        } catch (FhirClientConnectionException e) {
-            logger.error("Failed to connect to FHIR server: {}", e.getMessage());
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "FHIR server connection failed");
-            error.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(error);
+            } catch (UpstreamRejectedException e) {
+                logger.warn("Upstream call rejected: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server overloaded");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, e.getRetryAfterSeconds())
+                        .body(error);
+
+            } catch (FhirClientConnectionException e) {
+                logger.error("Failed to connect to FHIR server: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server connection failed");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(error);
             
-        } catch (Exception e) {
-            logger.error("Error fetching diagnostic reports for patient ID {}: {}", patientId, e.getMessage(), e);
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "Internal server error");
-            error.put("patientId", patientId);
-            error.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
-        }
+            } catch (Exception e) {
+                logger.error("Error fetching diagnostic reports for patient ID {}: {}", patientId, e.getMessage(), e);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Internal server error");
+                error.put("patientId", patientId);
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+            }
+        });
     }
-}
 
+    @GetMapping("/patient/{patientId}/stream")
+    @Operation(summary = "Stream diagnostic reports by patient ID", description = "Streams every DiagnosticReport resource of a specific patient as NDJSON, following all upstream result pages")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Diagnostic reports streamed as application/fhir+ndjson"),
+            @ApiResponse(responseCode = "400", description = "Invalid _elements, _summary, _count or _sort"),
+            @ApiResponse(responseCode = "404", description = "Diagnostic reports not found for the patient"),
+            @ApiResponse(responseCode = "503", description = "FHIR server connection failed or overloaded; see Retry-After"),
+            @ApiResponse(responseCode = "504", description = "No response within the request deadline"),
+            @ApiResponse(responseCode = "500", description = "Internal server error")
+    })
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> streamDiagnosticReportsByPatient(
+            @Parameter(description = "Patient ID", required = true, example = "123")
+            @PathVariable String patientId,
+            @Parameter(description = "Comma-separated elements to return for each resource", example = "code,status,conclusion")
+            @RequestParam(name = "_elements", required = false) String elements,
+            @Parameter(description = "Summary mode: true, text, data, count or false", example = "true")
+            @RequestParam(name = "_summary", required = false) String summary,
+            @Parameter(description = "Page size requested from the FHIR server", example = "50")
+            @RequestParam(name = "_count", required = false) Integer count,
+            @Parameter(description = "Comma-separated sort parameters, prefixed with - for descending", example = "-date")
+            @RequestParam(name = "_sort", required = false) String sort) {
+        return fhirRequestExecutor.submitStream(() -> {
+            SearchOptions options;
+            try {
+                options = SearchOptions.of(elements, summary, count, sort);
+            } catch (IllegalArgumentException e) {
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Invalid request");
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.BAD_REQUEST, error);
+            }
+            try {
+                logger.info("Streaming diagnostic reports for patient ID: {}", patientId);
+
+                StoredResources stored = options.isEmpty() ? resourceStore.find("DiagnosticReport", patientId) : null;
+                if (stored != null) {
+                    return ResponseEntity.ok()
+                            .contentType(NdjsonBundleStreamer.NDJSON)
+                            .body(stored::writeNdjson);
+                }
+
+                // Fetch the first page up front so upstream errors still map to a status code
+                Bundle firstPage = fhirUpstreamService.searchBySubject(DiagnosticReport.class, patientId, options);
+
+                return ResponseEntity.ok()
+                        .contentType(NdjsonBundleStreamer.NDJSON)
+                        .body(ndjsonBundleStreamer.stream(firstPage, options));
+
+            } catch (ResourceNotFoundException e) {
+                logger.warn("Diagnostic reports not found for patient ID: {}", patientId);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Diagnostic reports not found");
+                error.put("patientId", patientId);
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.NOT_FOUND, error);
+
+            } catch (UpstreamRejectedException e) {
+                logger.warn("Upstream call rejected: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server overloaded");
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.rejected(e, error);
+
+            } catch (FhirClientConnectionException e) {
+                logger.error("Failed to connect to FHIR server: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server connection failed");
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.SERVICE_UNAVAILABLE, error);
+
+            } catch (Exception e) {
+                logger.error("Error streaming diagnostic reports for patient ID {}: {}", patientId, e.getMessage(), e);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Internal server error");
+                error.put("patientId", patientId);
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.INTERNAL_SERVER_ERROR, error);
+            }
+        });
+    }
+
+    @GetMapping("/patient/{patientId}/changes")
+    @Operation(summary = "Stream diagnostic reports changed since a watermark", description = "Streams the patient's DiagnosticReport resources created or changed after `since`, or after the cursor returned by the previous call, as NDJSON. " +
+            "Entered-in-error resources are sent as tombstones. The cursor for the next call is in the X-Sync-Cursor header; use it only once the stream has been read to the end")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Changes streamed as application/fhir+ndjson, next cursor in X-Sync-Cursor"),
+            @ApiResponse(responseCode = "400", description = "Invalid since, or a cursor from another resource type or patient"),
+            @ApiResponse(responseCode = "404", description = "Diagnostic reports not found for the patient"),
+            @ApiResponse(responseCode = "503", description = "FHIR server connection failed or overloaded; see Retry-After"),
+            @ApiResponse(responseCode = "504", description = "No response within the request deadline"),
+            @ApiResponse(responseCode = "500", description = "Internal server error")
+    })
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> streamDiagnosticReportChangesByPatient(
+            @Parameter(description = "Patient ID", required = true, example = "123")
+            @PathVariable String patientId,
+            @Parameter(description = "Only changes after this FHIR date or dateTime", example = "2024-01-01T00:00:00Z")
+            @RequestParam(required = false) String since,
+            @Parameter(description = "Opaque cursor from the X-Sync-Cursor header of the previous call")
+            @RequestParam(required = false) String cursor) {
+        return fhirRequestExecutor.submitStream(() -> {
+            Instant watermark;
+            try {
+                watermark = deltaSync.watermark("DiagnosticReport", patientId, since, cursor);
+            } catch (IllegalArgumentException e) {
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Invalid request");
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.BAD_REQUEST, error);
+            }
+            try {
+                logger.info("Streaming diagnostic reports changed after {} for patient ID: {}", watermark, patientId);
+                return deltaSync.changes(DiagnosticReport.class, patientId, watermark);
+
+            } catch (ResourceNotFoundException e) {
+                logger.warn("Diagnostic reports not found for patient ID: {}", patientId);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Diagnostic reports not found");
+                error.put("patientId", patientId);
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.NOT_FOUND, error);
+
+            } catch (UpstreamRejectedException e) {
+                logger.warn("Upstream call rejected: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server overloaded");
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.rejected(e, error);
+
+            } catch (FhirClientConnectionException e) {
+                logger.error("Failed to connect to FHIR server: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server connection failed");
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.SERVICE_UNAVAILABLE, error);
+
+            } catch (Exception e) {
+                logger.error("Error streaming diagnostic reports changes for patient ID {}: {}", patientId, e.getMessage(), e);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Internal server error");
+                error.put("patientId", patientId);
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.INTERNAL_SERVER_ERROR, error);
+            }
+        });
+    }
+}
@@ -1,38 +1,177 @@
 package com.cie.hapi_service;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.apache.GZipContentInterceptor;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.springframework.beans.factory.SmartInitializingSingleton;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
 @Configuration
 public class FhirClientConfig {
 
     @Value("${fhir.server.base-url}")
     private String fhirServerBaseUrl;
 
+    @Value("${fhir.server.replicas:}")
+    private String replicas;
+
+    @Value("${fhir.server.shards:}")
+    private String shards;
+
+    @Value("${fhir.upstream.routing.decay:10s}")
+    private Duration routingDecay;
+
+    @Value("${fhir.upstream.routing.eject-after-failures:3}")
+    private int ejectAfterFailures;
+
+    @Value("${fhir.upstream.routing.ejection-time:30s}")
+    private Duration ejectionTime;
+
+    @Value("${fhir.upstream.routing.virtual-nodes:128}")
+    private int virtualNodes;
+
+    @Value("${fhir.client.timeout.read:10s}")
+    private Duration readTimeout;
+
+    @Value("${fhir.client.timeout.search:30s}")
+    private Duration searchTimeout;
+
+    @Value("${fhir.client.timeout.transaction:60s}")
+    private Duration transactionTimeout;
+
+    @Value("${fhir.client.compression.request:false}")
+    private boolean requestCompression;
+
+    @Value("${fhir.client.logging.enabled:false}")
+    private boolean loggingEnabled;
+
+    @Value("${fhir.client.logging.sample-rate:0.01}")
+    private double loggingSampleRate;
+
+    @Value("${fhir.client.logging.bodies:false}")
+    private boolean loggingBodies;
+
+    @Value("${fhir.context.warm-up:true}")
+    private boolean warmUp;
+
+    private Thread warmupThread;
+
     @Bean
     public FhirContext fhirContext() {
-        return FhirContext.forR4();
+        FhirContext fhirContext = FhirContext.forR4();
+        if (warmUp) {
+            // Pay for model scanning and parser setup at startup rather than on the first request per type,
+            // while the rest of the application context is created. FhirContext is thread safe
+            warmupThread = new Thread(() -> FhirContextWarmup.warmUp(fhirContext), "fhir-context-warmup");
+            warmupThread.setDaemon(true);
+            warmupThread.start();
+        }
+        return fhirContext;
+    }
+
+    /**
+     * Waits for the warm-up once every singleton is created, before the context
+     * finishes refreshing. An AppCDS training run exits right after the refresh
+     * ({@code -Dspring.context.exit=onRefresh}) and would otherwise leave the
+     * classes the warm-up loads out of the archive.
+     */
+    @Bean
+    public SmartInitializingSingleton fhirContextWarmupJoin(FhirContext fhirContext) {
+        return () -> {
+            if (warmupThread == null) {
+                return;
+            }
+            try {
+                warmupThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
     }
 
+    /**
+     * Routes upstream calls across {@code fhir.server.base-url} and its
+     * {@code fhir.server.replicas} (comma-separated), and across
+     * {@code fhir.server.shards}: groups separated by {@code ;}, each a
+     * comma-separated list of a primary and its replicas.
+     */
     @Bean
-    public IGenericClient fhirClient(FhirContext fhirContext) {
-        IGenericClient client = fhirContext.newRestfulGenericClient(fhirServerBaseUrl);
-        
-        // Add logging interceptor for debugging
-        LoggingInterceptor loggingInterceptor = new LoggingInterceptor();
-        loggingInterceptor.setLogRequestSummary(true);
-        loggingInterceptor.setLogRequestHeaders(true);
-        loggingInterceptor.setLogRequestBody(true);
-        loggingInterceptor.setLogResponseSummary(true);
-        loggingInterceptor.setLogResponseHeaders(true);
-        loggingInterceptor.setLogResponseBody(true);
-        client.registerInterceptor(loggingInterceptor);
-        
+    public UpstreamRouter upstreamRouter(FhirContext fhirContext, CloseableHttpClient fhirHttpClient,
+                                         RequestConfig fhirRequestConfig, MeterRegistry meterRegistry) {
+        // Share the pooled transport instead of the factory's default client
+        fhirContext.getRestfulClientFactory().setHttpClient(fhirHttpClient);
+
+        // A server listed in several groups is one endpoint, with one latency and health record
+        Map<String, UpstreamEndpoint> endpoints = new LinkedHashMap<>();
+        Function<String, UpstreamEndpoint> endpoint = url -> endpoints.computeIfAbsent(normalize(url),
+                baseUrl -> new UpstreamEndpoint(baseUrl, newClient(baseUrl, fhirContext, fhirRequestConfig, meterRegistry),
+                        routingDecay.toNanos(), ejectAfterFailures, ejectionTime.toNanos(), System.nanoTime()));
+
+        List<UpstreamEndpoint> defaultMembers = new ArrayList<>();
+        defaultMembers.add(endpoint.apply(fhirServerBaseUrl));
+        urls(replicas, ",").forEach(url -> defaultMembers.add(endpoint.apply(url)));
+        UpstreamRouter.Group defaultGroup = new UpstreamRouter.Group("default", defaultMembers);
+
+        List<UpstreamRouter.Group> shardGroups = new ArrayList<>();
+        for (String shard : urls(shards, ";")) {
+            shardGroups.add(new UpstreamRouter.Group("shard-" + shardGroups.size(),
+                    urls(shard, ",").stream().map(endpoint).toList()));
+        }
+        return new UpstreamRouter(defaultGroup, shardGroups, virtualNodes, System::nanoTime);
+    }
+
+    /**
+     * Client for the primary of the default group, for calls that bypass the router.
+     */
+    @Bean
+    public IGenericClient fhirClient(UpstreamRouter upstreamRouter) {
+        return upstreamRouter.primary().client();
+    }
+
+    private IGenericClient newClient(String baseUrl, FhirContext fhirContext, RequestConfig fhirRequestConfig,
+                                     MeterRegistry meterRegistry) {
+        IGenericClient client = fhirContext.newRestfulGenericClient(baseUrl);
+
+        client.registerInterceptor(new OperationTimeoutInterceptor(baseUrl, fhirRequestConfig,
+                readTimeout, searchTimeout, transactionTimeout));
+        client.registerInterceptor(new RequestDeadlineInterceptor(fhirRequestConfig));
+        if (requestCompression) {
+            // Gzip request bodies (batches); only enable if the server accepts Content-Encoding: gzip
+            client.registerInterceptor(new GZipContentInterceptor());
+        }
+
+        client.registerInterceptor(new FhirMetricsInterceptor(meterRegistry, baseUrl));
+
+        // Full request/response logging is expensive on large Bundles, so it is opt-in and sampled
+        if (loggingEnabled) {
+            client.registerInterceptor(new SampledLoggingInterceptor(loggingSampleRate, loggingBodies));
+        }
+
         return client;
     }
-}
 
+    private static List<String> urls(String list, String separator) {
+        return Arrays.stream(list.split(separator))
+                .map(String::trim)
+                .filter(url -> !url.isEmpty())
+                .toList();
+    }
+
+    private static String normalize(String baseUrl) {
+        String trimmed = baseUrl.trim();
+        return trimmed.endsWith("/") ? trimmed : trimmed + "/";
+    }
+}
@@ -0,0 +1,121 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the parts of a {@link FhirContext} that HAPI otherwise creates on
+ * first use, so the first request for each resource type does not pay for them.
+ *
+ * <p>HAPI scans a resource's model classes the first time the type is used,
+ * and parsers build their element lookups on the first encode and parse. This
+ * scans every type the service reads, then encodes and parses a Bundle that
+ * contains each of them. It also loads the classes involved before the first
+ * request, which an AppCDS archive can then serve from shared memory.
+ */
+final class FhirContextWarmup {
+
+    private static final Logger logger = LoggerFactory.getLogger(FhirContextWarmup.class);
+
+    /** Resource types read from the FHIR server or returned to clients. */
+    static final List<Class<? extends IBaseResource>> RESOURCE_TYPES = List.of(
+            Patient.class, Observation.class, DiagnosticReport.class, DocumentReference.class, Bundle.class,
+            OperationOutcome.class, CapabilityStatement.class, Subscription.class);
+
+    private FhirContextWarmup() {
+    }
+
+    static void warmUp(FhirContext fhirContext) {
+        long start = System.nanoTime();
+        for (Class<? extends IBaseResource> type : RESOURCE_TYPES) {
+            fhirContext.getResourceDefinition(type);
+        }
+
+        try {
+            IParser parser = fhirContext.newJsonParser();
+            String json = parser.encodeResourceToString(sampleBundle());
+            parser.parseResource(Bundle.class, json);
+        } catch (RuntimeException e) {
+            // Only an optimization; requests do the same work if it fails
+            logger.warn("FHIR context warm-up failed: {}", e.toString());
+            return;
+        }
+
+        logger.info("Warmed up FHIR {} context for {} resource types in {} ms", fhirContext.getVersion().getVersion(),
+                RESOURCE_TYPES.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * A searchset with one typical instance of each resource type; the values
+     * only need to reach the common datatype encoders.
+     */
+    private static Bundle sampleBundle() {
+        Patient patient = new Patient();
+        patient.setId("warmup");
+        patient.getMeta().setVersionId("1");
+        patient.addIdentifier().setSystem("urn:warmup").setValue("1");
+        patient.addName().setFamily("Warmup").addGiven("Example");
+        patient.setGender(Enumerations.AdministrativeGender.UNKNOWN);
+
+        Reference subject = new Reference("Patient/warmup");
+        CodeableConcept code = new CodeableConcept();
+        code.addCoding().setSystem("http://loinc.org").setCode("8867-4").setDisplay("Heart rate");
+
+        Observation observation = new Observation();
+        observation.setId("warmup");
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.setCode(code);
+        observation.setSubject(subject);
+        observation.setEffective(new DateTimeType("2024-01-01T00:00:00Z"));
+        observation.setValue(new Quantity().setValue(72).setUnit("beats/minute"));
+
+        DiagnosticReport report = new DiagnosticReport();
+        report.setId("warmup");
+        report.setStatus(DiagnosticReport.DiagnosticReportStatus.FINAL);
+        report.setCode(code);
+        report.setSubject(subject);
+        report.addResult(new Reference("Observation/warmup"));
+
+        DocumentReference document = new DocumentReference();
+        document.setId("warmup");
+        document.setStatus(Enumerations.DocumentReferenceStatus.CURRENT);
+        document.setSubject(subject);
+        document.addContent().getAttachment().setContentType("text/plain").setUrl("urn:warmup");
+
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL);
+
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(5);
+        bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl("urn:warmup");
+        for (Resource resource : List.<Resource>of(patient, observation, report, document, outcome)) {
+            bundle.addEntry()
+                    .setFullUrl("urn:warmup:" + resource.fhirType())
+                    .setResource(resource);
+        }
+        return bundle;
+    }
+}
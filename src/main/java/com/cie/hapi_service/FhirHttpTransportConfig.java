@@ -0,0 +1,161 @@
+package com.cie.hapi_service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.pool.PoolStats;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pooled, keep-alive HTTP transport used by the FHIR client.
+ */
+@Configuration
+public class FhirHttpTransportConfig {
+
+    @Value("${fhir.client.pool.max-total:100}")
+    private int maxTotal;
+
+    @Value("${fhir.client.pool.max-per-route:50}")
+    private int maxPerRoute;
+
+    @Value("${fhir.client.pool.idle-eviction:30s}")
+    private Duration idleEviction;
+
+    @Value("${fhir.client.pool.validate-after-inactivity:2s}")
+    private Duration validateAfterInactivity;
+
+    @Value("${fhir.client.keep-alive:30s}")
+    private Duration keepAlive;
+
+    @Value("${fhir.client.timeout.connect:5s}")
+    private Duration connectTimeout;
+
+    @Value("${fhir.client.timeout.connection-request:2s}")
+    private Duration connectionRequestTimeout;
+
+    @Value("${fhir.client.timeout.socket:30s}")
+    private Duration socketTimeout;
+
+    @Value("${fhir.client.compression.response:true}")
+    private boolean responseCompression;
+
+    @Bean
+    public PoolingHttpClientConnectionManager fhirConnectionManager() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setValidateAfterInactivity((int) validateAfterInactivity.toMillis());
+        return connectionManager;
+    }
+
+    @Bean
+    public RequestConfig fhirRequestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout((int) connectTimeout.toMillis())
+                .setConnectionRequestTimeout((int) connectionRequestTimeout.toMillis())
+                .setSocketTimeout((int) socketTimeout.toMillis())
+                .build();
+    }
+
+    @Bean
+    public CloseableHttpClient fhirHttpClient(PoolingHttpClientConnectionManager fhirConnectionManager,
+                                              RequestConfig fhirRequestConfig) {
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(fhirConnectionManager)
+                .setDefaultRequestConfig(fhirRequestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy())
+                .evictExpiredConnections()
+                .evictIdleConnections(idleEviction.toMillis(), TimeUnit.MILLISECONDS);
+        if (!responseCompression) {
+            // Compression is on by default: Accept-Encoding gzip/deflate and transparent decoding
+            builder.disableContentCompression();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Connection pool gauges, under the names Micrometer's deprecated
+     * HttpClient 4 binder used so existing dashboards keep working.
+     */
+    @Bean
+    public MeterBinder fhirConnectionPoolMetrics(PoolingHttpClientConnectionManager fhirConnectionManager) {
+        return registry -> {
+            Tags tags = Tags.of("httpclient", "fhir-upstream");
+            Gauge.builder("httpcomponents.httpclient.pool.total.max", fhirConnectionManager, m -> m.getTotalStats().getMax())
+                    .description("The configured maximum number of allowed persistent connections for all routes")
+                    .tags(tags)
+                    .register(registry);
+            Gauge.builder("httpcomponents.httpclient.pool.total.connections", fhirConnectionManager, m -> m.getTotalStats().getAvailable())
+                    .description("The number of persistent and available connections for all routes")
+                    .tags(tags).tag("state", "available")
+                    .register(registry);
+            Gauge.builder("httpcomponents.httpclient.pool.total.connections", fhirConnectionManager, m -> m.getTotalStats().getLeased())
+                    .description("The number of persistent and leased connections for all routes")
+                    .tags(tags).tag("state", "leased")
+                    .register(registry);
+            Gauge.builder("httpcomponents.httpclient.pool.total.pending", fhirConnectionManager, m -> m.getTotalStats().getPending())
+                    .description("The number of connection requests being blocked awaiting a free connection for all routes")
+                    .tags(tags)
+                    .register(registry);
+            Gauge.builder("httpcomponents.httpclient.pool.route.max.default", fhirConnectionManager, PoolingHttpClientConnectionManager::getDefaultMaxPerRoute)
+                    .description("The configured default maximum number of allowed persistent connections per route")
+                    .tags(tags)
+                    .register(registry);
+        };
+    }
+
+    /**
+     * Current usage of the connection pool.
+     */
+    public static Map<String, Object> poolStats(PoolingHttpClientConnectionManager connectionManager) {
+        PoolStats stats = connectionManager.getTotalStats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("leased", stats.getLeased());
+        result.put("available", stats.getAvailable());
+        result.put("pending", stats.getPending());
+        result.put("max", stats.getMax());
+        result.put("maxPerRoute", connectionManager.getDefaultMaxPerRoute());
+        result.put("routes", connectionManager.getRoutes().size());
+        result.put("utilization", stats.getMax() == 0 ? 0.0 : (double) stats.getLeased() / stats.getMax());
+        return result;
+    }
+
+    /**
+     * Honours the server's Keep-Alive timeout but never keeps a connection longer
+     * than configured, so we drop it before a load balancer silently does.
+     */
+    private ConnectionKeepAliveStrategy keepAliveStrategy() {
+        long maxKeepAliveMs = keepAlive.toMillis();
+        return (response, context) -> {
+            HeaderElementIterator iterator = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (iterator.hasNext()) {
+                HeaderElement element = iterator.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Math.min(Long.parseLong(element.getValue()) * 1000, maxKeepAliveMs);
+                    } catch (NumberFormatException ignored) {
+                        // Fall back to the configured keep-alive
+                    }
+                }
+            }
+            return maxKeepAliveMs;
+        };
+    }
+}
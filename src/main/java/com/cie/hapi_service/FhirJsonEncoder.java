@@ -0,0 +1,135 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared JSON encoding for FHIR resources.
+ *
+ * <p>HAPI parsers keep per-encode state and are not thread safe, so each thread
+ * keeps one compact and one pretty-printing parser instead of every request
+ * building a new one. Resources are encoded straight into the target stream;
+ * no intermediate String of the whole payload is built.
+ */
+@Component
+public class FhirJsonEncoder {
+
+    private final FhirContext fhirContext;
+
+    private final MeterRegistry meterRegistry;
+
+    private final ThreadLocal<IParser> compactParser;
+
+    private final ThreadLocal<IParser> prettyParser;
+
+    @Autowired
+    public FhirJsonEncoder(FhirContext fhirContext, MeterRegistry meterRegistry) {
+        this.fhirContext = fhirContext;
+        this.meterRegistry = meterRegistry;
+        this.compactParser = ThreadLocal.withInitial(() -> fhirContext.newJsonParser());
+        this.prettyParser = ThreadLocal.withInitial(() -> fhirContext.newJsonParser().setPrettyPrint(true));
+    }
+
+    /**
+     * Returns this thread's parser. The parser must not be reconfigured or handed
+     * to another thread.
+     */
+    public IParser parser(boolean pretty) {
+        return pretty ? prettyParser.get() : compactParser.get();
+    }
+
+    /**
+     * Returns a new parser that prunes resources to the {@code _elements} and
+     * {@code _summary} of {@code projection}. With {@code childResourcesOnly} a
+     * Bundle keeps all its own elements and only its entries are pruned.
+     */
+    public IParser projectingParser(SearchOptions projection, boolean pretty, boolean childResourcesOnly) {
+        IParser parser = fhirContext.newJsonParser().setPrettyPrint(pretty);
+        projection.configure(parser, childResourcesOnly);
+        return parser;
+    }
+
+    public void encode(IBaseResource resource, boolean pretty, OutputStream outputStream) throws IOException {
+        encode(parser(pretty), resource, outputStream);
+    }
+
+    /**
+     * Encodes with {@code _elements} and {@code _summary} applied to the resource,
+     * or to the entries when it is a Bundle.
+     */
+    public void encode(IBaseResource resource, boolean pretty, SearchOptions projection, OutputStream outputStream)
+            throws IOException {
+        if (!projection.isProjection()) {
+            encode(resource, pretty, outputStream);
+            return;
+        }
+        boolean bundle = "Bundle".equals(resource.fhirType());
+        encode(projectingParser(projection, pretty, bundle), resource, outputStream);
+    }
+
+    private void encode(IParser parser, IBaseResource resource, OutputStream outputStream) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(outputStream);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(counter, StandardCharsets.UTF_8));
+        long start = System.nanoTime();
+        parser.encodeResourceToWriter(resource, writer);
+        writer.flush();
+
+        String resourceType = resource.fhirType();
+        Timer.builder("fhir.encode")
+                .description("Time to encode FHIR resources as JSON, including writing to the target stream")
+                .tag("resource", resourceType)
+                .register(meterRegistry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        DistributionSummary.builder("fhir.encode.size")
+                .description("Size of encoded FHIR JSON")
+                .baseUnit("bytes")
+                .tag("resource", resourceType)
+                .register(meterRegistry)
+                .record(counter.count);
+    }
+
+    public <T extends IBaseResource> T parse(Class<T> type, InputStream inputStream) {
+        return parser(false).parseResource(type, inputStream);
+    }
+
+    public FhirContext getFhirContext() {
+        return fhirContext;
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records upstream HTTP latency (up to the response headers) and response size
+ * per resource type, operation and status.
+ *
+ * <p>HAPI runs the request and response hooks on the calling thread, so the
+ * request details are carried between them in a thread local. The time at which
+ * the response arrived is kept as well, so callers can measure how long reading
+ * and parsing the body took, and reported to the {@link UpstreamBulkhead}.
+ */
+public class FhirMetricsInterceptor implements IClientInterceptor {
+
+    private static final ThreadLocal<RequestTags> currentRequest = new ThreadLocal<>();
+
+    private static final ThreadLocal<Long> responseReceivedAt = new ThreadLocal<>();
+
+    private final MeterRegistry meterRegistry;
+
+    private final String baseUrl;
+
+    public FhirMetricsInterceptor(MeterRegistry meterRegistry, String baseUrl) {
+        this.meterRegistry = meterRegistry;
+        this.baseUrl = baseUrl;
+    }
+
+    @Override
+    public void interceptRequest(IHttpRequest request) {
+        String uri = request.getUri();
+        String resourceType = FhirOperation.resourceType(uri, baseUrl);
+        currentRequest.set(new RequestTags(
+                resourceType != null ? resourceType : "none",
+                FhirOperation.classify(request.getHttpVerbName(), uri, baseUrl).name().toLowerCase()));
+        responseReceivedAt.remove();
+    }
+
+    @Override
+    public void interceptResponse(IHttpResponse response) {
+        responseReceivedAt.set(System.nanoTime());
+        UpstreamBulkhead.responseHeadersReceived();
+        RequestTags tags = currentRequest.get();
+        currentRequest.remove();
+        if (tags == null) {
+            return;
+        }
+
+        Timer.builder("fhir.upstream.http")
+                .description("Upstream FHIR HTTP latency until response headers")
+                .tag("resource", tags.resourceType())
+                .tag("operation", tags.operation())
+                .tag("status", Integer.toString(response.getStatus()))
+                .register(meterRegistry)
+                .record(response.getRequestStopWatch().getMillis(), TimeUnit.MILLISECONDS);
+
+        List<String> contentLength = response.getHeaders("Content-Length");
+        if (contentLength != null && !contentLength.isEmpty()) {
+            try {
+                DistributionSummary.builder("fhir.upstream.response.size")
+                        .description("Upstream FHIR response body size")
+                        .baseUnit("bytes")
+                        .tag("resource", tags.resourceType())
+                        .tag("operation", tags.operation())
+                        .register(meterRegistry)
+                        .record(Long.parseLong(contentLength.get(0)));
+            } catch (NumberFormatException ignored) {
+                // Chunked or malformed; size unknown
+            }
+        }
+    }
+
+    /**
+     * Returns and clears the time the last response on this thread arrived, or
+     * {@code null} if no response was received since the last call.
+     */
+    public static Long takeResponseReceivedAt() {
+        Long receivedAt = responseReceivedAt.get();
+        responseReceivedAt.remove();
+        return receivedAt;
+    }
+
+    private record RequestTags(String resourceType, String operation) {
+    }
+}
@@ -0,0 +1,110 @@
+package com.cie.hapi_service;
+
+import java.net.URI;
+
+/**
+ * Kind of FHIR REST interaction behind an outgoing HTTP request, derived from
+ * the verb and URL. Used to apply per-operation settings to upstream calls.
+ */
+public enum FhirOperation {
+    READ,
+    VREAD,
+    SEARCH,
+    PAGE,
+    HISTORY,
+    TRANSACTION,
+    CREATE,
+    UPDATE,
+    DELETE,
+    CAPABILITIES,
+    OTHER;
+
+    /**
+     * Classifies a request to the FHIR server at {@code baseUrl}.
+     */
+    public static FhirOperation classify(String verb, String url, String baseUrl) {
+        String[] segments = pathSegments(url, baseUrl);
+        boolean paging = url.contains("_getpages=");
+        switch (verb.toUpperCase()) {
+            case "GET":
+                if (paging) {
+                    return PAGE;
+                }
+                if (segments.length == 0) {
+                    return OTHER;
+                }
+                if (segments[0].equals("metadata")) {
+                    return CAPABILITIES;
+                }
+                if (contains(segments, "_history")) {
+                    return segments.length == 4 ? VREAD : HISTORY;
+                }
+                if (segments.length == 1 || segments[segments.length - 1].equals("_search")) {
+                    return SEARCH;
+                }
+                return segments.length == 2 ? READ : OTHER;
+            case "POST":
+                if (segments.length == 0) {
+                    return TRANSACTION;
+                }
+                if (segments[segments.length - 1].equals("_search")) {
+                    return SEARCH;
+                }
+                return segments.length == 1 ? CREATE : OTHER;
+            case "PUT":
+            case "PATCH":
+                return UPDATE;
+            case "DELETE":
+                return DELETE;
+            default:
+                return OTHER;
+        }
+    }
+
+    /**
+     * Returns the resource type addressed by the request, or {@code null} for
+     * system-level requests.
+     */
+    public static String resourceType(String url, String baseUrl) {
+        String[] segments = pathSegments(url, baseUrl);
+        if (segments.length == 0 || segments[0].isEmpty() || !Character.isUpperCase(segments[0].charAt(0))) {
+            return null;
+        }
+        return segments[0];
+    }
+
+    private static String[] pathSegments(String url, String baseUrl) {
+        String path;
+        String root = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        if (url.startsWith(root) && (url.length() == root.length() || "/?".indexOf(url.charAt(root.length())) >= 0)) {
+            path = url.substring(root.length());
+        } else {
+            // Not under the configured base (e.g. an absolute paging link); fall back to the URL path
+            path = rawPath(url);
+        }
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        path = path.replaceAll("^/+|/+$", "");
+        return path.isEmpty() ? new String[0] : path.split("/");
+    }
+
+    private static String rawPath(String url) {
+        try {
+            String rawPath = URI.create(url).getRawPath();
+            return rawPath == null ? "" : rawPath;
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+
+    private static boolean contains(String[] segments, String value) {
+        for (String segment : segments) {
+            if (segment.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,144 @@
+package com.cie.hapi_service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * Runs FHIR-backed controller logic off the servlet thread, under a deadline.
+ *
+ * <p>The handler runs on {@code requestHandlerExecutor} with a
+ * {@link RequestDeadline} bound. When the deadline passes the client gets a
+ * 504; when the container reports the client gone there is nobody to answer.
+ * Either way the handler thread is interrupted and its in-flight upstream HTTP
+ * requests are aborted, so abandoned requests stop using upstream capacity.
+ * A {@link Closeable} body, such as an open {@link RawFhirResponse},
+ * is closed once the request completes, and at once when it came too late to
+ * be sent, so its upstream connection goes back to the pool either way.
+ */
+@Component
+public class FhirRequestExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(FhirRequestExecutor.class);
+
+    @Autowired
+    private ThreadPoolTaskExecutor requestHandlerExecutor;
+
+    @Autowired
+    private NdjsonBundleStreamer ndjsonBundleStreamer;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${fhir.request.deadline:30s}")
+    private Duration deadline;
+
+    public DeferredResult<ResponseEntity<?>> submit(Supplier<ResponseEntity<?>> handler) {
+        return submit(handler, (status, error) -> {
+            ResponseEntity.BodyBuilder response = ResponseEntity.status(status);
+            if (status == HttpStatus.SERVICE_UNAVAILABLE) {
+                response.header(HttpHeaders.RETRY_AFTER, "1");
+            }
+            return response.body(error);
+        });
+    }
+
+    /**
+     * Like {@link #submit(Supplier)} for streaming endpoints; the deadline covers
+     * the handler, i.e. the first upstream page, not writing the stream.
+     */
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> submitStream(Supplier<ResponseEntity<StreamingResponseBody>> handler) {
+        return submit(handler, ndjsonBundleStreamer::error);
+    }
+
+    private <R> DeferredResult<R> submit(Supplier<R> handler, BiFunction<HttpStatus, Map<String, String>, R> errorResponse) {
+        RequestDeadline requestDeadline = new RequestDeadline(deadline);
+        DeferredResult<R> result = new DeferredResult<>(deadline.toMillis());
+
+        Future<?> task;
+        try {
+            task = requestHandlerExecutor.submit(() -> {
+                if (result.isSetOrExpired()) {
+                    return;
+                }
+                try (RequestDeadline.Scope ignored = requestDeadline.bind()) {
+                    R response = handler.get();
+                    if (!result.setResult(response)) {
+                        closeBody(response);
+                    }
+                } catch (RuntimeException | Error e) {
+                    result.setErrorResult(e);
+                }
+            });
+        } catch (TaskRejectedException e) {
+            logger.warn("Request handler pool is saturated");
+            count("rejected");
+            result.setResult(errorResponse.apply(HttpStatus.SERVICE_UNAVAILABLE,
+                    error("Service overloaded", "Too many requests in progress")));
+            return result;
+        }
+
+        result.onTimeout(() -> {
+            requestDeadline.cancel(RequestDeadline.DEADLINE_EXCEEDED);
+            task.cancel(true);
+            count("deadline");
+            logger.warn("Request exceeded its {} deadline", deadline);
+            result.setResult(errorResponse.apply(HttpStatus.GATEWAY_TIMEOUT,
+                    error("Deadline exceeded", "No response from the FHIR server within " + deadline.toMillis() + " ms")));
+        });
+        // Bodies not written, e.g. when the response failed before reaching the converter
+        result.onCompletion(() -> closeBody(result.getResult()));
+        result.onError(throwable -> {
+            requestDeadline.cancel(RequestDeadline.CLIENT_GONE);
+            task.cancel(true);
+            count("client");
+            logger.info("Client went away, cancelled upstream calls: {}", throwable.toString());
+        });
+        return result;
+    }
+
+    private static void closeBody(Object response) {
+        if (response instanceof ResponseEntity<?> entity && entity.getBody() instanceof Closeable body) {
+            try {
+                body.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close unsent response body: {}", e.toString());
+            }
+        }
+    }
+
+    private void count(String reason) {
+        Counter.builder("fhir.requests.cancelled")
+                .description("Client requests cut short before the handler finished")
+                .tag("reason", reason)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    private static Map<String, String> error(String error, String message) {
+        Map<String, String> body = new HashMap<>();
+        body.put("error", error);
+        body.put("message", message);
+        return body;
+    }
+}
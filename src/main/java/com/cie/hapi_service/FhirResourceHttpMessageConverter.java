@@ -0,0 +1,93 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import jakarta.servlet.http.HttpServletRequest;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes HAPI resources as FHIR JSON directly on the servlet streams.
+ *
+ * <p>Output is compact unless the request carries {@code _pretty=true}. When the
+ * request carries {@code _elements} or {@code _summary}, resources are pruned to
+ * them while encoding, in case the upstream server ignored them.
+ */
+public class FhirResourceHttpMessageConverter extends AbstractHttpMessageConverter<IBaseResource> {
+
+    public static final MediaType FHIR_JSON = MediaType.parseMediaType("application/fhir+json");
+
+    private final FhirJsonEncoder encoder;
+
+    public FhirResourceHttpMessageConverter(FhirJsonEncoder encoder) {
+        super(StandardCharsets.UTF_8,
+                new MediaType("application", "fhir+json", StandardCharsets.UTF_8),
+                new MediaType("application", "json", StandardCharsets.UTF_8));
+        this.encoder = encoder;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return IBaseResource.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected IBaseResource readInternal(Class<? extends IBaseResource> clazz, HttpInputMessage inputMessage)
+            throws IOException {
+        try {
+            if (clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers())) {
+                // Let the parser pick the concrete type from "resourceType"
+                return encoder.parser(false).parseResource(inputMessage.getBody());
+            }
+            return encoder.parse(clazz, inputMessage.getBody());
+        } catch (DataFormatException e) {
+            throw new HttpMessageNotReadableException("Invalid FHIR JSON: " + e.getMessage(), e, inputMessage);
+        }
+    }
+
+    @Override
+    protected void writeInternal(IBaseResource resource, HttpOutputMessage outputMessage) throws IOException {
+        encoder.encode(resource, isPrettyRequested(), requestedProjection(), outputMessage.getBody());
+    }
+
+    @Override
+    protected Long getContentLength(IBaseResource resource, MediaType contentType) {
+        // Unknown until encoded; the response is sent chunked
+        return null;
+    }
+
+    /**
+     * The {@code _elements}/{@code _summary} of the current request. Controllers
+     * validate them; anything malformed that gets here is ignored.
+     */
+    static SearchOptions requestedProjection() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes instanceof ServletRequestAttributes servletAttributes) {
+            HttpServletRequest request = servletAttributes.getRequest();
+            try {
+                return SearchOptions.of(request.getParameter("_elements"), request.getParameter("_summary"), null, null);
+            } catch (IllegalArgumentException e) {
+                return SearchOptions.NONE;
+            }
+        }
+        return SearchOptions.NONE;
+    }
+
+    static boolean isPrettyRequested() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes instanceof ServletRequestAttributes servletAttributes) {
+            return Boolean.parseBoolean(servletAttributes.getRequest().getParameter("_pretty"));
+        }
+        return false;
+    }
+}
@@ -0,0 +1,379 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.PreferReturnEnum;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.gclient.ReferenceClientParam;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Subscription;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The reads and searches this service sends to the FHIR server.
+ *
+ * <p>All upstream traffic from the controllers goes through here so that
+ * identical concurrent requests can be coalesced into one call, every call
+ * passes the {@link UpstreamBulkhead} and every call is measured the same way. Returned resources may be shared between callers
+ * and must not be modified. The {@link UpstreamRouter} picks the server: the
+ * shard of the patient a call is about, and the least loaded replica in it.
+ */
+@Service
+public class FhirUpstreamService {
+
+    private static final ReferenceClientParam SUBJECT = new ReferenceClientParam("subject");
+
+    @Autowired
+    private UpstreamRouter router;
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    @Autowired
+    private UpstreamRequestCoalescer coalescer;
+
+    @Autowired
+    private UpstreamBulkhead bulkhead;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private CloseableHttpClient fhirHttpClient;
+
+    @Autowired
+    private RequestConfig fhirRequestConfig;
+
+    @Value("${fhir.client.timeout.search:30s}")
+    private Duration searchTimeout;
+
+    @Value("${fhir.passthrough.public-base-url:}")
+    private String publicBaseUrl;
+
+    public Patient readPatient(String id) {
+        return call("Patient/" + id.trim(), "Patient", FhirOperation.READ, () -> router.read(normalizePatientId(id), endpoint -> endpoint.client().read()
+                .resource(Patient.class)
+                .withId(id)
+                .execute()));
+    }
+
+    /**
+     * Conditional read; returns {@code null} when the server still has {@code versionId}.
+     */
+    public Patient readPatientIfChanged(String id, String versionId) {
+        return call("Patient/" + id.trim() + "?If-None-Match=" + versionId, "Patient", FhirOperation.READ, () -> router.read(normalizePatientId(id), endpoint -> endpoint.client().read()
+                .resource(Patient.class)
+                .withId(id)
+                .ifVersionMatches(versionId)
+                .returnNull()
+                .execute()));
+    }
+
+    public Bundle searchPatientsByName(String name) {
+        return searchPatientsByName(name, SearchOptions.NONE);
+    }
+
+    public Bundle searchPatientsByName(String name, SearchOptions options) {
+        // Name matching is case-insensitive upstream, so differently cased queries can share a call
+        String normalized = name.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+        return call("Patient?name=" + normalized + options.key(), "Patient", FhirOperation.SEARCH, () -> router.read(null, endpoint -> options.applyTo(endpoint.client().search()
+                        .forResource(Patient.class)
+                        .where(Patient.NAME.matches().value(name)))
+                .returnBundle(Bundle.class)
+                .execute()));
+    }
+
+    /**
+     * Reads the Patient history at or after {@code since}, newest version first,
+     * including deletions. Goes to the default primary, as the watermark taken
+     * from it must not run ahead of what a lagging replica has applied.
+     */
+    public Bundle patientHistorySince(Date since, int count) {
+        return call("Patient/_history?_since=" + since.getTime() + "&_count=" + count, "Patient", FhirOperation.HISTORY, () -> router.readPrimary(null, endpoint -> endpoint.client().history()
+                .onType(Patient.class)
+                .returnBundle(Bundle.class)
+                .since(since)
+                .count(count)
+                .execute()));
+    }
+
+    /**
+     * Searches resources of the given type whose {@code subject} is the patient.
+     */
+    public Bundle searchBySubject(Class<? extends IBaseResource> resourceType, String patientId) {
+        return searchBySubject(resourceType, patientId, SearchOptions.NONE);
+    }
+
+    /**
+     * Searches resources of the given type whose {@code subject} is the patient,
+     * with {@code _elements}, {@code _summary}, {@code _count} and {@code _sort}
+     * passed to the server.
+     */
+    public Bundle searchBySubject(Class<? extends IBaseResource> resourceType, String patientId, SearchOptions options) {
+        String normalized = normalizePatientId(patientId);
+        String typeName = fhirContext.getResourceType(resourceType);
+        return call(typeName + "?subject=Patient/" + normalized + options.key(), typeName, FhirOperation.SEARCH, () -> router.read(normalized, endpoint -> options.applyTo(endpoint.client().search()
+                        .forResource(resourceType)
+                        .where(SUBJECT.hasId(patientId)))
+                .returnBundle(Bundle.class)
+                .execute()));
+    }
+
+    /**
+     * Searches resources of the given type whose {@code subject} is the patient
+     * and that were created or changed after {@code since}, or all of them if it
+     * is {@code null}, oldest change first. Goes to the primary of the patient's
+     * shard: a replica's search time can be ahead of the changes it has applied,
+     * and a watermark taken from it would skip those for good.
+     */
+    public Bundle searchBySubjectChangedSince(Class<? extends IBaseResource> resourceType, String patientId, Instant since, int count) {
+        String normalized = normalizePatientId(patientId);
+        String typeName = fhirContext.getResourceType(resourceType);
+        String key = typeName + "?subject=Patient/" + normalized
+                + (since != null ? "&_lastUpdated=gt" + since.toEpochMilli() : "")
+                + "&_count=" + count;
+        return call(key, typeName, FhirOperation.SEARCH, () -> router.readPrimary(normalized, endpoint -> {
+            IQuery<IBaseBundle> query = endpoint.client().search()
+                    .forResource(resourceType)
+                    .where(SUBJECT.hasId(patientId));
+            if (since != null) {
+                query = query.lastUpdated(new DateRangeParam(new DateParam(ParamPrefixEnum.GREATERTHAN, since.toString())));
+            }
+            return query.sort().ascending("_lastUpdated")
+                    .count(count)
+                    .returnBundle(Bundle.class)
+                    .execute();
+        }));
+    }
+
+    /**
+     * Searches the patient's Observations, optionally only those with the given
+     * {@code code} (either {@code code} or {@code system|code}) and effective date range.
+     */
+    public Bundle searchObservations(String patientId, String code, DateRangeParam dates, SearchOptions options) {
+        String key = "Observation?subject=Patient/" + normalizePatientId(patientId)
+                + (code != null ? "&code=" + code : "")
+                + (dates != null ? "&date=" + epochMillis(dates.getLowerBoundAsInstant()) + ".." + epochMillis(dates.getUpperBoundAsInstant()) : "")
+                + options.key();
+        return call(key, "Observation", FhirOperation.SEARCH, () -> router.read(normalizePatientId(patientId), endpoint -> {
+            IQuery<IBaseBundle> query = endpoint.client().search()
+                    .forResource(Observation.class)
+                    .where(SUBJECT.hasId(patientId));
+            if (code != null) {
+                int bar = code.indexOf('|');
+                query = query.and(bar < 0
+                        ? Observation.CODE.exactly().code(code)
+                        : Observation.CODE.exactly().systemAndCode(code.substring(0, bar), code.substring(bar + 1)));
+            }
+            if (dates != null && dates.getLowerBoundAsInstant() != null) {
+                query = query.and(Observation.DATE.afterOrEquals().second(dates.getLowerBoundAsInstant()));
+            }
+            if (dates != null && dates.getUpperBoundAsInstant() != null) {
+                query = query.and(Observation.DATE.beforeOrEquals().second(dates.getUpperBoundAsInstant()));
+            }
+            return options.applyTo(query)
+                    .returnBundle(Bundle.class)
+                    .execute();
+        }));
+    }
+
+    /**
+     * Same search as {@link #searchBySubject}, with the response body left
+     * unparsed so it can be passed through to the client. Not coalesced, since an
+     * open response cannot be shared; the bulkhead slot is held, and the call
+     * timed, until the response headers arrive. The caller must write or close the result.
+     */
+    public RawFhirResponse searchBySubjectRaw(Class<? extends IBaseResource> resourceType, String patientId, SearchOptions options) {
+        String typeName = fhirContext.getResourceType(resourceType);
+        String query = typeName + "?subject=" + URLEncoder.encode(patientId.trim(), StandardCharsets.UTF_8)
+                + options.toQueryString();
+        return bulkhead.execute(typeName, FhirOperation.SEARCH, () -> instrumented(typeName, FhirOperation.SEARCH, () -> router.read(normalizePatientId(patientId), endpoint -> {
+            String serverBase = endpoint.baseUrl();
+            HttpGet request = new HttpGet(serverBase + query);
+            request.setHeader(HttpHeaders.ACCEPT, "application/fhir+json");
+            RequestConfig config = RequestConfig.copy(fhirRequestConfig)
+                    .setSocketTimeout((int) searchTimeout.toMillis())
+                    .build();
+            RequestDeadline deadline = RequestDeadline.current();
+            if (deadline != null) {
+                deadline.register(request);
+                config = RequestDeadlineInterceptor.clamp(config, deadline);
+            }
+            request.setConfig(config);
+            return executeRaw(request, serverBase);
+        })));
+    }
+
+    /**
+     * Loads the page behind the {@code next} link of {@code page}.
+     */
+    public Bundle nextPage(Bundle page) {
+        String typeName = firstResourceType(page);
+        String url = page.getLink(Bundle.LINK_NEXT).getUrl();
+        return call("next:" + url, typeName, FhirOperation.PAGE, () -> router.atUrl(url, endpoint -> endpoint.client().loadPage()
+                .next(page)
+                .execute()));
+    }
+
+    /**
+     * Upstream group holding the patient's data; see {@link #batch}.
+     */
+    public String shardOf(String patientId) {
+        return router.shardOf(normalizePatientId(patientId));
+    }
+
+    public boolean isSharded() {
+        return router.isSharded();
+    }
+
+    /**
+     * Sends a FHIR {@code batch} Bundle of reads in one request to the given
+     * upstream group, so every entry must be in that group. Batches are not coalesced.
+     */
+    public Bundle batch(String shard, Bundle batch) {
+        return bulkhead.execute("Bundle", FhirOperation.TRANSACTION, () -> instrumented("Bundle", FhirOperation.TRANSACTION, () -> router.readGroup(shard, endpoint -> endpoint.client().transaction()
+                .withBundle(batch)
+                .execute())));
+    }
+
+    /**
+     * Creates a Subscription on the FHIR server and returns it with its assigned ID.
+     */
+    public Subscription createSubscription(Subscription subscription) {
+        return bulkhead.execute("Subscription", FhirOperation.CREATE, () -> instrumented("Subscription", FhirOperation.CREATE, () -> {
+            MethodOutcome outcome = router.atPrimary(endpoint -> endpoint.client().create()
+                    .resource(subscription)
+                    .prefer(PreferReturnEnum.REPRESENTATION)
+                    .execute());
+            if (outcome.getResource() instanceof Subscription created) {
+                return created;
+            }
+            Subscription created = subscription.copy();
+            created.setId(outcome.getId().toUnqualifiedVersionless());
+            return created;
+        }));
+    }
+
+    public Subscription readSubscription(String id) {
+        return call("Subscription/" + id, "Subscription", FhirOperation.READ, () -> router.atPrimary(endpoint -> endpoint.client().read()
+                .resource(Subscription.class)
+                .withId(id)
+                .execute()));
+    }
+
+    public void deleteSubscription(String id) {
+        bulkhead.execute("Subscription", FhirOperation.DELETE, () -> instrumented("Subscription", FhirOperation.DELETE, () -> router.atPrimary(endpoint -> endpoint.client().delete()
+                .resourceById("Subscription", id)
+                .execute())));
+    }
+
+    private <T> T call(String key, String resourceType, FhirOperation operation, Supplier<T> call) {
+        // Only the caller that actually goes upstream is measured and takes a bulkhead slot;
+        // callers that join it share its result or its rejection
+        return coalescer.execute(key, () -> bulkhead.execute(resourceType, operation, () -> instrumented(resourceType, operation, call)));
+    }
+
+    /**
+     * Records total call time and its outcome, plus the time spent reading and
+     * parsing the response body after the headers arrived.
+     */
+    private <T> T instrumented(String resourceType, FhirOperation operation, Supplier<T> call) {
+        String operationTag = operation.name().toLowerCase(Locale.ROOT);
+        String exception = "none";
+        long start = System.nanoTime();
+        try {
+            T result = call.get();
+            Long responseReceivedAt = FhirMetricsInterceptor.takeResponseReceivedAt();
+            if (responseReceivedAt != null) {
+                Timer.builder("fhir.upstream.parse")
+                        .description("Time to read and parse upstream FHIR response bodies")
+                        .tag("resource", resourceType)
+                        .tag("operation", operationTag)
+                        .register(meterRegistry)
+                        .record(System.nanoTime() - responseReceivedAt, TimeUnit.NANOSECONDS);
+            }
+            return result;
+        } catch (RuntimeException e) {
+            exception = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            Timer.builder("fhir.upstream.calls")
+                    .description("Upstream FHIR calls including body parsing")
+                    .tag("resource", resourceType)
+                    .tag("operation", operationTag)
+                    .tag("outcome", "none".equals(exception) ? "success" : "error")
+                    .tag("exception", exception)
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private RawFhirResponse executeRaw(HttpGet request, String serverBase) {
+        CloseableHttpResponse response;
+        try {
+            response = fhirHttpClient.execute(request);
+        } catch (IOException e) {
+            throw new FhirClientConnectionException(e);
+        }
+        UpstreamBulkhead.responseHeadersReceived();
+        int status = response.getStatusLine().getStatusCode();
+        if (status >= 200 && status < 300) {
+            return new RawFhirResponse(response, serverBase, publicBaseUrl);
+        }
+        // Map errors to the same exceptions the HAPI client throws, so controllers handle both alike
+        try (response) {
+            String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : "";
+            throw BaseServerResponseException.newInstance(status, "HTTP " + status + " "
+                    + response.getStatusLine().getReasonPhrase() + ": " + body);
+        } catch (IOException e) {
+            throw new FhirClientConnectionException(e);
+        }
+    }
+
+    private static String firstResourceType(Bundle page) {
+        for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+            if (entry.getResource() != null) {
+                return entry.getResource().fhirType();
+            }
+        }
+        return "none";
+    }
+
+    private static String epochMillis(Date instant) {
+        return instant != null ? Long.toString(instant.getTime()) : "";
+    }
+
+    static String normalizePatientId(String patientId) {
+        String trimmed = patientId.trim();
+        return trimmed.startsWith("Patient/") ? trimmed.substring("Patient/".length()) : trimmed;
+    }
+}
@@ -0,0 +1,175 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Streams every resource of a paged search result as NDJSON, following the
+ * Bundle {@code next} links. The next page is fetched in the background while
+ * the current one is written, so only about two pages are held in memory.
+ */
+@Component
+public class NdjsonBundleStreamer {
+
+    public static final MediaType NDJSON = MediaType.parseMediaType("application/fhir+ndjson");
+
+    private static final Logger logger = LoggerFactory.getLogger(NdjsonBundleStreamer.class);
+
+    @Autowired
+    private FhirUpstreamService fhirUpstreamService;
+
+    @Autowired
+    private FhirJsonEncoder fhirJsonEncoder;
+
+    @Autowired
+    private ThreadPoolTaskExecutor upstreamExecutor;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${fhir.upstream.call-timeout-ms:10000}")
+    private long callTimeoutMs;
+
+    @Value("${fhir.stream.max-pages:1000}")
+    private int maxPages;
+
+    /**
+     * Returns a response body that writes the resources of {@code firstPage}
+     * and all following pages. The first page is fetched by the caller so that
+     * upstream errors can still be mapped to a status code.
+     */
+    public StreamingResponseBody stream(Bundle firstPage) {
+        return stream(firstPage, SearchOptions.NONE);
+    }
+
+    /**
+     * Like {@link #stream(Bundle)}, with {@code _elements} and {@code _summary}
+     * applied to each written resource in case the server ignored them.
+     */
+    public StreamingResponseBody stream(Bundle firstPage, SearchOptions options) {
+        return outputStream -> write(firstPage, options, maxPages, Function.identity(), outputStream);
+    }
+
+    /**
+     * Like {@link #stream(Bundle)}, but follows every next link regardless of
+     * {@code fhir.stream.max-pages}, for results that are useless when cut
+     * short, and writes each resource as {@code transform} maps it.
+     */
+    public StreamingResponseBody streamAll(Bundle firstPage, Function<Resource, ? extends IBaseResource> transform) {
+        return outputStream -> write(firstPage, SearchOptions.NONE, Integer.MAX_VALUE, transform, outputStream);
+    }
+
+    /**
+     * Builds a JSON error response for a streaming endpoint. Streaming handlers
+     * cannot fall back to message converters, so the error map is written here.
+     */
+    public ResponseEntity<StreamingResponseBody> error(HttpStatus status, Map<String, String> error) {
+        return ResponseEntity.status(status)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(outputStream -> objectMapper.writeValue(outputStream, error));
+    }
+
+    /**
+     * Builds the 503 for a call shed by the {@link UpstreamBulkhead}, with its Retry-After.
+     */
+    public ResponseEntity<StreamingResponseBody> rejected(UpstreamRejectedException e, Map<String, String> error) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, e.getRetryAfterSeconds())
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(outputStream -> objectMapper.writeValue(outputStream, error));
+    }
+
+    private void write(Bundle firstPage, SearchOptions options, int pageLimit, Function<Resource, ? extends IBaseResource> transform,
+                       OutputStream outputStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        IParser parser = options.isProjection()
+                ? fhirJsonEncoder.projectingParser(options, false, false)
+                : fhirJsonEncoder.parser(false);
+
+        Bundle page = firstPage;
+        int pages = 0;
+        long resources = 0;
+        while (page != null) {
+            pages++;
+            CompletableFuture<Bundle> nextPage = prefetchNext(page, pages, pageLimit);
+            try {
+                for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+                    if (entry.getResource() == null) {
+                        continue;
+                    }
+                    parser.encodeResourceToWriter(transform.apply(entry.getResource()), writer);
+                    writer.write('\n');
+                    resources++;
+                }
+                // Push each finished page to the client instead of waiting for the whole result
+                writer.flush();
+            } catch (IOException | RuntimeException e) {
+                if (nextPage != null) {
+                    nextPage.cancel(true);
+                }
+                throw e;
+            }
+            page = nextPage == null ? null : await(nextPage);
+        }
+
+        logger.info("Streamed {} resources from {} pages", resources, pages);
+    }
+
+    private CompletableFuture<Bundle> prefetchNext(Bundle page, int pagesSoFar, int pageLimit) {
+        if (page.getLink(Bundle.LINK_NEXT) == null) {
+            return null;
+        }
+        if (pagesSoFar >= pageLimit) {
+            logger.warn("Stopped following next links after {} pages", pagesSoFar);
+            return null;
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> fhirUpstreamService.nextPage(page), upstreamExecutor);
+        } catch (RejectedExecutionException e) {
+            // Saturated pool: fetch on the writing thread instead of prefetching, failures still go through await()
+            return CompletableFuture.completedFuture(null).thenApply(ignored -> fhirUpstreamService.nextPage(page));
+        }
+    }
+
+    private Bundle await(CompletableFuture<Bundle> nextPage) throws IOException {
+        try {
+            return nextPage.get(callTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching next page", e);
+        } catch (ExecutionException | TimeoutException e) {
+            // The response is already committed, so the only option left is to abort the stream
+            nextPage.cancel(true);
+            logger.error("Failed to fetch next page, aborting stream: {}", e.toString());
+            throw new IOException("Failed to fetch next page", e);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.cie.hapi_service;
+
+import java.util.List;
+
+/**
+ * Per-code statistics and value series of a patient's Observations, in a
+ * columnar layout: each series carries parallel {@code timestamps} (epoch
+ * milliseconds) and {@code values} arrays.
+ *
+ * @param observations Observations read from the server
+ * @param skipped      Observations without a numeric {@code valueQuantity} or an effective time
+ * @param truncated    whether reading stopped at {@code fhir.aggregate.max-points} or
+ *                     {@code fhir.stream.max-pages} with more pages left, so the
+ *                     statistics and series cover only part of the Observations
+ */
+public record ObservationAggregate(
+        String patientId,
+        int pages,
+        long observations,
+        long skipped,
+        boolean truncated,
+        String downsampling,
+        List<Series> series) {
+
+    /**
+     * One code and unit. {@code count}, {@code min}, {@code max} and {@code mean}
+     * cover every value, also when the arrays are downsampled.
+     */
+    public record Series(
+            String code,
+            String display,
+            String unit,
+            int count,
+            double min,
+            double max,
+            double mean,
+            long[] timestamps,
+            double[] values) {
+    }
+}
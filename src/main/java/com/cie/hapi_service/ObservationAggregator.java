@@ -0,0 +1,191 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads all of a patient's Observations page by page and reduces their
+ * {@code valueQuantity} to one {@link ObservationSeries} per code and unit.
+ * Each page is dropped once it has been read, so memory grows with the
+ * number of values, not with the size of the Observations.
+ */
+@Component
+public class ObservationAggregator {
+
+    /**
+     * How a series is reduced before it is returned.
+     */
+    public enum Downsampling {
+        NONE, LTTB, BUCKET;
+
+        /**
+         * @throws IllegalArgumentException if {@code value} is not a known mode
+         */
+        public static Downsampling parse(String value) {
+            if (value == null || value.isBlank()) {
+                return NONE;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid downsample value: " + value + " (expected none, lttb or bucket)");
+            }
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(ObservationAggregator.class);
+
+    // Only what aggregation reads; servers that honour _elements send far less per Observation
+    private static final Set<String> ELEMENTS = Set.of("code", "effective", "value");
+
+    @Autowired
+    private FhirUpstreamService fhirUpstreamService;
+
+    @Value("${fhir.aggregate.page-size:500}")
+    private int pageSize;
+
+    @Value("${fhir.aggregate.max-points:1000000}")
+    private int maxPoints;
+
+    @Value("${fhir.stream.max-pages:1000}")
+    private int maxPages;
+
+    /**
+     * Aggregates the patient's Observations, optionally only those with
+     * {@code code} (either {@code code} or {@code system|code}) and an
+     * effective time within {@code dates}.
+     */
+    public ObservationAggregate aggregate(String patientId, String code, DateRangeParam dates,
+                                          Downsampling downsampling, int points) {
+        SearchOptions options = new SearchOptions(ELEMENTS, null, pageSize, List.of("date"));
+        Map<String, SeriesBuilder> series = new LinkedHashMap<>();
+        Date from = dates != null ? dates.getLowerBoundAsInstant() : null;
+        Date to = dates != null ? dates.getUpperBoundAsInstant() : null;
+
+        Bundle page = fhirUpstreamService.searchObservations(patientId, code, dates, options);
+        int pages = 0;
+        long observations = 0;
+        long skipped = 0;
+        long values = 0;
+        boolean truncated = false;
+        while (page != null) {
+            pages++;
+            for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+                if (!(entry.getResource() instanceof Observation observation)) {
+                    continue;
+                }
+                observations++;
+                // The server may not support every filter, so they are checked here again
+                Coding coding = matchingCoding(observation, code);
+                Long timestamp = effectiveTime(observation.getEffective());
+                if (coding == null || timestamp == null || !observation.hasValueQuantity()
+                        || !observation.getValueQuantity().hasValue()) {
+                    skipped++;
+                    continue;
+                }
+                if ((from != null && timestamp < from.getTime()) || (to != null && timestamp > to.getTime())) {
+                    continue;
+                }
+                Quantity quantity = observation.getValueQuantity();
+                String unit = quantity.hasUnit() ? quantity.getUnit() : quantity.getCode();
+                String codeKey = coding.getSystem() + "|" + coding.getCode();
+                series.computeIfAbsent(codeKey + "\u0000" + unit, key -> new SeriesBuilder(codeKey, coding.getDisplay(), unit))
+                        .series.add(timestamp, quantity.getValue().doubleValue());
+                values++;
+            }
+            if (values >= maxPoints || pages >= maxPages) {
+                truncated = page.getLink(Bundle.LINK_NEXT) != null;
+                break;
+            }
+            if (page.getLink(Bundle.LINK_NEXT) == null) {
+                break;
+            }
+            page = fhirUpstreamService.nextPage(page);
+        }
+
+        List<ObservationAggregate.Series> result = new ArrayList<>(series.size());
+        for (SeriesBuilder builder : series.values()) {
+            result.add(builder.build(downsampling, points));
+        }
+        logger.info("Aggregated {} values in {} series from {} Observations on {} pages", values, result.size(), observations, pages);
+        return new ObservationAggregate(patientId, pages, observations, skipped, truncated,
+                downsampling.name().toLowerCase(Locale.ROOT), result);
+    }
+
+    private static Coding matchingCoding(Observation observation, String code) {
+        List<Coding> codings = observation.getCode().getCoding();
+        if (code == null) {
+            return codings.isEmpty() ? null : codings.get(0);
+        }
+        int bar = code.indexOf('|');
+        for (Coding coding : codings) {
+            boolean matches = bar < 0
+                    ? code.equals(coding.getCode())
+                    : code.substring(0, bar).equals(coding.getSystem()) && code.substring(bar + 1).equals(coding.getCode());
+            if (matches) {
+                return coding;
+            }
+        }
+        return null;
+    }
+
+    private static Long effectiveTime(Type effective) {
+        if (effective instanceof DateTimeType dateTime && dateTime.getValue() != null) {
+            return dateTime.getValue().getTime();
+        }
+        if (effective instanceof InstantType instant && instant.getValue() != null) {
+            return instant.getValue().getTime();
+        }
+        if (effective instanceof Period period && period.getStart() != null) {
+            return period.getStart().getTime();
+        }
+        return null;
+    }
+
+    private static final class SeriesBuilder {
+
+        private final String code;
+
+        private final String display;
+
+        private final String unit;
+
+        private final ObservationSeries series = new ObservationSeries();
+
+        SeriesBuilder(String code, String display, String unit) {
+            this.code = code;
+            this.display = display;
+            this.unit = unit;
+        }
+
+        ObservationAggregate.Series build(Downsampling downsampling, int points) {
+            ObservationSeries output = switch (downsampling) {
+                case NONE -> series;
+                case LTTB -> series.lttb(points);
+                case BUCKET -> series.buckets(points);
+            };
+            return new ObservationAggregate.Series(code, display, unit, series.count(),
+                    series.min(), series.max(), series.mean(), output.timestamps(), output.values());
+        }
+    }
+}
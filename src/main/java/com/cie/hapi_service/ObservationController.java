@@ -1,26 +1,32 @@
 package com.cie.hapi_service;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.param.DateRangeParam;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Observation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.tags.Tag;
 
+import java.time.Instant;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,71 +40,360 @@ public class ObservationController {
     private static final Logger logger = LoggerFactory.getLogger(ObservationController.class);
 
     @Autowired
-    private IGenericClient fhirClient;
+    private FhirUpstreamService fhirUpstreamService;
 
     @Autowired
-    private FhirContext fhirContext;
+    private FhirRequestExecutor fhirRequestExecutor;
+
+    @Autowired
+    private NdjsonBundleStreamer ndjsonBundleStreamer;
+
+    @Autowired
+    private DeltaSync deltaSync;
+
+    @Autowired
+    private ResourceStore resourceStore;
+
+    @Autowired
+    private SubjectSearchCache subjectSearchCache;
+
+    @Autowired
+    private ObservationAggregator observationAggregator;
+
+    @Value("${fhir.passthrough.enabled:true}")
+    private boolean passthroughEnabled;
 
     @GetMapping("/patient/{patientId}")
     @Operation(summary = "Get observations by patient ID", description = "Retrieves all Observation resources associated with a specific patient")
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "Observations found and returned successfully"),
+            @ApiResponse(responseCode = "400", description = "Invalid _elements, _summary, _count or _sort"),
             @ApiResponse(responseCode = "404", description = "Observations not found for the patient"),
-            @ApiResponse(responseCode = "503", description = "FHIR server connection failed"),
+            @ApiResponse(responseCode = "503", description = "FHIR server connection failed or overloaded; see Retry-After"),
+            @ApiResponse(responseCode = "504", description = "No response within the request deadline"),
             @ApiResponse(responseCode = "500", description = "Internal server error")
     })
-    public ResponseEntity<?> getObservationsByPatient(
+    public DeferredResult<ResponseEntity<?>> getObservationsByPatient(
             @Parameter(description = "Patient ID", required = true, example = "123")
-            @PathVariable String patientId) {
-        try {
-            logger.info("Fetching observations for patient ID: {}", patientId);
+            @PathVariable String patientId,
+            @Parameter(description = "Comma-separated elements to return for each resource", example = "code,valueQuantity")
+            @RequestParam(name = "_elements", required = false) String elements,
+            @Parameter(description = "Summary mode: true, text, data, count or false", example = "true")
+            @RequestParam(name = "_summary", required = false) String summary,
+            @Parameter(description = "Page size requested from the FHIR server", example = "50")
+            @RequestParam(name = "_count", required = false) Integer count,
+            @Parameter(description = "Comma-separated sort parameters, prefixed with - for descending", example = "-date")
+            @RequestParam(name = "_sort", required = false) String sort) {
+        return fhirRequestExecutor.submit(() -> {
+            SearchOptions options;
+            try {
+                options = SearchOptions.of(elements, summary, count, sort);
+            } catch (IllegalArgumentException e) {
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Invalid request");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error);
+            }
+            try {
+                logger.info("Fetching observations for patient ID: {}", patientId);
             
-            // Search for observations by patient reference
-            Bundle bundle = fhirClient.search()
-                    .forResource(Observation.class)
-                    .where(Observation.SUBJECT.hasId(patientId))
-                    .returnBundle(Bundle.class)
-                    .execute();
-
-            // Extract observations from the bundle
-            List<Observation> observations = bundle.getEntry().stream()
-                    .map(Bundle.BundleEntryComponent::getResource)
-                    .filter(Observation.class::isInstance)
-                    .map(Observation.class::cast)
-                    .collect(Collectors.toList());
-
-            logger.info("Found {} observations for patient: {}", observations.size(), patientId);
-
-            // Convert observations to JSON string
-            String jsonResponse = fhirContext.newJsonParser()
-                    .setPrettyPrint(true)
-                    .encodeResourceToString(bundle);
-
-            return ResponseEntity.ok(jsonResponse);
+                // A current export snapshot answers without an upstream call
+                StoredResources stored = options.isEmpty() ? resourceStore.find("Observation", patientId) : null;
+                if (stored != null) {
+                    return ResponseEntity.ok()
+                            .contentType(FhirResourceHttpMessageConverter.FHIR_JSON)
+                            .body(stored);
+                }
+
+                if (options.isEmpty() && subjectSearchCache.isEnabled()) {
+                    // Repeated plain searches are answered from the cache; see SubjectSearchCache
+                    return ResponseEntity.ok()
+                            .contentType(FhirResourceHttpMessageConverter.FHIR_JSON)
+                            .body(subjectSearchCache.get(Observation.class, patientId));
+                }
+
+                if (passthroughEnabled && !options.isProjection()) {
+                    // Nothing here changes the Bundle, so skip parsing and stream the upstream bytes.
+                    // Projections are parsed so they can be enforced if the server ignores them
+                    RawFhirResponse response = fhirUpstreamService.searchBySubjectRaw(Observation.class, patientId, options);
+                    return ResponseEntity.ok()
+                            .contentType(FhirResourceHttpMessageConverter.FHIR_JSON)
+                            .body(response);
+                }
+
+                // Search for observations by patient reference
+                Bundle bundle = fhirUpstreamService.searchBySubject(Observation.class, patientId, options);
+
+                // Extract observations from the bundle
+                List<Observation> observations = bundle.getEntry().stream()
+                        .map(Bundle.BundleEntryComponent::getResource)
+                        .filter(Observation.class::isInstance)
+                        .map(Observation.class::cast)
+                        .collect(Collectors.toList());
+
+                logger.info("Found {} observations for patient: {}", observations.size(), patientId);
+
+                return ResponseEntity.ok(bundle);
             
-        } catch (ResourceNotFoundException e) {
-            logger.warn("Observations not found for patient ID: {}", patientId);
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "Observations not found");
-            error.put("patientId", patientId);
-            error.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(error);
+            } catch (ResourceNotFoundException e) {
+                logger.warn("Observations not found for patient ID: {}", patientId);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Observations not found");
+                error.put("patientId", patientId);
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body(error);
             
-        } catch (FhirClientConnectionException e) {
-            logger.error("Failed to connect to FHIR server: {}", e.getMessage());
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "FHIR server connection failed");
-            error.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(error);
+            } catch (UpstreamRejectedException e) {
+                logger.warn("Upstream call rejected: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server overloaded");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, e.getRetryAfterSeconds())
+                        .body(error);
+
+            } catch (FhirClientConnectionException e) {
+                logger.error("Failed to connect to FHIR server: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server connection failed");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(error);
             
-        } catch (Exception e) {
-            logger.error("Error fetching observations for patient ID {}: {}", patientId, e.getMessage(), e);
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "Internal server error");
-            error.put("patientId", patientId);
-            error.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
-        }
+            } catch (Exception e) {
+                logger.error("Error fetching observations for patient ID {}: {}", patientId, e.getMessage(), e);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Internal server error");
+                error.put("patientId", patientId);
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+            }
+        });
     }
-}
 
+    @GetMapping("/patient/{patientId}/stream")
+    @Operation(summary = "Stream observations by patient ID", description = "Streams every Observation resource of a specific patient as NDJSON, following all upstream result pages")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Observations streamed as application/fhir+ndjson"),
+            @ApiResponse(responseCode = "400", description = "Invalid _elements, _summary, _count or _sort"),
+            @ApiResponse(responseCode = "404", description = "Observations not found for the patient"),
+            @ApiResponse(responseCode = "503", description = "FHIR server connection failed or overloaded; see Retry-After"),
+            @ApiResponse(responseCode = "504", description = "No response within the request deadline"),
+            @ApiResponse(responseCode = "500", description = "Internal server error")
+    })
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> streamObservationsByPatient(
+            @Parameter(description = "Patient ID", required = true, example = "123")
+            @PathVariable String patientId,
+            @Parameter(description = "Comma-separated elements to return for each resource", example = "code,valueQuantity")
+            @RequestParam(name = "_elements", required = false) String elements,
+            @Parameter(description = "Summary mode: true, text, data, count or false", example = "true")
+            @RequestParam(name = "_summary", required = false) String summary,
+            @Parameter(description = "Page size requested from the FHIR server", example = "50")
+            @RequestParam(name = "_count", required = false) Integer count,
+            @Parameter(description = "Comma-separated sort parameters, prefixed with - for descending", example = "-date")
+            @RequestParam(name = "_sort", required = false) String sort) {
+        return fhirRequestExecutor.submitStream(() -> {
+            SearchOptions options;
+            try {
+                options = SearchOptions.of(elements, summary, count, sort);
+            } catch (IllegalArgumentException e) {
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Invalid request");
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.BAD_REQUEST, error);
+            }
+            try {
+                logger.info("Streaming observations for patient ID: {}", patientId);
+
+                StoredResources stored = options.isEmpty() ? resourceStore.find("Observation", patientId) : null;
+                if (stored != null) {
+                    return ResponseEntity.ok()
+                            .contentType(NdjsonBundleStreamer.NDJSON)
+                            .body(stored::writeNdjson);
+                }
+
+                // Fetch the first page up front so upstream errors still map to a status code
+                Bundle firstPage = fhirUpstreamService.searchBySubject(Observation.class, patientId, options);
+
+                return ResponseEntity.ok()
+                        .contentType(NdjsonBundleStreamer.NDJSON)
+                        .body(ndjsonBundleStreamer.stream(firstPage, options));
+
+            } catch (ResourceNotFoundException e) {
+                logger.warn("Observations not found for patient ID: {}", patientId);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Observations not found");
+                error.put("patientId", patientId);
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.NOT_FOUND, error);
+
+            } catch (UpstreamRejectedException e) {
+                logger.warn("Upstream call rejected: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server overloaded");
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.rejected(e, error);
+
+            } catch (FhirClientConnectionException e) {
+                logger.error("Failed to connect to FHIR server: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server connection failed");
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.SERVICE_UNAVAILABLE, error);
+
+            } catch (Exception e) {
+                logger.error("Error streaming observations for patient ID {}: {}", patientId, e.getMessage(), e);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Internal server error");
+                error.put("patientId", patientId);
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.INTERNAL_SERVER_ERROR, error);
+            }
+        });
+    }
+
+    @GetMapping("/patient/{patientId}/changes")
+    @Operation(summary = "Stream observations changed since a watermark", description = "Streams the patient's Observation resources created or changed after `since`, or after the cursor returned by the previous call, as NDJSON. " +
+            "Entered-in-error resources are sent as tombstones. The cursor for the next call is in the X-Sync-Cursor header; use it only once the stream has been read to the end")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Changes streamed as application/fhir+ndjson, next cursor in X-Sync-Cursor"),
+            @ApiResponse(responseCode = "400", description = "Invalid since, or a cursor from another resource type or patient"),
+            @ApiResponse(responseCode = "404", description = "Observations not found for the patient"),
+            @ApiResponse(responseCode = "503", description = "FHIR server connection failed or overloaded; see Retry-After"),
+            @ApiResponse(responseCode = "504", description = "No response within the request deadline"),
+            @ApiResponse(responseCode = "500", description = "Internal server error")
+    })
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> streamObservationChangesByPatient(
+            @Parameter(description = "Patient ID", required = true, example = "123")
+            @PathVariable String patientId,
+            @Parameter(description = "Only changes after this FHIR date or dateTime", example = "2024-01-01T00:00:00Z")
+            @RequestParam(required = false) String since,
+            @Parameter(description = "Opaque cursor from the X-Sync-Cursor header of the previous call")
+            @RequestParam(required = false) String cursor) {
+        return fhirRequestExecutor.submitStream(() -> {
+            Instant watermark;
+            try {
+                watermark = deltaSync.watermark("Observation", patientId, since, cursor);
+            } catch (IllegalArgumentException e) {
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Invalid request");
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.BAD_REQUEST, error);
+            }
+            try {
+                logger.info("Streaming observations changed after {} for patient ID: {}", watermark, patientId);
+                return deltaSync.changes(Observation.class, patientId, watermark);
+
+            } catch (ResourceNotFoundException e) {
+                logger.warn("Observations not found for patient ID: {}", patientId);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Observations not found");
+                error.put("patientId", patientId);
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.NOT_FOUND, error);
+
+            } catch (UpstreamRejectedException e) {
+                logger.warn("Upstream call rejected: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server overloaded");
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.rejected(e, error);
+
+            } catch (FhirClientConnectionException e) {
+                logger.error("Failed to connect to FHIR server: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server connection failed");
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.SERVICE_UNAVAILABLE, error);
+
+            } catch (Exception e) {
+                logger.error("Error streaming observations changes for patient ID {}: {}", patientId, e.getMessage(), e);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Internal server error");
+                error.put("patientId", patientId);
+                error.put("message", e.getMessage());
+                return ndjsonBundleStreamer.error(HttpStatus.INTERNAL_SERVER_ERROR, error);
+            }
+        });
+    }
+
+    @GetMapping("/patient/{patientId}/aggregate")
+    @Operation(summary = "Aggregate observation values by patient ID", description = "Reads every Observation of a patient and returns min, max, mean and the valueQuantity series per code as columnar JSON, optionally downsampled")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Observations aggregated successfully"),
+            @ApiResponse(responseCode = "400", description = "Invalid code, date range, downsample or points"),
+            @ApiResponse(responseCode = "404", description = "Observations not found for the patient"),
+            @ApiResponse(responseCode = "503", description = "FHIR server connection failed or overloaded; see Retry-After"),
+            @ApiResponse(responseCode = "504", description = "No response within the request deadline"),
+            @ApiResponse(responseCode = "500", description = "Internal server error")
+    })
+    public DeferredResult<ResponseEntity<?>> aggregateObservationsByPatient(
+            @Parameter(description = "Patient ID", required = true, example = "123")
+            @PathVariable String patientId,
+            @Parameter(description = "Only Observations with this code, as code or system|code", example = "http://loinc.org|8867-4")
+            @RequestParam(required = false) String code,
+            @Parameter(description = "Earliest effective date or dateTime, inclusive", example = "2024-01-01")
+            @RequestParam(required = false) String from,
+            @Parameter(description = "Latest effective date or dateTime, inclusive", example = "2024-12-31")
+            @RequestParam(required = false) String to,
+            @Parameter(description = "Downsampling: none, lttb or bucket", example = "lttb")
+            @RequestParam(required = false) String downsample,
+            @Parameter(description = "Points per series after downsampling", example = "500")
+            @RequestParam(defaultValue = "500") int points) {
+        return fhirRequestExecutor.submit(() -> {
+            DateRangeParam dates;
+            ObservationAggregator.Downsampling downsampling;
+            try {
+                dates = from == null && to == null ? null : new DateRangeParam(from, to);
+                downsampling = ObservationAggregator.Downsampling.parse(downsample);
+                if (points < 3 || points > 100_000) {
+                    throw new IllegalArgumentException("points must be between 3 and 100000");
+                }
+            } catch (IllegalArgumentException | DataFormatException e) {
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Invalid request");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error);
+            }
+            try {
+                logger.info("Aggregating observations for patient ID: {}", patientId);
+
+                ObservationAggregate aggregate = observationAggregator.aggregate(
+                        patientId, code == null || code.isBlank() ? null : code.trim(), dates, downsampling, points);
+
+                return ResponseEntity.ok(aggregate);
+
+            } catch (ResourceNotFoundException e) {
+                logger.warn("Observations not found for patient ID: {}", patientId);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Observations not found");
+                error.put("patientId", patientId);
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body(error);
+
+            } catch (UpstreamRejectedException e) {
+                logger.warn("Upstream call rejected: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server overloaded");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, e.getRetryAfterSeconds())
+                        .body(error);
+
+            } catch (FhirClientConnectionException e) {
+                logger.error("Failed to connect to FHIR server: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server connection failed");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(error);
+
+            } catch (Exception e) {
+                logger.error("Error aggregating observations for patient ID {}: {}", patientId, e.getMessage(), e);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Internal server error");
+                error.put("patientId", patientId);
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+            }
+        });
+    }
+}
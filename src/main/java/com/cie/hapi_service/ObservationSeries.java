@@ -0,0 +1,244 @@
+package com.cie.hapi_service;
+
+import java.util.Arrays;
+
+/**
+ * The numeric values of one Observation code over time, held in growable
+ * primitive arrays so that large series cost 16 bytes per point instead of
+ * two boxed objects.
+ *
+ * <p>Timestamps are epoch milliseconds. The min, max and mean always describe
+ * every value added, also after the series is downsampled for output.
+ */
+public final class ObservationSeries {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] timestamps;
+
+    private double[] values;
+
+    private int size;
+
+    private boolean sorted = true;
+
+    private double min = Double.POSITIVE_INFINITY;
+
+    private double max = Double.NEGATIVE_INFINITY;
+
+    private double sum;
+
+    private int count;
+
+    public ObservationSeries() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public ObservationSeries(int capacity) {
+        timestamps = new long[Math.max(capacity, 1)];
+        values = new double[Math.max(capacity, 1)];
+    }
+
+    public void add(long timestamp, double value) {
+        if (size == timestamps.length) {
+            int capacity = size + (size >> 1) + 1;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        if (size > 0 && timestamp < timestamps[size - 1]) {
+            sorted = false;
+        }
+        timestamps[size] = timestamp;
+        values[size] = value;
+        size++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        count++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The number of values the statistics cover, which is more than
+     * {@link #size()} after downsampling.
+     */
+    public int count() {
+        return count;
+    }
+
+    public double min() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    public double max() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    public double mean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * The timestamps in ascending order, trimmed to the series size.
+     */
+    public long[] timestamps() {
+        sort();
+        return Arrays.copyOf(timestamps, size);
+    }
+
+    /**
+     * The values in timestamp order, trimmed to the series size.
+     */
+    public double[] values() {
+        sort();
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Downsamples to at most {@code threshold} points with
+     * Largest-Triangle-Three-Buckets, which keeps the first and last point and,
+     * from each bucket in between, the point that spans the largest triangle
+     * with its neighbours. Peaks and dips survive, unlike with averaging.
+     */
+    public ObservationSeries lttb(int threshold) {
+        sort();
+        if (threshold >= size || threshold < 3) {
+            return copy();
+        }
+        ObservationSeries sampled = withStatisticsOf(threshold);
+        sampled.append(timestamps[0], values[0]);
+
+        double bucketWidth = (double) (size - 2) / (threshold - 2);
+        int selected = 0;
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            // Average of the next bucket is the third corner of the triangle
+            int nextStart = (int) ((bucket + 1) * bucketWidth) + 1;
+            int nextEnd = Math.min((int) ((bucket + 2) * bucketWidth) + 1, size);
+            double averageTime = 0;
+            double averageValue = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                averageTime += timestamps[i];
+                averageValue += values[i];
+            }
+            int nextCount = nextEnd - nextStart;
+            averageTime /= nextCount;
+            averageValue /= nextCount;
+
+            int start = (int) (bucket * bucketWidth) + 1;
+            int end = (int) ((bucket + 1) * bucketWidth) + 1;
+            double selectedTime = timestamps[selected];
+            double selectedValue = values[selected];
+            double largestArea = -1;
+            int next = start;
+            for (int i = start; i < end; i++) {
+                double area = Math.abs((selectedTime - averageTime) * (values[i] - selectedValue)
+                        - (selectedTime - timestamps[i]) * (averageValue - selectedValue));
+                if (area > largestArea) {
+                    largestArea = area;
+                    next = i;
+                }
+            }
+            sampled.append(timestamps[next], values[next]);
+            selected = next;
+        }
+
+        sampled.append(timestamps[size - 1], values[size - 1]);
+        return sampled;
+    }
+
+    /**
+     * Downsamples to at most {@code buckets} points by splitting the time range
+     * into equal intervals and averaging the time and value of each non-empty one.
+     */
+    public ObservationSeries buckets(int buckets) {
+        sort();
+        if (buckets >= size || buckets < 1) {
+            return copy();
+        }
+        ObservationSeries sampled = withStatisticsOf(buckets);
+        long first = timestamps[0];
+        double width = (double) (timestamps[size - 1] - first + 1) / buckets;
+
+        int i = 0;
+        while (i < size) {
+            int bucket = (int) ((timestamps[i] - first) / width);
+            double timeSum = 0;
+            double valueSum = 0;
+            int points = 0;
+            while (i < size && (int) ((timestamps[i] - first) / width) == bucket) {
+                timeSum += timestamps[i];
+                valueSum += values[i];
+                points++;
+                i++;
+            }
+            sampled.append(Math.round(timeSum / points), valueSum / points);
+        }
+        return sampled;
+    }
+
+    private ObservationSeries copy() {
+        ObservationSeries copy = withStatisticsOf(size);
+        System.arraycopy(timestamps, 0, copy.timestamps, 0, size);
+        System.arraycopy(values, 0, copy.values, 0, size);
+        copy.size = size;
+        return copy;
+    }
+
+    private ObservationSeries withStatisticsOf(int capacity) {
+        ObservationSeries series = new ObservationSeries(capacity);
+        series.min = min;
+        series.max = max;
+        series.sum = sum;
+        series.count = count;
+        return series;
+    }
+
+    /**
+     * Adds a point without touching the statistics, which already cover the full series.
+     */
+    private void append(long timestamp, double value) {
+        timestamps[size] = timestamp;
+        values[size] = value;
+        size++;
+    }
+
+    // Results are normally requested sorted by date, so this rarely has work to do
+    private void sort() {
+        if (sorted) {
+            return;
+        }
+        long[] timeBuffer = new long[size];
+        double[] valueBuffer = new double[size];
+        mergeSort(0, size, timeBuffer, valueBuffer);
+        sorted = true;
+    }
+
+    /**
+     * Stable merge sort of both arrays by timestamp, without boxing.
+     */
+    private void mergeSort(int from, int to, long[] timeBuffer, double[] valueBuffer) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(from, middle, timeBuffer, valueBuffer);
+        mergeSort(middle, to, timeBuffer, valueBuffer);
+        if (timestamps[middle - 1] <= timestamps[middle]) {
+            return;
+        }
+        int left = from;
+        int right = middle;
+        int out = from;
+        while (left < middle || right < to) {
+            int take = right >= to || (left < middle && timestamps[left] <= timestamps[right]) ? left++ : right++;
+            timeBuffer[out] = timestamps[take];
+            valueBuffer[out] = values[take];
+            out++;
+        }
+        System.arraycopy(timeBuffer, from, timestamps, from, to - from);
+        System.arraycopy(valueBuffer, from, values, from, to - from);
+    }
+}
@@ -0,0 +1,73 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.time.Duration;
+
+/**
+ * Applies a socket timeout per kind of FHIR operation, so slow searches and
+ * batches can be given more time than single-resource reads.
+ */
+public class OperationTimeoutInterceptor implements IClientInterceptor {
+
+    private final String baseUrl;
+
+    private final RequestConfig defaults;
+
+    private final Duration readTimeout;
+
+    private final Duration searchTimeout;
+
+    private final Duration transactionTimeout;
+
+    public OperationTimeoutInterceptor(String baseUrl, RequestConfig defaults, Duration readTimeout,
+                                       Duration searchTimeout, Duration transactionTimeout) {
+        this.baseUrl = baseUrl;
+        this.defaults = defaults;
+        this.readTimeout = readTimeout;
+        this.searchTimeout = searchTimeout;
+        this.transactionTimeout = transactionTimeout;
+    }
+
+    @Override
+    public void interceptRequest(IHttpRequest request) {
+        if (!(request instanceof ApacheHttpRequest apacheRequest)) {
+            return;
+        }
+        Duration timeout = timeoutFor(FhirOperation.classify(request.getHttpVerbName(), request.getUri(), baseUrl));
+        if (timeout == null) {
+            return;
+        }
+        HttpRequestBase httpRequest = apacheRequest.getApacheRequest();
+        RequestConfig current = httpRequest.getConfig() != null ? httpRequest.getConfig() : defaults;
+        httpRequest.setConfig(RequestConfig.copy(current)
+                .setSocketTimeout((int) timeout.toMillis())
+                .build());
+    }
+
+    @Override
+    public void interceptResponse(IHttpResponse response) {
+        // Nothing to do
+    }
+
+    private Duration timeoutFor(FhirOperation operation) {
+        switch (operation) {
+            case READ:
+            case VREAD:
+                return readTimeout;
+            case SEARCH:
+            case PAGE:
+            case HISTORY:
+                return searchTimeout;
+            case TRANSACTION:
+                return transactionTimeout;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.cie.hapi_service;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/ops")
+@Tag(name = "Operations", description = "Runtime statistics for sizing and tuning the service")
+public class OperationsController {
+
+    @Autowired
+    private PatientCache patientCache;
+
+    @Autowired
+    private SubjectSearchCache subjectSearchCache;
+
+    @Autowired
+    private PatientNameIndex patientNameIndex;
+
+    @Autowired
+    private UpstreamRequestCoalescer upstreamRequestCoalescer;
+
+    @Autowired
+    private PoolingHttpClientConnectionManager fhirConnectionManager;
+
+    @Autowired
+    private UpstreamBulkhead upstreamBulkhead;
+
+    @Autowired
+    private UpstreamRouter upstreamRouter;
+
+    @Autowired
+    private ResourceStore resourceStore;
+
+    @GetMapping("/cache/patients")
+    @Operation(summary = "Get patient cache statistics", description = "Returns size, hit/miss, eviction and revalidation counters of the Patient read cache")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Statistics returned successfully")
+    })
+    public ResponseEntity<?> getPatientCacheStats() {
+        return ResponseEntity.ok(patientCache.stats());
+    }
+
+    @GetMapping("/cache/searches")
+    @Operation(summary = "Get search cache statistics", description = "Returns size, hit/miss and eviction counters of the subject search cache")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Statistics returned successfully")
+    })
+    public ResponseEntity<?> getSearchCacheStats() {
+        return ResponseEntity.ok(subjectSearchCache.stats());
+    }
+
+    @GetMapping("/name-index")
+    @Operation(summary = "Get name index statistics", description = "Returns size, covered prefixes, freshness and hit/miss counters of the Patient name index")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Statistics returned successfully")
+    })
+    public ResponseEntity<?> getNameIndexStats() {
+        return ResponseEntity.ok(patientNameIndex.stats());
+    }
+
+    @GetMapping("/coalescing")
+    @Operation(summary = "Get request coalescing statistics", description = "Returns how many upstream calls were executed and how many callers shared an in-flight call")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Statistics returned successfully")
+    })
+    public ResponseEntity<?> getCoalescingStats() {
+        return ResponseEntity.ok(upstreamRequestCoalescer.stats());
+    }
+
+    @GetMapping("/http-pool")
+    @Operation(summary = "Get upstream connection pool statistics", description = "Returns leased, available and pending connections of the FHIR client connection pool")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Statistics returned successfully")
+    })
+    public ResponseEntity<?> getHttpPoolStats() {
+        return ResponseEntity.ok(FhirHttpTransportConfig.poolStats(fhirConnectionManager));
+    }
+
+    @GetMapping("/upstreams")
+    @Operation(summary = "Get upstream server statistics", description = "Returns the replica groups and shards, with latency, calls in flight, failures and ejection state of each FHIR server")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Statistics returned successfully")
+    })
+    public ResponseEntity<?> getUpstreamStats() {
+        return ResponseEntity.ok(upstreamRouter.stats());
+    }
+
+    @GetMapping("/bulkheads")
+    @Operation(summary = "Get upstream bulkhead statistics", description = "Returns the adaptive concurrency limit, in-flight calls, latency, circuit state and rejections of each upstream compartment")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Statistics returned successfully")
+    })
+    public ResponseEntity<?> getBulkheadStats() {
+        return ResponseEntity.ok(upstreamBulkhead.stats());
+    }
+
+    @GetMapping("/store")
+    @Operation(summary = "Get resource store status", description = "Returns the export time, size per resource type and ingest state of the local resource store")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Status returned successfully")
+    })
+    public ResponseEntity<?> getStoreStats() {
+        return ResponseEntity.ok(resourceStore.stats());
+    }
+
+    @PostMapping("/store/ingest")
+    @Operation(summary = "Refresh the resource store", description = "Starts a Bulk Data $export and replaces the local resource store with its result once ingested")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "202", description = "Ingest started"),
+            @ApiResponse(responseCode = "409", description = "An ingest is already running or the store is disabled")
+    })
+    public ResponseEntity<?> startStoreIngest() {
+        if (!resourceStore.startIngest()) {
+            Map<String, String> error = new HashMap<>();
+            error.put("error", "Ingest not started");
+            error.put("message", "An ingest is already running or the resource store is disabled");
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(error);
+        }
+        return ResponseEntity.accepted().body(resourceStore.stats());
+    }
+
+    @DeleteMapping("/store")
+    @Operation(summary = "Clear the resource store", description = "Drops the current snapshot so that all reads go to the FHIR server")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "204", description = "Store cleared"),
+            @ApiResponse(responseCode = "500", description = "Internal server error")
+    })
+    public ResponseEntity<?> clearStore() {
+        try {
+            resourceStore.clear();
+            return ResponseEntity.noContent().build();
+        } catch (IOException e) {
+            Map<String, String> error = new HashMap<>();
+            error.put("error", "Internal server error");
+            error.put("message", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.cie.hapi_service;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+/**
+ * Reads many Patients with few round trips by sending them upstream as FHIR
+ * {@code batch} Bundles of GET entries.
+ */
+@Component
+public class PatientBatchReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatientBatchReader.class);
+
+    /** FHIR resource id syntax; anything else would change the upstream request URL. */
+    private static final Pattern PATIENT_ID = Pattern.compile("[A-Za-z0-9\\-.]{1,64}");
+
+    @Autowired
+    private FhirUpstreamService fhirUpstreamService;
+
+    @Autowired
+    private ThreadPoolTaskExecutor upstreamExecutor;
+
+    @Value("${fhir.batch.chunk-size:50}")
+    private int chunkSize;
+
+    @Value("${fhir.batch.max-concurrent-chunks:4}")
+    private int maxConcurrentChunks;
+
+    @Value("${fhir.upstream.call-timeout-ms:10000}")
+    private long callTimeoutMs;
+
+    /**
+     * Reads the given Patients and returns a {@code batch-response} Bundle with
+     * one entry per requested ID, in request order. Missing Patients get a 404
+     * entry and failed chunks an error entry, each with an OperationOutcome.
+     *
+     * @throws IllegalArgumentException if an ID is not a valid FHIR id
+     */
+    public Bundle read(List<String> ids) throws InterruptedException {
+        for (String id : ids) {
+            if (!isValidId(id)) {
+                throw new IllegalArgumentException("Invalid patient ID: " + id);
+            }
+        }
+        // A batch goes to one server, so with sharded upstreams the IDs are chunked per shard
+        Map<String, List<String>> idsByShard = new LinkedHashMap<>();
+        for (String id : new LinkedHashSet<>(ids)) {
+            idsByShard.computeIfAbsent(fhirUpstreamService.shardOf(id), shard -> new ArrayList<>()).add(id);
+        }
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> chunkShards = new ArrayList<>();
+        for (Map.Entry<String, List<String>> shard : idsByShard.entrySet()) {
+            List<String> shardIds = shard.getValue();
+            for (int start = 0; start < shardIds.size(); start += chunkSize) {
+                chunks.add(shardIds.subList(start, Math.min(start + chunkSize, shardIds.size())));
+                chunkShards.add(shard.getKey());
+            }
+        }
+
+        // Cap the chunks in flight so one large request cannot take over the upstream pool
+        Semaphore inFlight = new Semaphore(maxConcurrentChunks);
+        List<CompletableFuture<Bundle>> futures = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            List<String> chunk = chunks.get(i);
+            String shard = chunkShards.get(i);
+            if (!inFlight.tryAcquire(callTimeoutMs, TimeUnit.MILLISECONDS)) {
+                futures.add(CompletableFuture.failedFuture(new TimeoutException("No slot for the chunk within " + callTimeoutMs + " ms")));
+                continue;
+            }
+            CompletableFuture<Bundle> future;
+            try {
+                // The slot is freed when the upstream call ends, not when waiting for it times out
+                future = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return fhirUpstreamService.batch(shard, toBatch(chunk));
+                    } finally {
+                        inFlight.release();
+                    }
+                }, upstreamExecutor);
+            } catch (RuntimeException e) {
+                inFlight.release();
+                future = CompletableFuture.failedFuture(e);
+            }
+            futures.add(future.orTimeout(callTimeoutMs, TimeUnit.MILLISECONDS));
+        }
+
+        Map<String, Bundle.BundleEntryComponent> entriesById = new HashMap<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            List<String> chunk = chunks.get(i);
+            try {
+                Bundle response = futures.get(i).get();
+                collectEntries(chunk, response, entriesById);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                logger.error("Batch read of {} patients failed: {}", chunk.size(), cause.toString());
+                String status = cause instanceof TimeoutException ? "504 Gateway Timeout"
+                        : cause instanceof UpstreamRejectedException ? "503 Service Unavailable"
+                        : "502 Bad Gateway";
+                for (String id : chunk) {
+                    entriesById.put(id, errorEntry(status, OperationOutcome.IssueType.EXCEPTION,
+                            "Batch read failed: " + cause.getMessage()));
+                }
+            }
+        }
+
+        Bundle result = new Bundle();
+        result.setType(Bundle.BundleType.BATCHRESPONSE);
+        for (String id : ids) {
+            // Copy so that repeated IDs do not share one entry instance
+            result.addEntry(entriesById.get(id).copy());
+        }
+        return result;
+    }
+
+    /**
+     * Whether {@code id} is a plain FHIR id, without surrounding whitespace.
+     */
+    public static boolean isValidId(String id) {
+        return id != null && PATIENT_ID.matcher(id).matches();
+    }
+
+    private Bundle toBatch(List<String> ids) {
+        Bundle batch = new Bundle();
+        batch.setType(Bundle.BundleType.BATCH);
+        for (String id : ids) {
+            batch.addEntry().getRequest()
+                    .setMethod(Bundle.HTTPVerb.GET)
+                    .setUrl("Patient/" + id);
+        }
+        return batch;
+    }
+
+    private void collectEntries(List<String> chunk, Bundle response, Map<String, Bundle.BundleEntryComponent> entriesById) {
+        // batch-response entries line up with the request entries
+        List<Bundle.BundleEntryComponent> entries = response.getEntry();
+        for (int i = 0; i < chunk.size(); i++) {
+            String id = chunk.get(i);
+            if (i >= entries.size()) {
+                entriesById.put(id, errorEntry("502 Bad Gateway", OperationOutcome.IssueType.INCOMPLETE,
+                        "No entry for Patient/" + id + " in upstream batch response"));
+                continue;
+            }
+            Bundle.BundleEntryComponent upstream = entries.get(i);
+            String status = upstream.getResponse().getStatus();
+            if (upstream.getResource() instanceof Patient patient) {
+                Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+                entry.setFullUrl(patient.getIdElement().toVersionless().getValue());
+                entry.setResource(patient);
+                entry.getResponse().setStatus(status != null ? status : "200 OK");
+                entriesById.put(id, entry);
+            } else if (status != null && status.startsWith("404")) {
+                entriesById.put(id, errorEntry("404 Not Found", OperationOutcome.IssueType.NOTFOUND,
+                        "Patient/" + id + " not found"));
+            } else if (status != null && status.startsWith("410")) {
+                entriesById.put(id, errorEntry("410 Gone", OperationOutcome.IssueType.DELETED,
+                        "Patient/" + id + " has been deleted"));
+            } else {
+                Bundle.BundleEntryComponent entry = errorEntry(status != null ? status : "502 Bad Gateway",
+                        OperationOutcome.IssueType.EXCEPTION, "Reading Patient/" + id + " failed");
+                if (upstream.getResponse().getOutcome() != null) {
+                    entry.getResponse().setOutcome(upstream.getResponse().getOutcome());
+                }
+                entriesById.put(id, entry);
+            }
+        }
+    }
+
+    private static Bundle.BundleEntryComponent errorEntry(String status, OperationOutcome.IssueType type, String diagnostics) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(type)
+                .setDiagnostics(diagnostics);
+        Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+        entry.getResponse()
+                .setStatus(status)
+                .setOutcome(outcome);
+        return entry;
+    }
+}
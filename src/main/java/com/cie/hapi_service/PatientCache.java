@@ -0,0 +1,244 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hl7.fhir.r4.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of encoded Patient resources.
+ *
+ * <p>Entries hold the compact JSON bytes, so a hit costs no parsing or encoding.
+ * The cache is bounded by total bytes and uses Caffeine's W-TinyLFU eviction.
+ * Once an entry is older than the TTL it is revalidated with a conditional read
+ * on its version ETag, and the body is only downloaded again if it changed.
+ * While a Patient {@link SubscriptionManager} subscription is live, changes are
+ * pushed through {@link #prime} and {@link #invalidate}, and entries are
+ * trusted for the longer {@code fhir.subscriptions.cache-ttl}.
+ */
+@Component
+public class PatientCache implements MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatientCache.class);
+
+    /** Rough per-entry overhead on top of the JSON bytes, used for weighing. */
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    @Autowired
+    private FhirUpstreamService fhirUpstreamService;
+
+    @Autowired
+    private FhirJsonEncoder fhirJsonEncoder;
+
+    @Autowired
+    private SubscriptionManager subscriptionManager;
+
+    private final boolean enabled;
+
+    private final long ttlNanos;
+
+    private final long subscribedTtlNanos;
+
+    private final long maxBytes;
+
+    private final Cache<String, CachedPatient> cache;
+
+    private final CacheInvalidations invalidations = new CacheInvalidations();
+
+    private final LongAdder revalidatedUnchanged = new LongAdder();
+
+    private final LongAdder revalidatedChanged = new LongAdder();
+
+    public PatientCache(@Value("${fhir.cache.patient.enabled:true}") boolean enabled,
+                        @Value("${fhir.cache.patient.max-bytes:67108864}") long maxBytes,
+                        @Value("${fhir.cache.patient.ttl:60s}") Duration ttl,
+                        @Value("${fhir.cache.patient.retention:1h}") Duration retention,
+                        @Value("${fhir.subscriptions.cache-ttl:1h}") Duration subscribedTtl) {
+        this.enabled = enabled;
+        this.ttlNanos = ttl.toNanos();
+        this.subscribedTtlNanos = Math.max(ttl.toNanos(), subscribedTtl.toNanos());
+        this.maxBytes = maxBytes;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String id, CachedPatient entry) -> entry.json().length + id.length() + ENTRY_OVERHEAD_BYTES)
+                // Entries stay past the TTL so they can be revalidated; drop the ones nobody asks for
+                .expireAfterAccess(retention)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns the Patient with the given ID, reading through to the FHIR server
+     * on a miss or an expired entry.
+     */
+    public CachedPatient get(String id) {
+        if (!enabled) {
+            return fetch(id);
+        }
+
+        CachedPatient cached = cache.getIfPresent(id);
+        long stamp = invalidations.stamp(id);
+        if (cached == null) {
+            CachedPatient fetched = fetch(id);
+            putUnlessInvalidated(id, fetched, stamp);
+            return fetched;
+        }
+        long ttl = subscriptionManager.isLive("Patient") ? subscribedTtlNanos : ttlNanos;
+        if (System.nanoTime() - cached.fetchedAtNanos() < ttl) {
+            return cached;
+        }
+
+        CachedPatient revalidated = revalidate(id, cached);
+        putUnlessInvalidated(id, revalidated, stamp);
+        return revalidated;
+    }
+
+    /**
+     * Stores a Patient pushed by the server, unless a newer version is cached.
+     */
+    public void prime(Patient patient) {
+        if (!enabled) {
+            return;
+        }
+        String id = patient.getIdElement().getIdPart();
+        CachedPatient primed = encode(patient);
+        invalidations.invalidated(id);
+        cache.asMap().merge(id, primed, (existing, incoming) -> isOlder(incoming, existing) ? existing : incoming);
+    }
+
+    public void invalidate(String id) {
+        invalidations.invalidated(id);
+        cache.invalidate(id);
+    }
+
+    public void invalidateAll() {
+        invalidations.invalidatedAll();
+        cache.invalidateAll();
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("entries", cache.estimatedSize());
+        result.put("weightBytes", cache.policy().eviction().map(e -> e.weightedSize().orElse(0L)).orElse(0L));
+        result.put("maxBytes", maxBytes);
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("evictions", stats.evictionCount());
+        result.put("evictedBytes", stats.evictionWeight());
+        result.put("revalidatedUnchanged", revalidatedUnchanged.sum());
+        result.put("revalidatedChanged", revalidatedChanged.sum());
+        return result;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, cache, "patients");
+        FunctionCounter.builder("fhir.cache.revalidations", revalidatedUnchanged, LongAdder::sum)
+                .description("Expired Patient cache entries revalidated upstream")
+                .tag("cache", "patients")
+                .tag("result", "unchanged")
+                .register(registry);
+        FunctionCounter.builder("fhir.cache.revalidations", revalidatedChanged, LongAdder::sum)
+                .description("Expired Patient cache entries revalidated upstream")
+                .tag("cache", "patients")
+                .tag("result", "changed")
+                .register(registry);
+    }
+
+    private CachedPatient revalidate(String id, CachedPatient cached) {
+        if (cached.versionId() == null) {
+            return fetch(id);
+        }
+        try {
+            // Sends If-None-Match: W/"<version>"; a 304 comes back as null
+            Patient patient = fhirUpstreamService.readPatientIfChanged(id, cached.versionId());
+            if (patient == null) {
+                revalidatedUnchanged.increment();
+                return cached.refreshed(System.nanoTime());
+            }
+            revalidatedChanged.increment();
+            logger.debug("Patient {} changed from version {} to {}", id, cached.versionId(), versionOf(patient));
+            return encode(patient);
+        } catch (ResourceNotFoundException | ResourceGoneException e) {
+            cache.invalidate(id);
+            throw e;
+        } catch (UpstreamRejectedException e) {
+            // The upstream is shedding load; a stale copy is better than a 503
+            logger.debug("Serving stale Patient {} while upstream rejects calls: {}", id, e.getMessage());
+            return cached;
+        }
+    }
+
+    private void putUnlessInvalidated(String id, CachedPatient patient, long stamp) {
+        // A change pushed while this read was in flight is newer than what it returned
+        if (invalidations.unchangedSince(id, stamp)) {
+            cache.put(id, patient);
+        }
+    }
+
+    private CachedPatient fetch(String id) {
+        Patient patient = fhirUpstreamService.readPatient(id);
+        return encode(patient);
+    }
+
+    private CachedPatient encode(Patient patient) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(2048);
+        try {
+            fhirJsonEncoder.encode(patient, false, buffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new CachedPatient(buffer.toByteArray(), versionOf(patient), System.nanoTime());
+    }
+
+    private static boolean isOlder(CachedPatient patient, CachedPatient than) {
+        try {
+            return patient.versionId() != null && than.versionId() != null
+                    && Long.parseLong(patient.versionId()) < Long.parseLong(than.versionId());
+        } catch (NumberFormatException e) {
+            // Version IDs are opaque on some servers; the pushed copy wins
+            return false;
+        }
+    }
+
+    private static String versionOf(Patient patient) {
+        String version = patient.getIdElement().getVersionIdPart();
+        return version != null ? version : patient.getMeta().getVersionId();
+    }
+
+    /**
+     * A cached Patient as compact FHIR JSON.
+     */
+    public record CachedPatient(byte[] json, String versionId, long fetchedAtNanos) {
+
+        CachedPatient refreshed(long nowNanos) {
+            return new CachedPatient(json, versionId, nowNanos);
+        }
+
+        public String eTag() {
+            return versionId == null ? null : "W/\"" + versionId + "\"";
+        }
+    }
+}
@@ -1,20 +1,29 @@
 package com.cie.hapi_service;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Patient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.hl7.fhir.r4.model.Bundle;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -22,8 +31,20 @@ import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.tags.Tag;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 @RestController
 @RequestMapping("/api/patients")
@@ -33,105 +54,407 @@ public class PatientController {
     private static final Logger logger = LoggerFactory.getLogger(PatientController.class);
 
     @Autowired
-    private IGenericClient fhirClient;
+    private FhirUpstreamService fhirUpstreamService;
 
     @Autowired
-    private FhirContext fhirContext;
+    private FhirRequestExecutor fhirRequestExecutor;
+
+    @Autowired
+    private ThreadPoolTaskExecutor upstreamExecutor;
+
+    @Autowired
+    private PatientCache patientCache;
+
+    @Autowired
+    private PatientBatchReader patientBatchReader;
+
+    @Autowired
+    private PatientNameIndex patientNameIndex;
+
+    @Value("${fhir.batch.max-ids:10000}")
+    private int maxBatchIds;
+
+    @Value("${fhir.upstream.call-timeout-ms:10000}")
+    private long callTimeoutMs;
+
+    @Value("${fhir.everything.max-pages:10}")
+    private int everythingMaxPages;
 
     @GetMapping("/{id}")
     @Operation(summary = "Get patient by ID", description = "Retrieves a Patient resource by its unique identifier")
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "Patient found and returned successfully"),
             @ApiResponse(responseCode = "404", description = "Patient not found"),
-            @ApiResponse(responseCode = "503", description = "FHIR server connection failed"),
+            @ApiResponse(responseCode = "503", description = "FHIR server connection failed or overloaded; see Retry-After"),
+            @ApiResponse(responseCode = "504", description = "No response within the request deadline"),
             @ApiResponse(responseCode = "500", description = "Internal server error")
     })
-    public ResponseEntity<?> getPatientById(
+    public DeferredResult<ResponseEntity<?>> getPatientById(
             @Parameter(description = "Patient ID", required = true, example = "123")
             @PathVariable String id) {
-        try {
-            logger.info("Fetching patient with ID: {}", id);
+        return fhirRequestExecutor.submit(() -> {
+            try {
+                logger.info("Fetching patient with ID: {}", id);
             
-            // Read the patient by ID from the FHIR server
-            Patient patient = fhirClient.read()
-                    .resource(Patient.class)
-                    .withId(id)
-                    .execute();
+                // Read the patient through the cache; stale entries are revalidated upstream
+                PatientCache.CachedPatient patient = patientCache.get(id);
 
-            logger.info("Successfully retrieved patient: {}", id);
+                logger.info("Successfully retrieved patient: {}", id);
 
-            return ResponseEntity.ok(fhirContext.newJsonParser().encodeResourceToString(patient));
+                ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                        .contentType(FhirResourceHttpMessageConverter.FHIR_JSON);
+                if (patient.eTag() != null) {
+                    response.eTag(patient.eTag());
+                }
+                return response.body(patient);
             
-        } catch (ResourceNotFoundException e) {
-            logger.warn("Patient not found with ID: {}", id);
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "Patient not found");
-            error.put("patientId", id);
-            error.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(error);
+            } catch (ResourceNotFoundException e) {
+                logger.warn("Patient not found with ID: {}", id);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Patient not found");
+                error.put("patientId", id);
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body(error);
             
-        } catch (FhirClientConnectionException e) {
-            logger.error("Failed to connect to FHIR server: {}", e.getMessage());
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "FHIR server connection failed");
-            error.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(error);
+            } catch (UpstreamRejectedException e) {
+                logger.warn("Upstream call rejected: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server overloaded");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, e.getRetryAfterSeconds())
+                        .body(error);
+
+            } catch (FhirClientConnectionException e) {
+                logger.error("Failed to connect to FHIR server: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server connection failed");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(error);
             
-        } catch (Exception e) {
-            logger.error("Error fetching patient with ID {}: {}", id, e.getMessage(), e);
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "Internal server error");
-            error.put("patientId", id);
-            error.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
-        }
+            } catch (Exception e) {
+                logger.error("Error fetching patient with ID {}: {}", id, e.getMessage(), e);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Internal server error");
+                error.put("patientId", id);
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+            }
+        });
+    }
+
+    @GetMapping("/{id}/everything")
+    @Operation(summary = "Get everything for a patient", description = "Retrieves the Patient together with its Observations, DiagnosticReports and DocumentReferences in a single Bundle. The upstream calls run concurrently; each search follows up to fhir.everything.max-pages pages and flags what was left out.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Patient and related resources returned successfully"),
+            @ApiResponse(responseCode = "404", description = "Patient not found"),
+            @ApiResponse(responseCode = "503", description = "FHIR server connection failed or overloaded; see Retry-After"),
+            @ApiResponse(responseCode = "504", description = "FHIR server did not answer in time, or the request deadline passed"),
+            @ApiResponse(responseCode = "500", description = "Internal server error")
+    })
+    public DeferredResult<ResponseEntity<?>> getPatientEverything(
+            @Parameter(description = "Patient ID", required = true, example = "123")
+            @PathVariable String id) {
+        return fhirRequestExecutor.submit(() -> {
+            try {
+                logger.info("Fetching everything for patient ID: {}", id);
+
+                // Fan out all four upstream calls at once, each with its own deadline
+                CompletableFuture<Patient> patientFuture = callAsync(() -> fhirUpstreamService.readPatient(id));
+                CompletableFuture<List<Bundle>> observationsFuture = callAsync(() -> searchPages(Observation.class, id));
+                CompletableFuture<List<Bundle>> diagnosticReportsFuture = callAsync(() -> searchPages(DiagnosticReport.class, id));
+                CompletableFuture<List<Bundle>> documentReferencesFuture = callAsync(() -> searchPages(DocumentReference.class, id));
+
+                // The patient itself is mandatory; a failure here fails the whole request
+                Patient patient;
+                try {
+                    patient = patientFuture.get();
+                } catch (ExecutionException e) {
+                    throw unwrap(e.getCause());
+                }
+
+                Bundle everything = new Bundle();
+                everything.setType(Bundle.BundleType.SEARCHSET);
+                everything.addEntry()
+                        .setFullUrl(patient.getIdElement().toVersionless().getValue())
+                        .setResource(patient);
+
+                // Related resources are best effort; failures are reported as OperationOutcome entries
+                addSearchEntries(everything, "Observation", observationsFuture, id);
+                addSearchEntries(everything, "DiagnosticReport", diagnosticReportsFuture, id);
+                addSearchEntries(everything, "DocumentReference", documentReferencesFuture, id);
+                everything.setTotal(everything.getEntry().size());
+
+                logger.info("Collected {} resources for patient: {}", everything.getTotal(), id);
+
+                return ResponseEntity.ok(everything);
+
+            } catch (ResourceNotFoundException e) {
+                logger.warn("Patient not found with ID: {}", id);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Patient not found");
+                error.put("patientId", id);
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body(error);
+
+            } catch (UpstreamRejectedException e) {
+                logger.warn("Upstream call rejected: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server overloaded");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, e.getRetryAfterSeconds())
+                        .body(error);
+
+            } catch (FhirClientConnectionException e) {
+                logger.error("Failed to connect to FHIR server: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server connection failed");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(error);
+
+            } catch (RejectedExecutionException e) {
+                logger.warn("Upstream executor saturated; rejecting everything for patient ID {}", id);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Service overloaded");
+                error.put("message", "Too many upstream calls in progress");
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, "1")
+                        .body(error);
+
+            } catch (TimeoutException e) {
+                logger.error("Timed out reading patient with ID {} after {} ms", id, callTimeoutMs);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server timeout");
+                error.put("patientId", id);
+                error.put("message", "Patient read did not complete within " + callTimeoutMs + " ms");
+                return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT).body(error);
+
+            } catch (Exception e) {
+                logger.error("Error fetching everything for patient ID {}: {}", id, e.getMessage(), e);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Internal server error");
+                error.put("patientId", id);
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+            }
+        });
+    }
+
+    @PostMapping("/_batch")
+    @Operation(summary = "Get patients by IDs", description = "Retrieves many Patient resources in one call. The IDs are sent upstream as FHIR batch Bundles in chunks, and the chunks run concurrently. Returns a batch-response Bundle with one entry per requested ID, in request order.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Batch completed; check each entry's response status"),
+            @ApiResponse(responseCode = "400", description = "Invalid request - a non-empty list of valid FHIR ids is required"),
+            @ApiResponse(responseCode = "504", description = "No response within the request deadline"),
+            @ApiResponse(responseCode = "500", description = "Internal server error")
+    })
+    public DeferredResult<ResponseEntity<?>> getPatientsByIds(
+            @RequestBody List<String> ids) {
+        return fhirRequestExecutor.submit(() -> {
+            if (ids == null || ids.isEmpty() || ids.stream().anyMatch(id -> id == null || id.isBlank())) {
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Invalid request");
+                error.put("message", "Request body must be a non-empty JSON array of patient IDs");
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error);
+            }
+            if (ids.size() > maxBatchIds) {
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Invalid request");
+                error.put("message", "At most " + maxBatchIds + " patient IDs are allowed per request");
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error);
+            }
+            List<String> trimmedIds = ids.stream().map(String::trim).toList();
+            for (String id : trimmedIds) {
+                if (!PatientBatchReader.isValidId(id)) {
+                    // IDs go into the batch entry URLs as they are
+                    Map<String, String> error = new HashMap<>();
+                    error.put("error", "Invalid request");
+                    error.put("message", "Invalid patient ID: " + id);
+                    return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error);
+                }
+            }
+            try {
+                logger.info("Batch reading {} patients", ids.size());
+
+                Bundle bundle = patientBatchReader.read(trimmedIds);
+
+                logger.info("Completed batch read of {} patients", ids.size());
+
+                return ResponseEntity.ok(bundle);
+
+            } catch (Exception e) {
+                logger.error("Error batch reading {} patients: {}", ids.size(), e.getMessage(), e);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Internal server error");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+            }
+        });
     }
 
     @GetMapping("/search")
-    @Operation(summary = "Search patients by name", description = "Searches for Patient resources matching the provided name")
+    @Operation(summary = "Search patients by name", description = "Searches for Patient resources matching the provided name. When the local name index is enabled, queries it covers are answered from it with Patient summaries")
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "Search completed successfully"),
-            @ApiResponse(responseCode = "400", description = "Invalid request - name parameter is required"),
-            @ApiResponse(responseCode = "503", description = "FHIR server connection failed"),
+            @ApiResponse(responseCode = "400", description = "Invalid request - name is required and _elements, _summary, _count and _sort must be valid"),
+            @ApiResponse(responseCode = "503", description = "FHIR server connection failed or overloaded; see Retry-After"),
+            @ApiResponse(responseCode = "504", description = "No response within the request deadline"),
             @ApiResponse(responseCode = "500", description = "Internal server error")
     })
-    public ResponseEntity<?> searchPatientsByName(
+    public DeferredResult<ResponseEntity<?>> searchPatientsByName(
             @Parameter(description = "Patient name to search for", required = true, example = "John Doe")
-            @RequestParam String name) {
-        try {
-            logger.info("Searching for patients with name: {}", name);
-            
-            // Search for patients by name
-            Bundle bundle = fhirClient.search()
-                    .forResource(Patient.class)
-                    .where(Patient.NAME.matches().value(name))
-                    .returnBundle(Bundle.class)
-                    .execute();
+            @RequestParam String name,
+            @Parameter(description = "Comma-separated elements to return for each patient", example = "name,birthDate")
+            @RequestParam(name = "_elements", required = false) String elements,
+            @Parameter(description = "Summary mode: true, text, data, count or false", example = "true")
+            @RequestParam(name = "_summary", required = false) String summary,
+            @Parameter(description = "Page size requested from the FHIR server", example = "50")
+            @RequestParam(name = "_count", required = false) Integer count,
+            @Parameter(description = "Comma-separated sort parameters, prefixed with - for descending", example = "family")
+            @RequestParam(name = "_sort", required = false) String sort,
+            @Parameter(description = "Also match name words with a typo, among the patients in the local name index", example = "false")
+            @RequestParam(name = "fuzzy", defaultValue = "false") boolean fuzzy) {
+        return fhirRequestExecutor.submit(() -> {
+            SearchOptions options;
+            try {
+                options = SearchOptions.of(elements, summary, count, sort);
+            } catch (IllegalArgumentException e) {
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Invalid request");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error);
+            }
+            try {
+                logger.info("Searching for patients with name: {}", name);
 
-            logger.info("Found {} patients matching name: {}", bundle.getTotal(), name);
+                if (options.isEmpty()) {
+                    Bundle indexed = patientNameIndex.search(name, fuzzy);
+                    if (indexed != null) {
+                        logger.info("Found {} patients matching name {} in the name index", indexed.getTotal(), name);
+                        return ResponseEntity.ok(indexed);
+                    }
+                }
+            
+                // Search for patients by name
+                Instant requestedAt = Instant.now();
+                Bundle bundle = fhirUpstreamService.searchPatientsByName(name, options);
+                if (options.isEmpty()) {
+                    patientNameIndex.recordSearch(name, bundle, requestedAt);
+                }
 
-            // Convert bundle to JSON string
-            String jsonResponse = fhirContext.newJsonParser()
-                    .setPrettyPrint(true)
-                    .encodeResourceToString(bundle);
+                logger.info("Found {} patients matching name: {}", bundle.getTotal(), name);
 
-            return ResponseEntity.ok(jsonResponse);
+                return ResponseEntity.ok(bundle);
             
-        } catch (FhirClientConnectionException e) {
-            logger.error("Failed to connect to FHIR server: {}", e.getMessage());
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "FHIR server connection failed");
-            error.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(error);
+            } catch (UpstreamRejectedException e) {
+                logger.warn("Upstream call rejected: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server overloaded");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, e.getRetryAfterSeconds())
+                        .body(error);
+
+            } catch (FhirClientConnectionException e) {
+                logger.error("Failed to connect to FHIR server: {}", e.getMessage());
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "FHIR server connection failed");
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(error);
             
-        } catch (Exception e) {
-            logger.error("Error searching for patients with name {}: {}", name, e.getMessage(), e);
-            Map<String, String> error = new HashMap<>();
-            error.put("error", "Internal server error");
-            error.put("name", name);
-            error.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+            } catch (Exception e) {
+                logger.error("Error searching for patients with name {}: {}", name, e.getMessage(), e);
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Internal server error");
+                error.put("name", name);
+                error.put("message", e.getMessage());
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+            }
+        });
+    }
+
+    /**
+     * Runs an upstream call on {@code upstreamExecutor} under a deadline of its
+     * own, {@code fhir.upstream.call-timeout-ms} within the request's. When it
+     * passes, the call's HTTP request is aborted rather than left running.
+     *
+     * @throws RejectedExecutionException if the upstream pool is saturated
+     */
+    private <T> CompletableFuture<T> callAsync(Supplier<T> call) {
+        Duration timeout = Duration.ofMillis(callTimeoutMs);
+        RequestDeadline requestDeadline = RequestDeadline.current();
+        RequestDeadline deadline = requestDeadline != null ? requestDeadline.child(timeout) : new RequestDeadline(timeout);
+        CompletableFuture<T> future = CompletableFuture.supplyAsync(() -> {
+            try (RequestDeadline.Scope ignored = deadline.bind()) {
+                return call.get();
+            }
+        }, upstreamExecutor).orTimeout(callTimeoutMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, error) -> {
+            if (error instanceof TimeoutException) {
+                deadline.cancel(RequestDeadline.DEADLINE_EXCEEDED);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * The patient's resources of a type, following next links for up to
+     * {@code fhir.everything.max-pages} pages.
+     */
+    private List<Bundle> searchPages(Class<? extends IBaseResource> resourceType, String patientId) {
+        List<Bundle> pages = new ArrayList<>();
+        Bundle page = fhirUpstreamService.searchBySubject(resourceType, patientId);
+        pages.add(page);
+        while (page.getLink(Bundle.LINK_NEXT) != null && pages.size() < everythingMaxPages) {
+            page = fhirUpstreamService.nextPage(page);
+            pages.add(page);
         }
+        return pages;
     }
-}
 
+    private void addSearchEntries(Bundle target, String resourceType, CompletableFuture<List<Bundle>> future, String patientId) {
+        try {
+            List<Bundle> pages = future.join();
+            for (Bundle page : pages) {
+                for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+                    target.addEntry()
+                            .setFullUrl(entry.getFullUrl())
+                            .setResource(entry.getResource());
+                }
+            }
+            if (pages.get(pages.size() - 1).getLink(Bundle.LINK_NEXT) != null) {
+                // Say so rather than pass a partial result off as complete
+                OperationOutcome outcome = new OperationOutcome();
+                outcome.addIssue()
+                        .setSeverity(OperationOutcome.IssueSeverity.WARNING)
+                        .setCode(OperationOutcome.IssueType.INCOMPLETE)
+                        .setDiagnostics(resourceType + " results beyond " + pages.size() + " pages were left out; use /api/"
+                                + resourceType.toLowerCase(Locale.ROOT) + "s/patient/" + patientId + "/stream for all of them");
+                target.addEntry()
+                        .setResource(outcome)
+                        .getSearch().setMode(Bundle.SearchEntryMode.OUTCOME);
+            }
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            logger.warn("Failed to fetch {} resources for patient {}: {}", resourceType, patientId, cause.toString());
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue()
+                    .setSeverity(OperationOutcome.IssueSeverity.WARNING)
+                    .setCode(cause instanceof TimeoutException
+                            ? OperationOutcome.IssueType.TIMEOUT
+                            : OperationOutcome.IssueType.EXCEPTION)
+                    .setDiagnostics(resourceType + " search failed: " + cause.getMessage());
+            target.addEntry()
+                    .setResource(outcome)
+                    .getSearch().setMode(Bundle.SearchEntryMode.OUTCOME);
+        }
+    }
+
+    private static Exception unwrap(Throwable cause) {
+        if (cause instanceof Exception exception) {
+            return exception;
+        }
+        return new IllegalStateException(cause);
+    }
+}
@@ -0,0 +1,784 @@
+package com.cie.hapi_service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.text.Normalizer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory index of Patient names for the name search, filled from the
+ * results of upstream name searches.
+ *
+ * <p>Names are split into words, folded to lower case and stripped of accents,
+ * so {@code Zoë} is found by {@code zoe}. The words are kept sorted, which
+ * finds every word starting with a query word as one range, and by their letter
+ * pairs, which finds words a typo or two away. Each word points at compact
+ * summaries of the Patients whose names contain it.
+ *
+ * <p>The index only answers a query when it holds every match. The FHIR server
+ * answering a one-word query completely, in a single page, marks that word as
+ * covered, and with it every query containing a word that starts with it.
+ * Patients changed or deleted since are pulled in every
+ * {@code fhir.name-index.refresh-interval} from the type's {@code _history}, as
+ * a search would not return deleted Patients, or pushed by a live Patient
+ * {@link SubscriptionManager} subscription. If neither happened recently,
+ * queries go to the FHIR server again.
+ *
+ * <p>A search can be answered before a change and recorded after it, so a
+ * Patient only replaces the indexed one if it is not an older version, by
+ * {@code meta.versionId} or else {@code meta.lastUpdated}. Removed Patients
+ * leave a tombstone for {@link #TOMBSTONE_TTL} that keeps such late results
+ * from bringing them back.
+ *
+ * <p>Off unless {@code fhir.name-index.enabled} is set: an indexed answer holds
+ * at most {@code fhir.name-index.max-results} Patient summaries, where the same
+ * search sent upstream returns every full Patient.
+ */
+@Component
+public class PatientNameIndex implements MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatientNameIndex.class);
+
+    /** Tag HAPI puts on resources that carry only some of their elements. */
+    private static final String SUBSETTED_SYSTEM = "http://terminology.hl7.org/CodeSystem/v3-ObservationValue";
+
+    /** Margin for clock differences between this service and the FHIR server. */
+    private static final Duration REFRESH_OVERLAP = Duration.ofSeconds(30);
+
+    private static final int REFRESH_PAGE_SIZE = 500;
+
+    /** Longer than a search can be in flight; see {@code fhir.request.deadline}. */
+    static final Duration TOMBSTONE_TTL = Duration.ofMinutes(2);
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    @Autowired
+    private FhirUpstreamService fhirUpstreamService;
+
+    @Autowired
+    private SubscriptionManager subscriptionManager;
+
+    private final boolean enabled;
+
+    private final int maxPatients;
+
+    private final int maxResults;
+
+    private final Duration refreshInterval;
+
+    private final String serverBase;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Guarded by lock
+    private final Map<String, Summary> patients = new HashMap<>();
+
+    private final TreeMap<String, Set<String>> words = new TreeMap<>();
+
+    private final Map<String, Set<String>> pairs = new HashMap<>();
+
+    private final Set<String> covered = new HashSet<>();
+
+    /** Recently removed Patients, oldest first. */
+    private final LinkedHashMap<String, Tombstone> tombstones = new LinkedHashMap<>();
+
+    /** Times the index was cleared for reaching {@code maxPatients}. */
+    private long resets;
+
+    /** Changes at or after this instant are pulled by the next refresh; {@code null} while nothing is covered. */
+    private Instant refreshFrom;
+
+    private volatile long refreshedAtNanos;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private ScheduledExecutorService refresher;
+
+    public PatientNameIndex(@Value("${fhir.name-index.enabled:false}") boolean enabled,
+                            @Value("${fhir.name-index.max-patients:100000}") int maxPatients,
+                            @Value("${fhir.name-index.max-results:20}") int maxResults,
+                            @Value("${fhir.name-index.refresh-interval:60s}") Duration refreshInterval,
+                            @Value("${fhir.server.base-url}") String serverBase) {
+        this.enabled = enabled;
+        this.maxPatients = maxPatients;
+        this.maxResults = maxResults;
+        this.refreshInterval = refreshInterval;
+        this.serverBase = serverBase.endsWith("/") ? serverBase : serverBase + "/";
+    }
+
+    @PostConstruct
+    void start() {
+        if (!enabled) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "patient-name-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(this::refresh,
+                refreshInterval.toMillis(), refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Answers a name search from the index. Every word of the query must start
+     * a word of the patient's name; with {@code fuzzy}, words of three letters
+     * or more may also be one typo off, or two from six letters.
+     *
+     * <p>A fuzzy query the index does not cover is answered from the indexed
+     * patients if any of them match, as the FHIR server cannot match typos.
+     *
+     * @return a searchset of Patient summaries, best matches first, or
+     * {@code null} if the index may not hold every match
+     */
+    public Bundle search(String name, boolean fuzzy) {
+        if (!enabled) {
+            return null;
+        }
+        List<String> terms = words(name);
+        if (terms.isEmpty()) {
+            return null;
+        }
+
+        List<Summary> ranked;
+        int total;
+        lock.readLock().lock();
+        try {
+            boolean complete = isCurrent() && isCovered(terms);
+            if (!complete && !fuzzy) {
+                misses.increment();
+                return null;
+            }
+            Map<String, Integer> costs = null;
+            for (String term : terms) {
+                Map<String, Integer> matches = match(term, fuzzy);
+                if (costs == null) {
+                    costs = matches;
+                } else {
+                    costs.keySet().retainAll(matches.keySet());
+                    costs.replaceAll((id, cost) -> cost + matches.get(id));
+                }
+                if (costs.isEmpty()) {
+                    break;
+                }
+            }
+            if (!complete && costs.isEmpty()) {
+                misses.increment();
+                return null;
+            }
+            total = costs.size();
+            ranked = costs.entrySet().stream()
+                    .sorted(Map.Entry.<String, Integer>comparingByValue()
+                            .thenComparing(entry -> patients.get(entry.getKey()).sortKey())
+                            .thenComparing(Map.Entry::getKey))
+                    .limit(maxResults)
+                    .map(entry -> patients.get(entry.getKey()))
+                    .toList();
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        hits.increment();
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(total);
+        for (Summary summary : ranked) {
+            bundle.addEntry()
+                    .setFullUrl(serverBase + "Patient/" + summary.id())
+                    .setResource(summary.toPatient())
+                    .getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+        }
+        return bundle;
+    }
+
+    /**
+     * Adds the Patients of an upstream name search, and marks a one-word query
+     * as covered if the server returned all matches in this page.
+     *
+     * @param requestedAt when the search was sent; the next refresh pulls changes from then on
+     */
+    public void recordSearch(String name, Bundle bundle, Instant requestedAt) {
+        if (!enabled) {
+            return;
+        }
+        List<String> terms = words(name);
+        boolean complete = bundle.getLink(Bundle.LINK_NEXT) == null
+                && (!bundle.hasTotal() || bundle.getTotal() <= bundle.getEntry().size());
+        lock.writeLock().lock();
+        try {
+            long resetsBefore = resets;
+            addAll(bundle);
+            // A reset part way through dropped the Patients added before it
+            complete &= resets == resetsBefore;
+            if (complete && terms.size() == 1 && covered.add(terms.get(0))) {
+                if (refreshFrom == null) {
+                    refreshFrom = requestedAt.minus(REFRESH_OVERLAP);
+                    refreshedAtNanos = System.nanoTime();
+                }
+                logger.debug("Name index now covers names starting with {}", terms.get(0));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds or replaces a Patient, e.g. one pushed by a Subscription.
+     */
+    public void update(Patient patient) {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            add(patient);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a Patient, e.g. one a Subscription reported deleted.
+     */
+    public void remove(String id) {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            // The version that was deleted is unknown, so no earlier search result may restore it
+            delete(id, null, null);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets which queries are covered, so they go upstream until answered again.
+     */
+    public void clearCoverage() {
+        lock.writeLock().lock();
+        try {
+            covered.clear();
+            refreshFrom = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Pulls the Patients changed since the last refresh. Runs on a timer.
+     */
+    void refresh() {
+        Instant from;
+        lock.readLock().lock();
+        try {
+            from = refreshFrom;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (from == null) {
+            return;
+        }
+        if (subscriptionManager.isLive("Patient")) {
+            // Changes are pushed through update() and remove()
+            refreshedAtNanos = System.nanoTime();
+            return;
+        }
+
+        Instant started = Instant.now();
+        int changed = 0;
+        Set<String> seen = new HashSet<>();
+        try {
+            Bundle page = fhirUpstreamService.patientHistorySince(Date.from(from), REFRESH_PAGE_SIZE);
+            while (true) {
+                changed += applyHistory(page, seen);
+                if (page.getLink(Bundle.LINK_NEXT) == null) {
+                    break;
+                }
+                page = fhirUpstreamService.nextPage(page);
+            }
+        } catch (RuntimeException e) {
+            // Coverage lapses once refreshes have failed for two intervals
+            logger.warn("Could not refresh the Patient name index: {}", e.getMessage());
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (refreshFrom != null) {
+                refreshFrom = started.minus(REFRESH_OVERLAP);
+                refreshedAtNanos = System.nanoTime();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.debug("Refreshed Patient name index with {} changed patients", changed);
+    }
+
+    /**
+     * Applies one page of Patient history: the newest version of each Patient
+     * not in {@code seen} is added, or removed if it was deleted.
+     *
+     * @return how many Patients were added, changed or removed
+     */
+    int applyHistory(Bundle page, Set<String> seen) {
+        int changed = 0;
+        lock.writeLock().lock();
+        try {
+            for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+                String id = entry.getResource() != null
+                        ? entry.getResource().getIdElement().getIdPart()
+                        : new IdType(entry.hasRequest() ? entry.getRequest().getUrl() : entry.getFullUrl()).getIdPart();
+                // History lists newer versions first, so only the first one of a Patient counts
+                if (id == null || !seen.add(id)) {
+                    continue;
+                }
+                if (entry.hasRequest() && entry.getRequest().getMethod() == Bundle.HTTPVerb.DELETE) {
+                    Date deletedAt = entry.hasResponse() ? entry.getResponse().getLastModified() : null;
+                    if (delete(id, new IdType(entry.getRequest().getUrl()).getVersionIdPart(),
+                            deletedAt != null ? deletedAt.getTime() : null)) {
+                        changed++;
+                    }
+                } else if (entry.getResource() instanceof Patient patient && add(patient)) {
+                    changed++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return changed;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            result.put("enabled", enabled);
+            result.put("patients", patients.size());
+            result.put("maxPatients", maxPatients);
+            result.put("words", words.size());
+            result.put("coveredPrefixes", covered.size());
+            result.put("current", refreshFrom != null && isCurrent());
+            result.put("refreshFrom", refreshFrom != null ? refreshFrom.toString() : null);
+        } finally {
+            lock.readLock().unlock();
+        }
+        result.put("hits", hits.sum());
+        result.put("misses", misses.sum());
+        return result;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("fhir.name-index.patients", this, index -> index.size())
+                .description("Patients in the name index")
+                .register(registry);
+        FunctionCounter.builder("fhir.name-index.searches", hits, LongAdder::sum)
+                .description("Patient name searches by where they were answered")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("fhir.name-index.searches", misses, LongAdder::sum)
+                .description("Patient name searches by where they were answered")
+                .tag("result", "upstream")
+                .register(registry);
+    }
+
+    private int size() {
+        lock.readLock().lock();
+        try {
+            return patients.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean isCurrent() {
+        return System.nanoTime() - refreshedAtNanos < refreshInterval.multipliedBy(2).toNanos()
+                || subscriptionManager.isLive("Patient");
+    }
+
+    private boolean isCovered(List<String> terms) {
+        for (String term : terms) {
+            for (int length = 1; length <= term.length(); length++) {
+                if (covered.contains(term.substring(0, length))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Patients with a word matching {@code term}, with the cost of the best
+     * match: 0 for the whole word, 1 for a prefix, 1 plus the typos otherwise.
+     */
+    private Map<String, Integer> match(String term, boolean fuzzy) {
+        Map<String, Integer> matches = new HashMap<>();
+        for (Map.Entry<String, Set<String>> word : words.subMap(term, true, term + Character.MAX_VALUE, false).entrySet()) {
+            addMatches(matches, word.getValue(), word.getKey().length() == term.length() ? 0 : 1);
+        }
+        int maxEdits = fuzzy ? maxEdits(term) : 0;
+        if (maxEdits == 0) {
+            return matches;
+        }
+
+        // Each typo changes at most three letter pairs of the query
+        List<String> termPairs = pairs(term);
+        Map<String, Integer> shared = new HashMap<>();
+        for (String pair : termPairs) {
+            for (String word : pairs.getOrDefault(pair, Set.of())) {
+                shared.merge(word, 1, Integer::sum);
+            }
+        }
+        int minShared = Math.max(1, termPairs.size() - 3 * maxEdits);
+        for (Map.Entry<String, Integer> candidate : shared.entrySet()) {
+            if (candidate.getValue() < minShared) {
+                continue;
+            }
+            int distance = prefixDistance(term, candidate.getKey(), maxEdits);
+            if (distance > 0 && distance <= maxEdits) {
+                addMatches(matches, words.get(candidate.getKey()), 1 + distance);
+            }
+        }
+        return matches;
+    }
+
+    private static void addMatches(Map<String, Integer> matches, Set<String> ids, int cost) {
+        for (String id : ids) {
+            matches.merge(id, cost, Math::min);
+        }
+    }
+
+    /** Returns how many Patients were added or changed. Requires the write lock. */
+    private int addAll(Bundle bundle) {
+        int changed = 0;
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.getResource() instanceof Patient patient
+                    && (!entry.hasSearch() || entry.getSearch().getMode() != Bundle.SearchEntryMode.OUTCOME)
+                    && add(patient)) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /** Requires the write lock. */
+    private boolean add(Patient patient) {
+        String id = patient.getIdElement().getIdPart();
+        if (id == null) {
+            return false;
+        }
+        Summary summary = Summary.of(id, patient);
+        Tombstone tombstone = tombstones.get(id);
+        if (tombstone != null) {
+            if (!tombstone.isExpired() && compareVersions(summary.versionId(), summary.lastUpdated(),
+                    tombstone.versionId(), tombstone.lastUpdated()) <= 0) {
+                return false;
+            }
+            tombstones.remove(id);
+        }
+        Summary existing = patients.get(id);
+        if (existing != null) {
+            if (existing.equals(summary) || compareVersions(summary.versionId(), summary.lastUpdated(),
+                    existing.versionId(), existing.lastUpdated()) < 0) {
+                return false;
+            }
+            unindex(existing);
+        } else if (patients.size() >= maxPatients) {
+            // Coverage cannot hold once patients are left out; start over and fill up again
+            logger.info("Patient name index reached {} patients; clearing it", maxPatients);
+            patients.clear();
+            words.clear();
+            pairs.clear();
+            covered.clear();
+            refreshFrom = null;
+            resets++;
+        }
+        patients.put(id, summary);
+        for (String word : summary.words()) {
+            words.computeIfAbsent(word, key -> {
+                for (String pair : pairs(key)) {
+                    pairs.computeIfAbsent(pair, p -> new HashSet<>()).add(key);
+                }
+                return new HashSet<>();
+            }).add(id);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a Patient and leaves a tombstone with the deleted version, if known.
+     * Returns whether it was indexed. Requires the write lock.
+     */
+    private boolean delete(String id, String versionId, Long lastUpdated) {
+        Iterator<Tombstone> oldest = tombstones.values().iterator();
+        while (oldest.hasNext() && oldest.next().isExpired()) {
+            oldest.remove();
+        }
+        tombstones.remove(id);
+        tombstones.put(id, new Tombstone(versionId, lastUpdated, System.nanoTime()));
+        Summary removed = patients.remove(id);
+        if (removed == null) {
+            return false;
+        }
+        unindex(removed);
+        return true;
+    }
+
+    /** Requires the write lock. */
+    private void unindex(Summary summary) {
+        for (String word : summary.words()) {
+            Set<String> ids = words.get(word);
+            if (ids == null || !ids.remove(summary.id()) || !ids.isEmpty()) {
+                continue;
+            }
+            words.remove(word);
+            for (String pair : pairs(word)) {
+                Set<String> pairWords = pairs.get(pair);
+                if (pairWords != null && pairWords.remove(word) && pairWords.isEmpty()) {
+                    pairs.remove(pair);
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits a name or query into lower-case words without accents, the way
+     * FHIR servers normalize string search parameters.
+     */
+    static List<String> words(String text) {
+        List<String> result = new ArrayList<>();
+        if (text == null) {
+            return result;
+        }
+        String folded = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+        for (String word : SEPARATORS.split(folded)) {
+            if (!word.isEmpty()) {
+                result.add(word);
+            }
+        }
+        return result;
+    }
+
+    /** Letter pairs of a word, the first one marked as the start. */
+    private static List<String> pairs(String word) {
+        List<String> result = new ArrayList<>(word.length());
+        result.add("^" + word.charAt(0));
+        for (int i = 1; i < word.length(); i++) {
+            result.add(word.substring(i - 1, i + 1));
+        }
+        return result;
+    }
+
+    /**
+     * Orders two versions of a Patient by {@code meta.versionId} if both are
+     * numbers, else by {@code meta.lastUpdated}; 0 if neither tells them apart.
+     */
+    static int compareVersions(String versionId, Long lastUpdated, String otherVersionId, Long otherLastUpdated) {
+        Long version = versionNumber(versionId);
+        Long otherVersion = versionNumber(otherVersionId);
+        if (version != null && otherVersion != null && !version.equals(otherVersion)) {
+            return Long.compare(version, otherVersion);
+        }
+        if (lastUpdated != null && otherLastUpdated != null) {
+            return Long.compare(lastUpdated, otherLastUpdated);
+        }
+        return 0;
+    }
+
+    private static Long versionNumber(String versionId) {
+        if (versionId == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(versionId);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static int maxEdits(String term) {
+        return term.length() < 3 ? 0 : term.length() < 6 ? 1 : 2;
+    }
+
+    /**
+     * Fewest insertions, deletions, substitutions and swaps of adjacent letters
+     * that turn {@code term} into a prefix of {@code word}, or
+     * {@code maxEdits + 1} if that is more than {@code maxEdits}.
+     */
+    static int prefixDistance(String term, String word, int maxEdits) {
+        int m = term.length();
+        int n = Math.min(word.length(), m + maxEdits);
+        int[] beforePrevious = new int[n + 1];
+        int[] previous = new int[n + 1];
+        int[] current = new int[n + 1];
+        for (int j = 0; j <= n; j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= m; i++) {
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= n; j++) {
+                int cost = term.charAt(i - 1) == word.charAt(j - 1) ? 0 : 1;
+                int distance = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && term.charAt(i - 1) == word.charAt(j - 2) && term.charAt(i - 2) == word.charAt(j - 1)) {
+                    distance = Math.min(distance, beforePrevious[j - 2] + 1);
+                }
+                current[j] = distance;
+                rowMin = Math.min(rowMin, distance);
+            }
+            if (rowMin > maxEdits) {
+                return maxEdits + 1;
+            }
+            int[] recycled = beforePrevious;
+            beforePrevious = previous;
+            previous = current;
+            current = recycled;
+        }
+        int best = previous[0];
+        for (int j = 1; j <= n; j++) {
+            best = Math.min(best, previous[j]);
+        }
+        return Math.min(best, maxEdits + 1);
+    }
+
+    /**
+     * The elements of a Patient needed to show it in a picker.
+     */
+    record Summary(String id, String versionId, Long lastUpdated, List<Name> names, String gender, String birthDate) {
+
+        static Summary of(String id, Patient patient) {
+            List<Name> names = new ArrayList<>();
+            for (HumanName name : patient.getName()) {
+                names.add(new Name(name.hasUse() ? name.getUse().toCode() : null, name.getText(), name.getFamily(),
+                        strings(name.getGiven()), strings(name.getPrefix()), strings(name.getSuffix())));
+            }
+            String versionId = patient.getIdElement().getVersionIdPart();
+            Date lastUpdated = patient.getMeta().getLastUpdated();
+            return new Summary(id, versionId != null ? versionId : patient.getMeta().getVersionId(),
+                    lastUpdated != null ? lastUpdated.getTime() : null, List.copyOf(names),
+                    patient.hasGender() ? patient.getGender().toCode() : null,
+                    patient.hasBirthDate() ? patient.getBirthDateElement().getValueAsString() : null);
+        }
+
+        Set<String> words() {
+            Set<String> result = new LinkedHashSet<>();
+            for (Name name : names) {
+                result.addAll(PatientNameIndex.words(name.text()));
+                result.addAll(PatientNameIndex.words(name.family()));
+                name.given().forEach(given -> result.addAll(PatientNameIndex.words(given)));
+                name.prefix().forEach(prefix -> result.addAll(PatientNameIndex.words(prefix)));
+                name.suffix().forEach(suffix -> result.addAll(PatientNameIndex.words(suffix)));
+            }
+            return result;
+        }
+
+        String sortKey() {
+            return names.stream()
+                    .map(name -> (name.family() != null ? name.family() : "") + " " + String.join(" ", name.given()))
+                    .findFirst()
+                    .orElse("")
+                    .toLowerCase(Locale.ROOT);
+        }
+
+        Patient toPatient() {
+            Patient patient = new Patient();
+            patient.setId(id);
+            patient.getMeta().setVersionId(versionId);
+            if (lastUpdated != null) {
+                patient.getMeta().setLastUpdated(new Date(lastUpdated));
+            }
+            patient.getMeta().addTag(SUBSETTED_SYSTEM, "SUBSETTED", "Resource encoded in summary mode");
+            for (Name name : names) {
+                HumanName humanName = patient.addName()
+                        .setText(name.text())
+                        .setFamily(name.family());
+                if (name.use() != null) {
+                    humanName.setUse(HumanName.NameUse.fromCode(name.use()));
+                }
+                name.given().forEach(humanName::addGiven);
+                name.prefix().forEach(humanName::addPrefix);
+                name.suffix().forEach(humanName::addSuffix);
+            }
+            if (gender != null) {
+                patient.setGender(Enumerations.AdministrativeGender.fromCode(gender));
+            }
+            if (birthDate != null) {
+                patient.setBirthDateElement(new DateType(birthDate));
+            }
+            return patient;
+        }
+
+        private static List<String> strings(List<? extends PrimitiveType<String>> values) {
+            return values.stream()
+                    .map(PrimitiveType::getValue)
+                    .filter(value -> value != null)
+                    .toList();
+        }
+    }
+
+    /**
+     * A removed Patient: the version deleted, if known, and when it was removed.
+     */
+    private record Tombstone(String versionId, Long lastUpdated, long removedAtNanos) {
+
+        boolean isExpired() {
+            return System.nanoTime() - removedAtNanos >= TOMBSTONE_TTL.toNanos();
+        }
+    }
+
+    record Name(String use, String text, String family, List<String> given, List<String> prefix, List<String> suffix) {
+    }
+}
@@ -0,0 +1,120 @@
+package com.cie.hapi_service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ContentType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An upstream FHIR JSON response that is passed to the client without being
+ * parsed into HAPI model objects.
+ *
+ * <p>The body is copied straight from the upstream connection. Only when the
+ * server base URL has to be rewritten, or pretty output was asked for, is it
+ * run through a streaming JSON tokenizer, which rewrites the Bundle's
+ * {@code link[].url} and {@code entry[].fullUrl} and leaves everything else,
+ * including decimal precision, as sent. Writing or closing the response
+ * releases the upstream connection.
+ */
+public class RawFhirResponse implements Closeable {
+
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder()
+            .disable(JsonFactory.Feature.INTERN_FIELD_NAMES)
+            .build();
+
+    private final CloseableHttpResponse response;
+
+    private final String upstreamBaseUrl;
+
+    private final String publicBaseUrl;
+
+    RawFhirResponse(CloseableHttpResponse response, String upstreamBaseUrl, String publicBaseUrl) {
+        this.response = response;
+        this.upstreamBaseUrl = upstreamBaseUrl;
+        this.publicBaseUrl = publicBaseUrl;
+    }
+
+    /**
+     * The upstream Content-Type, if any.
+     */
+    public String getContentType() {
+        ContentType contentType = ContentType.get(response.getEntity());
+        return contentType != null ? contentType.toString() : null;
+    }
+
+    public void writeTo(OutputStream outputStream, boolean pretty) throws IOException {
+        HttpEntity entity = response.getEntity();
+        try (CloseableHttpResponse ignored = response; InputStream body = entity.getContent()) {
+            if (!pretty && !isRewriting()) {
+                body.transferTo(outputStream);
+            } else {
+                copy(body, outputStream, pretty);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        response.close();
+    }
+
+    private boolean isRewriting() {
+        return publicBaseUrl != null && !publicBaseUrl.isEmpty() && !publicBaseUrl.equals(upstreamBaseUrl);
+    }
+
+    private void copy(InputStream body, OutputStream outputStream, boolean pretty) throws IOException {
+        boolean rewriting = isRewriting();
+        try (JsonParser parser = JSON_FACTORY.createParser(body);
+             JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream)) {
+            // The generator must not close the servlet stream
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            if (pretty) {
+                generator.useDefaultPrettyPrinter();
+            }
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (rewriting && token == JsonToken.VALUE_STRING && isBundleUrl(parser.getParsingContext())) {
+                    generator.writeString(rewrite(parser.getText()));
+                } else {
+                    // Exact copy keeps decimals such as 1.50 as they were sent
+                    generator.copyCurrentEventExact(parser);
+                }
+            }
+        }
+    }
+
+    private String rewrite(String url) {
+        return url.startsWith(upstreamBaseUrl) ? publicBaseUrl + url.substring(upstreamBaseUrl.length()) : url;
+    }
+
+    /**
+     * Whether the current value is a top-level {@code link[].url} or {@code entry[].fullUrl}.
+     */
+    private static boolean isBundleUrl(JsonStreamContext context) {
+        String name = context.getCurrentName();
+        String arrayName;
+        if ("url".equals(name)) {
+            arrayName = "link";
+        } else if ("fullUrl".equals(name)) {
+            arrayName = "entry";
+        } else {
+            return false;
+        }
+        JsonStreamContext array = context.getParent();
+        if (array == null || !array.inArray()) {
+            return false;
+        }
+        JsonStreamContext root = array.getParent();
+        return root != null && root.inObject() && arrayName.equals(root.getCurrentName())
+                && root.getParent() != null && root.getParent().inRoot();
+    }
+}
@@ -0,0 +1,49 @@
+package com.cie.hapi_service;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes {@link RawFhirResponse} bodies, i.e. upstream FHIR JSON passed through
+ * unparsed. Honours {@code _pretty=true} like {@link FhirResourceHttpMessageConverter}.
+ */
+public class RawFhirResponseHttpMessageConverter extends AbstractHttpMessageConverter<RawFhirResponse> {
+
+    public RawFhirResponseHttpMessageConverter() {
+        super(StandardCharsets.UTF_8,
+                new MediaType("application", "fhir+json", StandardCharsets.UTF_8),
+                new MediaType("application", "json", StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return RawFhirResponse.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected RawFhirResponse readInternal(Class<? extends RawFhirResponse> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Raw FHIR responses cannot be read", inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(RawFhirResponse response, HttpOutputMessage outputMessage) throws IOException {
+        response.writeTo(outputMessage.getBody(), FhirResourceHttpMessageConverter.isPrettyRequested());
+    }
+
+    @Override
+    protected Long getContentLength(RawFhirResponse response, MediaType contentType) {
+        // Sent chunked; the upstream length no longer holds once the body is rewritten or decompressed
+        return null;
+    }
+}
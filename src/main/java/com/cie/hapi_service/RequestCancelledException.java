@@ -0,0 +1,12 @@
+package com.cie.hapi_service;
+
+/**
+ * Thrown when upstream work is skipped or interrupted because the client
+ * request it serves has passed its deadline or was abandoned.
+ */
+public class RequestCancelledException extends RuntimeException {
+
+    public RequestCancelledException(String reason) {
+        super("Request cancelled: " + reason);
+    }
+}
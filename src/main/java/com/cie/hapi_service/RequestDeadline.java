@@ -0,0 +1,157 @@
+package com.cie.hapi_service;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The deadline of one client request, and the upstream HTTP requests made on
+ * its behalf so they can be aborted when the deadline passes or the client
+ * goes away.
+ *
+ * <p>The deadline is bound to the thread handling the request and carried to
+ * {@code upstreamExecutor} tasks by {@link #propagate(Runnable)}. Upstream
+ * requests are registered by {@link RequestDeadlineInterceptor} and, for
+ * raw requests, by {@link FhirUpstreamService}.
+ */
+public final class RequestDeadline {
+
+    /** Cancel reason when the deadline passed. */
+    public static final String DEADLINE_EXCEEDED = "deadline exceeded";
+
+    /** Cancel reason when the client went away before the response. */
+    public static final String CLIENT_GONE = "client disconnected";
+
+    private static final ThreadLocal<RequestDeadline> CURRENT = new ThreadLocal<>();
+
+    private final long deadlineNanos;
+
+    private final Set<HttpRequestBase> requests = ConcurrentHashMap.newKeySet();
+
+    private final Set<RequestDeadline> children = ConcurrentHashMap.newKeySet();
+
+    private volatile String cancelReason;
+
+    public RequestDeadline(Duration timeout) {
+        this(System.nanoTime() + timeout.toNanos());
+    }
+
+    private RequestDeadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * A deadline for one part of this request, such as one of several
+     * concurrent upstream calls. It passes after {@code timeout} or with this
+     * deadline, whichever is first, and is cancelled when this one is.
+     */
+    public RequestDeadline child(Duration timeout) {
+        RequestDeadline child = new RequestDeadline(Math.min(deadlineNanos, System.nanoTime() + timeout.toNanos()));
+        children.add(child);
+        // Closes the race with a cancel that iterated the children before the add
+        if (isCancelled()) {
+            child.cancel(cancelReason);
+        }
+        return child;
+    }
+
+    /**
+     * The deadline bound to the current thread, or {@code null} outside a request.
+     */
+    public static RequestDeadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds this deadline to the current thread until the returned scope is closed.
+     */
+    public Scope bind() {
+        RequestDeadline previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> {
+            if (previous != null) {
+                CURRENT.set(previous);
+            } else {
+                CURRENT.remove();
+            }
+        };
+    }
+
+    /**
+     * Wraps a task so it runs with the deadline of the submitting thread, if any.
+     */
+    public static Runnable propagate(Runnable task) {
+        RequestDeadline deadline = CURRENT.get();
+        if (deadline == null) {
+            return task;
+        }
+        return () -> {
+            try (Scope ignored = deadline.bind()) {
+                task.run();
+            }
+        };
+    }
+
+    public long remainingMillis() {
+        return Math.max(0, (deadlineNanos - System.nanoTime()) / 1_000_000);
+    }
+
+    public boolean isCancelled() {
+        return cancelReason != null;
+    }
+
+    public String getCancelReason() {
+        return cancelReason;
+    }
+
+    /**
+     * Whether the client went away, as opposed to the deadline passing.
+     */
+    public boolean isAbandoned() {
+        return CLIENT_GONE.equals(cancelReason);
+    }
+
+    /**
+     * Aborts every registered upstream request and any registered later.
+     * A completed request is unaffected by an abort.
+     */
+    public void cancel(String reason) {
+        cancelReason = reason;
+        for (HttpRequestBase request : requests) {
+            request.abort();
+        }
+        for (RequestDeadline child : children) {
+            child.cancel(reason);
+        }
+    }
+
+    /**
+     * Tracks an upstream request so {@link #cancel} can abort it.
+     *
+     * @throws RequestCancelledException if the request is already cancelled or past its deadline
+     */
+    void register(HttpRequestBase request) {
+        if (isCancelled()) {
+            throw new RequestCancelledException(cancelReason);
+        }
+        if (remainingMillis() == 0) {
+            throw new RequestCancelledException(DEADLINE_EXCEEDED);
+        }
+        requests.add(request);
+        // Closes the race with a cancel that iterated the set before the add
+        if (isCancelled()) {
+            request.abort();
+        }
+    }
+
+    /**
+     * A bound deadline; closing restores the previous binding.
+     */
+    public interface Scope extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+}
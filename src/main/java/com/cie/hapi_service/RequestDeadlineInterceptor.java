@@ -0,0 +1,50 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * Registers each FHIR client request with the current {@link RequestDeadline}
+ * so it can be aborted, and shortens its socket timeout to the time left.
+ * Must be registered after {@link OperationTimeoutInterceptor}.
+ */
+public class RequestDeadlineInterceptor implements IClientInterceptor {
+
+    private final RequestConfig defaults;
+
+    public RequestDeadlineInterceptor(RequestConfig defaults) {
+        this.defaults = defaults;
+    }
+
+    @Override
+    public void interceptRequest(IHttpRequest request) {
+        RequestDeadline deadline = RequestDeadline.current();
+        if (deadline == null || !(request instanceof ApacheHttpRequest apacheRequest)) {
+            return;
+        }
+        HttpRequestBase httpRequest = apacheRequest.getApacheRequest();
+        deadline.register(httpRequest);
+        httpRequest.setConfig(clamp(httpRequest.getConfig() != null ? httpRequest.getConfig() : defaults, deadline));
+    }
+
+    @Override
+    public void interceptResponse(IHttpResponse response) {
+        // Nothing to do
+    }
+
+    /**
+     * Limits the socket timeout to the time left before the deadline.
+     */
+    static RequestConfig clamp(RequestConfig config, RequestDeadline deadline) {
+        int remaining = (int) Math.min(Integer.MAX_VALUE, Math.max(1, deadline.remainingMillis()));
+        int socketTimeout = config.getSocketTimeout();
+        if (socketTimeout > 0 && socketTimeout <= remaining) {
+            return config;
+        }
+        return RequestConfig.copy(config).setSocketTimeout(remaining).build();
+    }
+}
@@ -0,0 +1,252 @@
+package com.cie.hapi_service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A local copy of the FHIR server's data for batch workloads, fed by Bulk
+ * Data {@code $export} and served from memory-mapped files.
+ *
+ * <p>An ingest exports the configured types, builds a new
+ * {@link ResourceStoreSnapshot} next to the current one and then swaps it in,
+ * so reads are never blocked. Lookups fall back to the FHIR server (the caller
+ * gets {@code null}) when the store is disabled, empty or older than
+ * {@code fhir.store.max-age}, or when the patient was not in the export.
+ * Subscription notifications mark a patient's resources of a type as changed,
+ * and the snapshot is not used for them until an export taken after the
+ * change replaces it. The marks live in memory only, and changes made while
+ * the service was down are not reported at all, so a snapshot reopened after a
+ * restart counts as changed for every type until the next ingest.
+ */
+@Component
+public class ResourceStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResourceStore.class);
+
+    private static final String CURRENT = "CURRENT";
+
+    @Autowired
+    private BulkExportClient bulkExportClient;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${fhir.store.enabled:true}")
+    private boolean enabled;
+
+    @Value("${fhir.store.directory:${java.io.tmpdir}/hapi-service-store}")
+    private Path directory;
+
+    @Value("${fhir.store.max-age:24h}")
+    private Duration maxAge;
+
+    @Value("${fhir.store.types:Patient,Observation,DiagnosticReport,DocumentReference}")
+    private List<String> types;
+
+    private volatile ResourceStoreSnapshot snapshot;
+
+    private final AtomicBoolean ingesting = new AtomicBoolean();
+
+    // "Type/patientId", or "Type" for all patients, to when a change was reported
+    private final Map<String, Instant> changes = new ConcurrentHashMap<>();
+
+    private volatile Instant lastIngestStarted;
+
+    private volatile Instant lastIngestCompleted;
+
+    private volatile String lastIngestError;
+
+    @PostConstruct
+    void openCurrentSnapshot() {
+        if (!enabled) {
+            return;
+        }
+        Path current = directory.resolve(CURRENT);
+        if (!Files.exists(current)) {
+            return;
+        }
+        try {
+            snapshot = ResourceStoreSnapshot.open(directory.resolve(Files.readString(current).trim()));
+            types.forEach(this::markChanged);
+            logger.info("Opened resource store snapshot from {}; it is used again after the next ingest",
+                    snapshot.getTransactionTime());
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not open resource store snapshot in {}: {}", directory, e.toString());
+        }
+    }
+
+    /**
+     * Starts an export and ingest in the background.
+     *
+     * @return {@code false} if one is already running
+     */
+    public boolean startIngest() {
+        if (!enabled || !ingesting.compareAndSet(false, true)) {
+            return false;
+        }
+        lastIngestStarted = Instant.now();
+        lastIngestError = null;
+        Thread thread = new Thread(this::ingest, "resource-store-ingest");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * The patient's stored resources of the given type, or {@code null} when the
+     * request has to go to the FHIR server.
+     */
+    public StoredResources find(String type, String patientId) {
+        ResourceStoreSnapshot current = usableSnapshot(type);
+        StoredResources resources = null;
+        if (current != null) {
+            String id = patientId.trim().startsWith("Patient/") ? patientId.trim().substring("Patient/".length()) : patientId.trim();
+            if (!changedSince(current, type, id)) {
+                resources = current.find(type, id);
+                if (resources == null && current.containsPatient(id)) {
+                    // Exported patient without resources of this type
+                    resources = StoredResources.empty(current.getTransactionTime());
+                }
+            }
+        }
+        if (enabled) {
+            Counter.builder("fhir.store.lookups")
+                    .description("Lookups in the local resource store")
+                    .tag("resource", type)
+                    .tag("result", resources != null ? "hit" : "fallback")
+                    .register(meterRegistry)
+                    .increment();
+        }
+        return resources;
+    }
+
+    /**
+     * Records that the patient's resources of a type changed on the FHIR
+     * server, so the current snapshot is no longer used for them.
+     */
+    public void markChanged(String type, String patientId) {
+        if (enabled) {
+            changes.put(type + "/" + FhirUpstreamService.normalizePatientId(patientId), Instant.now());
+        }
+    }
+
+    /**
+     * Records that resources of a type changed for patients that cannot be told.
+     */
+    public void markChanged(String type) {
+        if (enabled) {
+            changes.put(type, Instant.now());
+        }
+    }
+
+    /**
+     * Drops the current snapshot; reads go to the FHIR server until the next ingest.
+     */
+    public void clear() throws IOException {
+        ResourceStoreSnapshot current = snapshot;
+        snapshot = null;
+        Files.deleteIfExists(directory.resolve(CURRENT));
+        if (current != null) {
+            // Mapped buffers in use stay readable after their files are deleted
+            FileSystemUtils.deleteRecursively(current.getDirectory());
+        }
+    }
+
+    public Map<String, Object> stats() {
+        ResourceStoreSnapshot current = snapshot;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("ingesting", ingesting.get());
+        stats.put("lastIngestStarted", lastIngestStarted != null ? lastIngestStarted.toString() : null);
+        stats.put("lastIngestCompleted", lastIngestCompleted != null ? lastIngestCompleted.toString() : null);
+        stats.put("lastIngestError", lastIngestError);
+        if (current != null) {
+            stats.put("transactionTime", current.getTransactionTime().toString());
+            stats.put("stale", isStale(current));
+            stats.put("changedSinceExport", changes.size());
+            stats.put("types", current.stats());
+        }
+        return stats;
+    }
+
+    private ResourceStoreSnapshot usableSnapshot(String type) {
+        ResourceStoreSnapshot current = snapshot;
+        if (!enabled || current == null || !current.hasType(type) || isStale(current)) {
+            return null;
+        }
+        return current;
+    }
+
+    private boolean changedSince(ResourceStoreSnapshot current, String type, String patientId) {
+        Instant patientChanged = changes.get(type + "/" + patientId);
+        Instant typeChanged = changes.get(type);
+        return (patientChanged != null && !patientChanged.isBefore(current.getTransactionTime()))
+                || (typeChanged != null && !typeChanged.isBefore(current.getTransactionTime()));
+    }
+
+    private boolean isStale(ResourceStoreSnapshot current) {
+        return current.getTransactionTime().plus(maxAge).isBefore(Instant.now());
+    }
+
+    private void ingest() {
+        Path target = directory.resolve("snapshot-" + System.currentTimeMillis());
+        Path downloads = target.resolve("download");
+        try {
+            BulkExportClient.Export export = bulkExportClient.export(types, downloads);
+            ResourceStoreSnapshot built = ResourceStoreSnapshot.build(target, export.transactionTime(), export.files());
+            FileSystemUtils.deleteRecursively(downloads);
+
+            Path pointer = directory.resolve(CURRENT + ".tmp");
+            Files.writeString(pointer, target.getFileName().toString(), StandardCharsets.UTF_8);
+            Files.move(pointer, directory.resolve(CURRENT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            ResourceStoreSnapshot previous = snapshot;
+            snapshot = built;
+            // The new export already has what changed before it was taken
+            changes.values().removeIf(changedAt -> changedAt.isBefore(built.getTransactionTime()));
+            lastIngestCompleted = Instant.now();
+            logger.info("Resource store now serves the export from {}", built.getTransactionTime());
+            if (previous != null && !previous.getDirectory().equals(target)) {
+                FileSystemUtils.deleteRecursively(previous.getDirectory());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lastIngestError = "Interrupted";
+            deleteQuietly(target);
+        } catch (Exception e) {
+            logger.error("Resource store ingest failed: {}", e.getMessage(), e);
+            lastIngestError = e.getMessage();
+            deleteQuietly(target);
+        } finally {
+            ingesting.set(false);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            FileSystemUtils.deleteRecursively(path);
+        } catch (IOException e) {
+            logger.warn("Could not delete {}: {}", path, e.toString());
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.cie.hapi_service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * One immutable, memory-mapped copy of exported resources, indexed by patient.
+ *
+ * <p>While a snapshot is built, the NDJSON lines of each resource type are
+ * regrouped so that all resources of one patient are adjacent. A lookup is
+ * then a single hash probe that yields a read-only slice of the mapped file,
+ * which is written to the client as is. On disk a snapshot directory holds:
+ * <ul>
+ *   <li>{@code snapshot.properties}: the export transaction time and types</li>
+ *   <li>{@code <Type>.<n>.ndjson}: data segments of at most about 1 GiB</li>
+ *   <li>{@code <Type>.idx}: patient ID to segment, offset, length and count</li>
+ * </ul>
+ */
+final class ResourceStoreSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResourceStoreSnapshot.class);
+
+    /** A mapped buffer is limited to 2 GiB, so data is split into segments below that. */
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder()
+            .disable(JsonFactory.Feature.INTERN_FIELD_NAMES)
+            .build();
+
+    private static final String PROPERTIES = "snapshot.properties";
+
+    private final Path directory;
+
+    private final Instant transactionTime;
+
+    private final Map<String, TypeIndex> types;
+
+    private ResourceStoreSnapshot(Path directory, Instant transactionTime, Map<String, TypeIndex> types) {
+        this.directory = directory;
+        this.transactionTime = transactionTime;
+        this.types = types;
+    }
+
+    /**
+     * The resources of one patient in one data segment.
+     */
+    private record Region(int segment, long offset, int length, int count) {
+    }
+
+    private record TypeIndex(MappedByteBuffer[] segments, Map<String, Region> regions, long bytes, long resources) {
+    }
+
+    /**
+     * Builds a snapshot in {@code directory} from downloaded NDJSON files and opens it.
+     * Lines without a patient are dropped.
+     */
+    static ResourceStoreSnapshot build(Path directory, Instant transactionTime, Map<String, List<Path>> files)
+            throws IOException {
+        Files.createDirectories(directory);
+        for (Map.Entry<String, List<Path>> type : files.entrySet()) {
+            buildType(directory, type.getKey(), type.getValue());
+        }
+        Properties properties = new Properties();
+        properties.setProperty("transactionTime", transactionTime.toString());
+        properties.setProperty("types", String.join(",", files.keySet()));
+        try (Writer writer = Files.newBufferedWriter(directory.resolve(PROPERTIES))) {
+            properties.store(writer, "Resource store snapshot");
+        }
+        return open(directory);
+    }
+
+    static ResourceStoreSnapshot open(Path directory) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(directory.resolve(PROPERTIES))) {
+            properties.load(reader);
+        }
+        Map<String, TypeIndex> types = new LinkedHashMap<>();
+        for (String type : properties.getProperty("types", "").split(",")) {
+            if (!type.isEmpty()) {
+                types.put(type, openType(directory, type));
+            }
+        }
+        return new ResourceStoreSnapshot(directory, Instant.parse(properties.getProperty("transactionTime")), types);
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    Instant getTransactionTime() {
+        return transactionTime;
+    }
+
+    boolean hasType(String type) {
+        return types.containsKey(type);
+    }
+
+    /**
+     * The patient's resources of the given type, or {@code null} when the
+     * snapshot has none.
+     */
+    StoredResources find(String type, String patientId) {
+        TypeIndex index = types.get(type);
+        Region region = index != null ? index.regions().get(patientId) : null;
+        if (region == null) {
+            return null;
+        }
+        ByteBuffer slice = index.segments()[region.segment()].slice((int) region.offset(), region.length());
+        return new StoredResources(slice, region.count(), transactionTime);
+    }
+
+    /**
+     * Whether the exported Patients include this one, i.e. a missing entry of
+     * another type means the patient had no such resources at export time.
+     */
+    boolean containsPatient(String patientId) {
+        TypeIndex patients = types.get("Patient");
+        return patients != null && patients.regions().containsKey(patientId);
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, TypeIndex> type : types.entrySet()) {
+            Map<String, Object> typeStats = new LinkedHashMap<>();
+            typeStats.put("patients", type.getValue().regions().size());
+            typeStats.put("resources", type.getValue().resources());
+            typeStats.put("bytes", type.getValue().bytes());
+            typeStats.put("segments", type.getValue().segments().length);
+            stats.put(type.getKey(), typeStats);
+        }
+        return stats;
+    }
+
+    /**
+     * Extracts the patient an NDJSON line belongs to: the {@code id} of a
+     * Patient, otherwise the {@code subject} or {@code patient} reference.
+     */
+    static String patientId(String type, byte[] line, int length) throws IOException {
+        boolean patient = "Patient".equals(type);
+        try (JsonParser parser = JSON_FACTORY.createParser(line, 0, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (patient && "id".equals(name) && value == JsonToken.VALUE_STRING) {
+                    return parser.getText();
+                }
+                if (!patient && ("subject".equals(name) || "patient".equals(name)) && value == JsonToken.START_OBJECT) {
+                    String id = referencedPatient(parser);
+                    if (id != null) {
+                        return id;
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String referencedPatient(JsonParser parser) throws IOException {
+        String id = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("reference".equals(name) && value == JsonToken.VALUE_STRING) {
+                String reference = parser.getText();
+                int start = reference.lastIndexOf("Patient/");
+                if (start >= 0) {
+                    String rest = reference.substring(start + "Patient/".length());
+                    int slash = rest.indexOf('/');
+                    id = slash < 0 ? rest : rest.substring(0, slash);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Indexes the lines of all files of one type by patient, then copies them
+     * into data segments grouped by patient.
+     */
+    private static void buildType(Path directory, String type, List<Path> sources) throws IOException {
+        Map<String, Lines> byPatient = new HashMap<>();
+        long dropped = 0;
+        for (int file = 0; file < sources.size(); file++) {
+            dropped += indexLines(type, file, sources.get(file), byPatient);
+        }
+
+        List<FileChannel> inputs = new ArrayList<>();
+        try {
+            for (Path source : sources) {
+                inputs.add(FileChannel.open(source, StandardOpenOption.READ));
+            }
+            int segment = -1;
+            long position = 0;
+            FileChannel output = null;
+            try (DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(directory.resolve(type + ".idx"))))) {
+                index.writeInt(byPatient.size());
+                for (Map.Entry<String, Lines> patient : byPatient.entrySet()) {
+                    Lines lines = patient.getValue();
+                    long length = lines.bytes();
+                    if (length > Integer.MAX_VALUE) {
+                        throw new IOException(type + " resources of patient " + patient.getKey() + " exceed 2 GiB");
+                    }
+                    if (output == null || (position > 0 && position + length > SEGMENT_SIZE)) {
+                        if (output != null) {
+                            output.close();
+                        }
+                        segment++;
+                        position = 0;
+                        output = FileChannel.open(directory.resolve(type + "." + segment + ".ndjson"),
+                                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                    }
+                    index.writeUTF(patient.getKey());
+                    index.writeInt(segment);
+                    index.writeLong(position);
+                    index.writeInt((int) length);
+                    index.writeInt(lines.size);
+                    for (int i = 0; i < lines.size; i++) {
+                        transfer(inputs.get(lines.files[i]), lines.offsets[i], lines.lengths[i], output);
+                    }
+                    position += length;
+                }
+            } finally {
+                if (output != null) {
+                    output.close();
+                }
+            }
+        } finally {
+            for (FileChannel input : inputs) {
+                input.close();
+            }
+        }
+        logger.info("Stored {} resources for {} patients, dropped {} without a patient",
+                type, byPatient.size(), dropped);
+    }
+
+    /**
+     * Records where each line of {@code source} starts, including its newline.
+     * A missing final newline is appended so every stored line ends with one.
+     *
+     * @return the number of lines without a patient
+     */
+    private static long indexLines(String type, int file, Path source, Map<String, Lines> byPatient) throws IOException {
+        long dropped = 0;
+        boolean endsWithNewline = true;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(source), 1 << 16)) {
+            byte[] line = new byte[8192];
+            int length = 0;
+            long start = 0;
+            long offset = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                offset++;
+                if (b != '\n') {
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, length * 2);
+                    }
+                    line[length++] = (byte) b;
+                    continue;
+                }
+                dropped += addLine(type, file, line, length, start, offset - start, byPatient);
+                length = 0;
+                start = offset;
+            }
+            if (length > 0) {
+                endsWithNewline = false;
+                dropped += addLine(type, file, line, length, start, offset - start + 1, byPatient);
+            }
+        }
+        if (!endsWithNewline) {
+            Files.write(source, new byte[] {'\n'}, StandardOpenOption.APPEND);
+        }
+        return dropped;
+    }
+
+    private static int addLine(String type, int file, byte[] line, int length, long offset, long lineLength,
+                               Map<String, Lines> byPatient) throws IOException {
+        if (isBlank(line, length)) {
+            return 0;
+        }
+        String patientId = patientId(type, line, length);
+        if (patientId == null) {
+            return 1;
+        }
+        byPatient.computeIfAbsent(patientId, key -> new Lines()).add(file, offset, (int) lineLength);
+        return 0;
+    }
+
+    private static boolean isBlank(byte[] line, int length) {
+        for (int i = 0; i < length; i++) {
+            if (line[i] != ' ' && line[i] != '\t' && line[i] != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void transfer(FileChannel input, long offset, int length, FileChannel output) throws IOException {
+        long done = 0;
+        while (done < length) {
+            done += input.transferTo(offset + done, length - done, output);
+        }
+    }
+
+    private static TypeIndex openType(Path directory, String type) throws IOException {
+        Map<String, Region> regions;
+        int segments = 0;
+        long resources = 0;
+        try (DataInputStream index = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(directory.resolve(type + ".idx"))))) {
+            int entries = index.readInt();
+            regions = new HashMap<>((int) (entries / 0.75f) + 1);
+            for (int i = 0; i < entries; i++) {
+                String patientId = index.readUTF();
+                Region region = new Region(index.readInt(), index.readLong(), index.readInt(), index.readInt());
+                regions.put(patientId, region);
+                segments = Math.max(segments, region.segment() + 1);
+                resources += region.count();
+            }
+        }
+        MappedByteBuffer[] mapped = new MappedByteBuffer[segments];
+        long bytes = 0;
+        for (int segment = 0; segment < segments; segment++) {
+            // The mapping stays valid after the channel is closed
+            try (FileChannel channel = FileChannel.open(directory.resolve(type + "." + segment + ".ndjson"), StandardOpenOption.READ)) {
+                mapped[segment] = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                bytes += channel.size();
+            }
+        }
+        return new TypeIndex(mapped, regions, bytes, resources);
+    }
+
+    /**
+     * Line locations of one patient, in growable primitive arrays.
+     */
+    private static final class Lines {
+
+        private int[] files = new int[4];
+
+        private long[] offsets = new long[4];
+
+        private int[] lengths = new int[4];
+
+        private int size;
+
+        void add(int file, long offset, int length) {
+            if (size == offsets.length) {
+                files = Arrays.copyOf(files, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            files[size] = file;
+            offsets[size] = offset;
+            lengths[size] = length;
+            size++;
+        }
+
+        long bytes() {
+            long bytes = 0;
+            for (int i = 0; i < size; i++) {
+                bytes += lengths[i];
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Logs a random sample of upstream requests and responses.
+ *
+ * <p>The sampling decision is made once per request and reused for its
+ * response, so sampled exchanges are always logged in full.
+ */
+public class SampledLoggingInterceptor implements IClientInterceptor {
+
+    private static final ThreadLocal<Boolean> sampled = new ThreadLocal<>();
+
+    private final LoggingInterceptor delegate;
+
+    private final double sampleRate;
+
+    public SampledLoggingInterceptor(double sampleRate, boolean logBodies) {
+        this.sampleRate = sampleRate;
+        this.delegate = new LoggingInterceptor();
+        delegate.setLogRequestSummary(true);
+        delegate.setLogRequestHeaders(true);
+        delegate.setLogRequestBody(logBodies);
+        delegate.setLogResponseSummary(true);
+        delegate.setLogResponseHeaders(true);
+        delegate.setLogResponseBody(logBodies);
+    }
+
+    @Override
+    public void interceptRequest(IHttpRequest request) {
+        boolean sample = ThreadLocalRandom.current().nextDouble() < sampleRate;
+        sampled.set(sample);
+        if (sample) {
+            delegate.interceptRequest(request);
+        }
+    }
+
+    @Override
+    public void interceptResponse(IHttpResponse response) throws IOException {
+        boolean sample = Boolean.TRUE.equals(sampled.get());
+        sampled.remove();
+        if (sample) {
+            delegate.interceptResponse(response);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.gclient.IQuery;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * The FHIR result parameters {@code _elements}, {@code _summary}, {@code _count}
+ * and {@code _sort} of a search.
+ *
+ * <p>All four are pushed down into the upstream query. A server may ignore
+ * {@code _elements} and {@code _summary}, so they are also applied when the
+ * result is encoded (see {@link #configure(IParser, boolean)}). {@code _count} and
+ * {@code _sort} are only pushed down: enforcing them locally on one page would
+ * break paging.
+ */
+public record SearchOptions(Set<String> elements, SummaryEnum summary, Integer count, List<String> sort) {
+
+    public static final SearchOptions NONE = new SearchOptions(Set.of(), null, null, List.of());
+
+    /** Largest {@code _count} accepted, to keep one page bounded. */
+    public static final int MAX_COUNT = 1000;
+
+    private static final Pattern ELEMENT = Pattern.compile("[A-Za-z][A-Za-z0-9]*(\\.[A-Za-z][A-Za-z0-9]*)*");
+
+    private static final Pattern SORT_PARAMETER = Pattern.compile("-?[A-Za-z_][A-Za-z0-9_:.-]*");
+
+    public SearchOptions {
+        elements = Collections.unmodifiableSet(new TreeSet<>(elements));
+        sort = List.copyOf(sort);
+    }
+
+    /**
+     * Parses the raw request parameters; any of them may be {@code null}.
+     *
+     * @throws IllegalArgumentException if a parameter is malformed
+     */
+    public static SearchOptions of(String elements, String summary, Integer count, String sort) {
+        Set<String> elementSet = new LinkedHashSet<>();
+        for (String element : split(elements)) {
+            if (!ELEMENT.matcher(element).matches()) {
+                throw new IllegalArgumentException("Invalid _elements value: " + element);
+            }
+            elementSet.add(element);
+        }
+
+        SummaryEnum summaryMode = null;
+        if (summary != null && !summary.isBlank()) {
+            summaryMode = SummaryEnum.fromCode(summary.trim().toLowerCase(Locale.ROOT));
+            if (summaryMode == null) {
+                throw new IllegalArgumentException("Invalid _summary value: " + summary + " (expected true, text, data, count or false)");
+            }
+        }
+
+        if (count != null && (count < 0 || count > MAX_COUNT)) {
+            throw new IllegalArgumentException("_count must be between 0 and " + MAX_COUNT);
+        }
+
+        List<String> sortList = new ArrayList<>();
+        for (String parameter : split(sort)) {
+            if (!SORT_PARAMETER.matcher(parameter).matches()) {
+                throw new IllegalArgumentException("Invalid _sort value: " + parameter);
+            }
+            sortList.add(parameter);
+        }
+
+        if (elementSet.isEmpty() && summaryMode == null && count == null && sortList.isEmpty()) {
+            return NONE;
+        }
+        return new SearchOptions(elementSet, summaryMode, count, sortList);
+    }
+
+    public boolean isEmpty() {
+        return elements.isEmpty() && summary == null && count == null && sort.isEmpty();
+    }
+
+    /**
+     * Whether the options change which parts of each resource are returned.
+     */
+    public boolean isProjection() {
+        return !elements.isEmpty() || (summary != null && summary != SummaryEnum.FALSE);
+    }
+
+    /**
+     * Adds the options to a fluent HAPI search.
+     */
+    public <T> IQuery<T> applyTo(IQuery<T> query) {
+        IQuery<T> result = query;
+        if (!elements.isEmpty()) {
+            result = result.elementsSubset(elements.toArray(String[]::new));
+        }
+        if (summary != null) {
+            result = result.summaryMode(summary);
+        }
+        if (count != null) {
+            result = result.count(count);
+        }
+        for (String parameter : sort) {
+            result = parameter.startsWith("-")
+                    ? result.sort(new SortSpec(parameter.substring(1), SortOrderEnum.DESC))
+                    : result.sort(new SortSpec(parameter, SortOrderEnum.ASC));
+        }
+        return result;
+    }
+
+    /**
+     * The options as a query string suffix starting with {@code &}, or an empty string.
+     */
+    public String toQueryString() {
+        StringBuilder query = new StringBuilder();
+        if (!elements.isEmpty()) {
+            query.append("&_elements=").append(encode(String.join(",", elements)));
+        }
+        if (summary != null) {
+            query.append("&_summary=").append(summary.getCode());
+        }
+        if (count != null) {
+            query.append("&_count=").append(count);
+        }
+        if (!sort.isEmpty()) {
+            query.append("&_sort=").append(encode(String.join(",", sort)));
+        }
+        return query.toString();
+    }
+
+    /**
+     * Applies {@code _elements} and {@code _summary} to a parser, so resources
+     * are pruned while they are encoded. With {@code childResourcesOnly}, the
+     * resources inside a Bundle are pruned but not the Bundle itself.
+     * {@code _summary=text} and {@code count} are left to the server.
+     */
+    public void configure(IParser parser, boolean childResourcesOnly) {
+        if (!elements.isEmpty()) {
+            // "*.code" selects the element on any resource type, as the server does for bare names
+            parser.setEncodeElements(elements.stream()
+                    .map(element -> element.contains(".") ? element : "*." + element)
+                    .collect(Collectors.toSet()));
+            parser.setEncodeElementsAppliesToChildResourcesOnly(childResourcesOnly);
+        }
+        if (summary == SummaryEnum.TRUE) {
+            parser.setSummaryMode(true);
+        } else if (summary == SummaryEnum.DATA) {
+            parser.setSuppressNarratives(true);
+        }
+    }
+
+    /**
+     * Canonical form for use in coalescing keys; empty when there are no options.
+     */
+    public String key() {
+        return isEmpty() ? "" : toQueryString();
+    }
+
+    private static List<String> split(String value) {
+        List<String> parts = new ArrayList<>();
+        if (value == null) {
+            return parts;
+        }
+        for (String part : value.split(",")) {
+            if (!part.isBlank()) {
+                parts.add(part.trim());
+            }
+        }
+        return parts;
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
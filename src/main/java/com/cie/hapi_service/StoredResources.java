@@ -0,0 +1,103 @@
+package com.cie.hapi_service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * One patient's resources of one type from the {@link ResourceStore}: a
+ * read-only slice of a memory-mapped NDJSON file, one resource per line.
+ *
+ * <p>The slice is never parsed or copied onto the heap as a whole; it is
+ * written straight to the response, either as is or with each line wrapped
+ * in a searchset Bundle entry.
+ */
+public class StoredResources {
+
+    private static final byte[] ENTRY_START = "{\"resource\":".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] ENTRY_END = ",\"search\":{\"mode\":\"match\"}}".getBytes(StandardCharsets.US_ASCII);
+
+    private final ByteBuffer slice;
+
+    private final int count;
+
+    private final Instant transactionTime;
+
+    StoredResources(ByteBuffer slice, int count, Instant transactionTime) {
+        this.slice = slice;
+        this.count = count;
+        this.transactionTime = transactionTime;
+    }
+
+    static StoredResources empty(Instant transactionTime) {
+        return new StoredResources(ByteBuffer.allocate(0), 0, transactionTime);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * When the server produced the export these resources come from.
+     */
+    public Instant getTransactionTime() {
+        return transactionTime;
+    }
+
+    /**
+     * Writes the resources as NDJSON, exactly as exported.
+     */
+    public void writeNdjson(OutputStream outputStream) throws IOException {
+        write(slice.duplicate(), outputStream);
+    }
+
+    /**
+     * Writes the resources as a searchset Bundle whose {@code meta.lastUpdated}
+     * is the export time.
+     */
+    public void writeBundle(OutputStream outputStream) throws IOException {
+        WritableByteChannel channel = Channels.newChannel(outputStream);
+        outputStream.write(("{\"resourceType\":\"Bundle\",\"meta\":{\"lastUpdated\":\"" + transactionTime
+                + "\"},\"type\":\"searchset\",\"total\":" + count + ",\"entry\":[").getBytes(StandardCharsets.US_ASCII));
+        ByteBuffer lines = slice.duplicate();
+        boolean first = true;
+        int start = 0;
+        int limit = lines.limit();
+        for (int i = 0; i < limit; i++) {
+            if (lines.get(i) != '\n') {
+                continue;
+            }
+            int end = i;
+            // Tolerate CRLF line endings in the export
+            if (end > start && lines.get(end - 1) == '\r') {
+                end--;
+            }
+            if (end > start) {
+                if (!first) {
+                    outputStream.write(',');
+                }
+                outputStream.write(ENTRY_START);
+                writeFully(lines.slice(start, end - start), channel);
+                outputStream.write(ENTRY_END);
+                first = false;
+            }
+            start = i + 1;
+        }
+        outputStream.write(("]}").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void write(ByteBuffer buffer, OutputStream outputStream) throws IOException {
+        writeFully(buffer, Channels.newChannel(outputStream));
+    }
+
+    private static void writeFully(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
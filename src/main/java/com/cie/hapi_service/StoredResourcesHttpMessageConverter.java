@@ -0,0 +1,68 @@
+package com.cie.hapi_service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes {@link StoredResources} as a FHIR searchset Bundle. Honours
+ * {@code _pretty=true} like {@link FhirResourceHttpMessageConverter}.
+ */
+public class StoredResourcesHttpMessageConverter extends AbstractHttpMessageConverter<StoredResources> {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public StoredResourcesHttpMessageConverter() {
+        super(StandardCharsets.UTF_8,
+                new MediaType("application", "fhir+json", StandardCharsets.UTF_8),
+                new MediaType("application", "json", StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return StoredResources.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected StoredResources readInternal(Class<? extends StoredResources> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Stored resources cannot be read", inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(StoredResources resources, HttpOutputMessage outputMessage) throws IOException {
+        if (!FhirResourceHttpMessageConverter.isPrettyRequested()) {
+            resources.writeBundle(outputMessage.getBody());
+            return;
+        }
+        // Pretty output is for people reading responses, so buffering it once is acceptable
+        ByteArrayOutputStream compact = new ByteArrayOutputStream();
+        resources.writeBundle(compact);
+        try (JsonParser parser = JSON_FACTORY.createParser(compact.toByteArray());
+             JsonGenerator generator = JSON_FACTORY.createGenerator(outputMessage.getBody())) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.useDefaultPrettyPrinter();
+            while (parser.nextToken() != null) {
+                generator.copyCurrentEventExact(parser);
+            }
+        }
+    }
+
+    @Override
+    protected Long getContentLength(StoredResources resources, MediaType contentType) {
+        return null;
+    }
+}
@@ -0,0 +1,180 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-through cache of the first result page of plain subject searches, i.e.
+ * {@code Observation?subject=}, {@code DiagnosticReport?subject=} and
+ * {@code DocumentReference?subject=} without search parameters.
+ *
+ * <p>Entries hold the compact JSON as it would have been passed through,
+ * with the Bundle URLs already rewritten. Unlike Patients, searches cannot be
+ * revalidated, so an entry older than the TTL is fetched again. While a
+ * {@link SubscriptionManager} subscription for the resource type is live,
+ * changes are pushed by the server and entries stay valid for the much
+ * longer {@code fhir.subscriptions.cache-ttl}.
+ *
+ * <p>Off unless {@code fhir.cache.search.enabled} is set: a miss buffers the
+ * whole Bundle in the heap instead of streaming the passthrough, and a hit may
+ * be up to the TTL old.
+ */
+@Component
+public class SubjectSearchCache implements MeterBinder {
+
+    /** Rough per-entry overhead on top of the JSON bytes, used for weighing. */
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    @Autowired
+    private FhirUpstreamService fhirUpstreamService;
+
+    @Autowired
+    private FhirJsonEncoder fhirJsonEncoder;
+
+    @Autowired
+    private UpstreamRequestCoalescer coalescer;
+
+    @Autowired
+    private SubscriptionManager subscriptionManager;
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    @Value("${fhir.passthrough.enabled:true}")
+    private boolean passthroughEnabled;
+
+    private final boolean enabled;
+
+    private final long ttlNanos;
+
+    private final long subscribedTtlNanos;
+
+    private final long maxBytes;
+
+    private final Cache<String, CachedSearch> cache;
+
+    private final CacheInvalidations invalidations = new CacheInvalidations();
+
+    public SubjectSearchCache(@Value("${fhir.cache.search.enabled:false}") boolean enabled,
+                              @Value("${fhir.cache.search.max-bytes:67108864}") long maxBytes,
+                              @Value("${fhir.cache.search.ttl:30s}") Duration ttl,
+                              @Value("${fhir.subscriptions.cache-ttl:1h}") Duration subscribedTtl) {
+        this.enabled = enabled;
+        this.ttlNanos = ttl.toNanos();
+        this.subscribedTtlNanos = Math.max(ttl.toNanos(), subscribedTtl.toNanos());
+        this.maxBytes = maxBytes;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, CachedSearch entry) -> entry.json().length + key.length() + ENTRY_OVERHEAD_BYTES)
+                .expireAfterWrite(Duration.ofNanos(subscribedTtlNanos))
+                .recordStats()
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the first page of the patient's resources of the given type,
+     * reading through to the FHIR server on a miss or an expired entry.
+     */
+    public CachedSearch get(Class<? extends IBaseResource> resourceType, String patientId) {
+        String typeName = fhirContext.getResourceType(resourceType);
+        String key = key(typeName, patientId);
+        CachedSearch cached = cache.getIfPresent(key);
+        long ttl = subscriptionManager.isLive(typeName) ? subscribedTtlNanos : ttlNanos;
+        if (cached != null && System.nanoTime() - cached.fetchedAtNanos() < ttl) {
+            return cached;
+        }
+        // Concurrent misses for the same search share one upstream call
+        return coalescer.execute("cache:" + key, () -> load(resourceType, key, patientId));
+    }
+
+    /**
+     * Drops the patient's cached search; returns whether there was one.
+     */
+    public boolean invalidate(String typeName, String patientId) {
+        String key = key(typeName, patientId);
+        invalidations.invalidated(key);
+        return cache.asMap().remove(key) != null;
+    }
+
+    public void invalidateAll(String typeName) {
+        invalidations.invalidatedAll();
+        cache.asMap().keySet().removeIf(key -> key.startsWith(typeName + "/"));
+    }
+
+    /**
+     * Loads the patient's search again and caches it, e.g. after a change notification.
+     */
+    public void refresh(String typeName, String patientId) {
+        Class<? extends IBaseResource> resourceType = fhirContext.getResourceDefinition(typeName).getImplementingClass();
+        String key = key(typeName, patientId);
+        coalescer.execute("cache:" + key, () -> load(resourceType, key, patientId));
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("entries", cache.estimatedSize());
+        result.put("weightBytes", cache.policy().eviction().map(e -> e.weightedSize().orElse(0L)).orElse(0L));
+        result.put("maxBytes", maxBytes);
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("evictions", stats.evictionCount());
+        return result;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, cache, "searches");
+    }
+
+    private CachedSearch load(Class<? extends IBaseResource> resourceType, String key, String patientId) {
+        long stamp = invalidations.stamp(key);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+        try {
+            if (passthroughEnabled) {
+                fhirUpstreamService.searchBySubjectRaw(resourceType, patientId, SearchOptions.NONE).writeTo(buffer, false);
+            } else {
+                fhirJsonEncoder.encode(fhirUpstreamService.searchBySubject(resourceType, patientId), false, buffer);
+            }
+        } catch (IOException e) {
+            throw new FhirClientConnectionException(e);
+        }
+        CachedSearch loaded = new CachedSearch(buffer.toByteArray(), System.nanoTime());
+        if (enabled && invalidations.unchangedSince(key, stamp)) {
+            cache.put(key, loaded);
+        }
+        return loaded;
+    }
+
+    private static String key(String typeName, String patientId) {
+        return typeName + "/" + FhirUpstreamService.normalizePatientId(patientId);
+    }
+
+    /**
+     * A cached searchset Bundle as compact FHIR JSON.
+     */
+    public record CachedSearch(byte[] json, long fetchedAtNanos) {
+    }
+}
@@ -0,0 +1,180 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/subscriptions")
+@Tag(name = "Subscriptions", description = "FHIR Subscriptions that push upstream changes into the caches")
+public class SubscriptionController {
+
+    private static final Logger logger = LoggerFactory.getLogger(SubscriptionController.class);
+
+    @Autowired
+    private SubscriptionManager subscriptionManager;
+
+    @Autowired
+    private SubscriptionNotificationHandler subscriptionNotificationHandler;
+
+    @GetMapping
+    @Operation(summary = "List subscriptions", description = "Returns the Subscriptions held on the FHIR server, their status and the notifications received")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Subscriptions returned successfully")
+    })
+    public ResponseEntity<?> listSubscriptions() {
+        return ResponseEntity.ok(subscriptionManager.list());
+    }
+
+    @PostMapping("/{resourceType}")
+    @Operation(summary = "Subscribe to changes", description = "Creates a rest-hook Subscription on the FHIR server for all changes to a resource type")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "201", description = "Subscription created"),
+            @ApiResponse(responseCode = "200", description = "A subscription for the resource type already exists"),
+            @ApiResponse(responseCode = "400", description = "Unsupported resource type"),
+            @ApiResponse(responseCode = "503", description = "FHIR server connection failed or overloaded; see Retry-After"),
+            @ApiResponse(responseCode = "500", description = "Internal server error")
+    })
+    public ResponseEntity<?> subscribe(
+            @Parameter(description = "Patient, Observation, DiagnosticReport or DocumentReference", required = true, example = "Observation")
+            @PathVariable String resourceType) {
+        try {
+            SubscriptionManager.Registration registration = subscriptionManager.register(resourceType,
+                    ServletUriComponentsBuilder.fromCurrentContextPath().toUriString());
+            if (registration == null) {
+                return ResponseEntity.ok(subscriptionManager.list());
+            }
+            return ResponseEntity.status(HttpStatus.CREATED).body(registration.toMap());
+
+        } catch (IllegalArgumentException e) {
+            Map<String, String> error = new HashMap<>();
+            error.put("error", "Invalid request");
+            error.put("message", e.getMessage());
+            return ResponseEntity.badRequest().body(error);
+
+        } catch (UpstreamRejectedException e) {
+            logger.warn("Upstream call rejected: {}", e.getMessage());
+            Map<String, String> error = new HashMap<>();
+            error.put("error", "FHIR server overloaded");
+            error.put("message", e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, e.getRetryAfterSeconds())
+                    .body(error);
+
+        } catch (FhirClientConnectionException e) {
+            logger.error("Failed to connect to FHIR server: {}", e.getMessage());
+            Map<String, String> error = new HashMap<>();
+            error.put("error", "FHIR server connection failed");
+            error.put("message", e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(error);
+
+        } catch (Exception e) {
+            logger.error("Error subscribing to {} changes: {}", resourceType, e.getMessage(), e);
+            Map<String, String> error = new HashMap<>();
+            error.put("error", "Internal server error");
+            error.put("message", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+    }
+
+    @DeleteMapping("/{resourceType}")
+    @Operation(summary = "Unsubscribe from changes", description = "Deletes the Subscription for a resource type from the FHIR server")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "204", description = "Subscription deleted"),
+            @ApiResponse(responseCode = "404", description = "No subscription for the resource type"),
+            @ApiResponse(responseCode = "503", description = "FHIR server connection failed"),
+            @ApiResponse(responseCode = "500", description = "Internal server error")
+    })
+    public ResponseEntity<?> unsubscribe(
+            @Parameter(description = "Resource type", required = true, example = "Observation")
+            @PathVariable String resourceType) {
+        try {
+            if (!subscriptionManager.unregister(resourceType)) {
+                Map<String, String> error = new HashMap<>();
+                error.put("error", "Subscription not found");
+                error.put("resourceType", resourceType);
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body(error);
+            }
+            return ResponseEntity.noContent().build();
+
+        } catch (FhirClientConnectionException | UpstreamRejectedException e) {
+            logger.error("Failed to delete subscription upstream: {}", e.getMessage());
+            Map<String, String> error = new HashMap<>();
+            error.put("error", "FHIR server connection failed");
+            error.put("message", e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(error);
+
+        } catch (Exception e) {
+            logger.error("Error unsubscribing from {} changes: {}", resourceType, e.getMessage(), e);
+            Map<String, String> error = new HashMap<>();
+            error.put("error", "Internal server error");
+            error.put("message", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(error);
+        }
+    }
+
+    /**
+     * Rest-hook endpoint. Servers post the changed resource to the endpoint
+     * itself, or address it as {@code [endpoint]/[type]/[id]} with PUT, or
+     * DELETE for a deletion.
+     */
+    @RequestMapping(value = {"/hook/{resourceType}", "/hook/{resourceType}/{type}/{id}"},
+            method = {RequestMethod.POST, RequestMethod.PUT, RequestMethod.DELETE})
+    @Operation(summary = "Receive a subscription notification", description = "Rest-hook endpoint called by the FHIR server; invalidates or re-primes the cached data of the affected patients")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Notification applied"),
+            @ApiResponse(responseCode = "400", description = "Payload is not a FHIR resource"),
+            @ApiResponse(responseCode = "401", description = "Missing or wrong subscription token")
+    })
+    public ResponseEntity<?> receiveNotification(
+            @PathVariable String resourceType,
+            @PathVariable(required = false) String type,
+            @PathVariable(required = false) String id,
+            @RequestHeader(name = SubscriptionManager.TOKEN_HEADER, required = false) String token,
+            @RequestBody(required = false) byte[] body,
+            HttpMethod method) {
+        if (!subscriptionManager.isAuthorized(token)) {
+            Map<String, String> error = new HashMap<>();
+            error.put("error", "Unauthorized");
+            error.put("message", "Missing or invalid " + SubscriptionManager.TOKEN_HEADER + " header");
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(error);
+        }
+        try {
+            subscriptionManager.recordNotification(resourceType);
+            Map<String, Object> result = subscriptionNotificationHandler.handle(resourceType, body,
+                    type != null ? type + "/" + id : null, method == HttpMethod.DELETE);
+            return ResponseEntity.ok(result);
+
+        } catch (DataFormatException e) {
+            logger.warn("Unreadable {} notification: {}", resourceType, e.getMessage());
+            Map<String, String> error = new HashMap<>();
+            error.put("error", "Invalid request");
+            error.put("message", e.getMessage());
+            return ResponseEntity.badRequest().body(error);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.r4.model.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The FHIR Subscriptions this service holds on the upstream server, one
+ * rest-hook per resource type, used to keep the caches current.
+ *
+ * <p>Notifications are posted to {@code /api/subscriptions/hook/{type}} with a
+ * shared token header. A subscription counts as live, and lets the caches keep
+ * entries for {@code fhir.subscriptions.cache-ttl}, only while the server
+ * reported it {@code active} within the last two status checks. If the server
+ * stops answering, or marks the subscription as errored, caches fall back to
+ * their normal TTLs on their own.
+ */
+@Component
+public class SubscriptionManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(SubscriptionManager.class);
+
+    /** Header carrying the shared token on notifications. */
+    public static final String TOKEN_HEADER = "X-Subscription-Token";
+
+    /** Resource types whose cached data notifications can invalidate. */
+    public static final Set<String> SUPPORTED_TYPES = Set.of("Patient", "Observation", "DiagnosticReport", "DocumentReference");
+
+    static final String HOOK_PATH = "/api/subscriptions/hook/";
+
+    @Autowired
+    private FhirUpstreamService fhirUpstreamService;
+
+    @Value("${fhir.subscriptions.callback-base-url:}")
+    private String callbackBaseUrl;
+
+    @Value("${fhir.subscriptions.token:}")
+    private String configuredToken;
+
+    @Value("${fhir.subscriptions.status-interval:60s}")
+    private Duration statusInterval;
+
+    @Value("${fhir.subscriptions.delete-on-shutdown:true}")
+    private boolean deleteOnShutdown;
+
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+
+    private String token;
+
+    private ScheduledExecutorService statusChecker;
+
+    @PostConstruct
+    void start() {
+        // Without a configured token, subscriptions only outlive this process if they are re-registered
+        token = configuredToken.isBlank() ? UUID.randomUUID().toString() : configuredToken;
+        statusChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "subscription-status");
+            thread.setDaemon(true);
+            return thread;
+        });
+        statusChecker.scheduleWithFixedDelay(this::checkStatuses,
+                statusInterval.toMillis(), statusInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        statusChecker.shutdownNow();
+        if (!deleteOnShutdown) {
+            return;
+        }
+        // The server would otherwise keep posting to an endpoint that is gone
+        for (Registration registration : registrations.values()) {
+            try {
+                fhirUpstreamService.deleteSubscription(registration.subscriptionId());
+            } catch (RuntimeException e) {
+                logger.warn("Could not delete Subscription/{}: {}", registration.subscriptionId(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates a rest-hook Subscription for all changes to {@code resourceType},
+     * unless one is registered already.
+     *
+     * @param requestBaseUrl base URL of the current request, used when
+     *                       {@code fhir.subscriptions.callback-base-url} is not set
+     * @return the new registration, or {@code null} if there already was one
+     * @throws IllegalArgumentException if the resource type is not supported, or
+     *                                  the FHIR servers are sharded
+     */
+    public synchronized Registration register(String resourceType, String requestBaseUrl) {
+        if (!SUPPORTED_TYPES.contains(resourceType)) {
+            throw new IllegalArgumentException("Unsupported resource type " + resourceType + "; expected one of " + SUPPORTED_TYPES);
+        }
+        if (fhirUpstreamService.isSharded()) {
+            // A Subscription on one shard would keep caches long without seeing the other shards' changes
+            throw new IllegalArgumentException("Subscriptions are not supported with sharded FHIR servers");
+        }
+        if (registrations.containsKey(resourceType)) {
+            return null;
+        }
+        String base = callbackBaseUrl.isBlank() ? requestBaseUrl : callbackBaseUrl;
+        String endpoint = base.replaceAll("/+$", "") + HOOK_PATH + resourceType;
+
+        Subscription subscription = new Subscription();
+        subscription.setStatus(Subscription.SubscriptionStatus.REQUESTED);
+        subscription.setReason("Keep the hapi-service caches current");
+        subscription.setCriteria(resourceType + "?");
+        subscription.getChannel()
+                .setType(Subscription.SubscriptionChannelType.RESTHOOK)
+                .setEndpoint(endpoint)
+                .setPayload("application/fhir+json")
+                .addHeader(TOKEN_HEADER + ": " + token);
+
+        Subscription created = fhirUpstreamService.createSubscription(subscription);
+        Registration registration = new Registration(resourceType, created.getIdElement().getIdPart(), endpoint,
+                statusOf(created), Instant.now(), Instant.now(), null, 0);
+        registrations.put(resourceType, registration);
+        logger.info("Registered Subscription/{} for {} changes, notifying {}", registration.subscriptionId(), resourceType, endpoint);
+        return registration;
+    }
+
+    /**
+     * Deletes the Subscription for {@code resourceType}; returns whether there was one.
+     */
+    public synchronized boolean unregister(String resourceType) {
+        Registration registration = registrations.get(resourceType);
+        if (registration == null) {
+            return false;
+        }
+        try {
+            fhirUpstreamService.deleteSubscription(registration.subscriptionId());
+        } catch (ResourceNotFoundException | ResourceGoneException e) {
+            // Already gone upstream
+        }
+        registrations.remove(resourceType);
+        logger.info("Deleted Subscription/{} for {} changes", registration.subscriptionId(), resourceType);
+        return true;
+    }
+
+    /**
+     * Whether changes to {@code resourceType} are currently being pushed to this service.
+     */
+    public boolean isLive(String resourceType) {
+        Registration registration = registrations.get(resourceType);
+        return registration != null
+                && "active".equals(registration.status())
+                && registration.statusCheckedAt().plus(statusInterval.multipliedBy(2)).isAfter(Instant.now());
+    }
+
+    /**
+     * Whether a notification carries the shared token.
+     */
+    public boolean isAuthorized(String presentedToken) {
+        return presentedToken != null
+                && MessageDigest.isEqual(presentedToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void recordNotification(String resourceType) {
+        registrations.computeIfPresent(resourceType, (type, registration) -> registration.notified(Instant.now()));
+    }
+
+    public List<Map<String, Object>> list() {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Registration registration : registrations.values()) {
+            Map<String, Object> entry = registration.toMap();
+            entry.put("live", isLive(registration.resourceType()));
+            result.add(entry);
+        }
+        return result;
+    }
+
+    /**
+     * Re-reads the status of every registered Subscription. Runs on a timer.
+     */
+    void checkStatuses() {
+        for (Registration registration : registrations.values()) {
+            try {
+                Subscription current = fhirUpstreamService.readSubscription(registration.subscriptionId());
+                String status = statusOf(current);
+                if (!"active".equals(status)) {
+                    logger.warn("Subscription/{} for {} is {}: {}", registration.subscriptionId(), registration.resourceType(),
+                            status, current.getError());
+                }
+                registrations.computeIfPresent(registration.resourceType(), (type, existing) -> existing.checked(status, Instant.now()));
+            } catch (ResourceNotFoundException | ResourceGoneException e) {
+                logger.warn("Subscription/{} for {} was deleted upstream", registration.subscriptionId(), registration.resourceType());
+                registrations.remove(registration.resourceType(), registration);
+            } catch (RuntimeException e) {
+                // Leave the last check in place; the subscription stops counting as live once it is too old
+                logger.debug("Could not check Subscription/{}: {}", registration.subscriptionId(), e.getMessage());
+            }
+        }
+    }
+
+    private static String statusOf(Subscription subscription) {
+        return subscription.getStatus() != null ? subscription.getStatus().toCode() : "unknown";
+    }
+
+    /**
+     * A Subscription held on the FHIR server.
+     */
+    public record Registration(String resourceType, String subscriptionId, String endpoint, String status,
+                               Instant registeredAt, Instant statusCheckedAt, Instant lastNotificationAt, long notifications) {
+
+        Registration checked(String newStatus, Instant now) {
+            return new Registration(resourceType, subscriptionId, endpoint, newStatus, registeredAt, now, lastNotificationAt, notifications);
+        }
+
+        Registration notified(Instant now) {
+            return new Registration(resourceType, subscriptionId, endpoint, status, registeredAt, statusCheckedAt, now, notifications + 1);
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("resourceType", resourceType);
+            map.put("subscriptionId", subscriptionId);
+            map.put("endpoint", endpoint);
+            map.put("status", status);
+            map.put("registeredAt", registeredAt.toString());
+            map.put("statusCheckedAt", statusCheckedAt.toString());
+            map.put("lastNotificationAt", lastNotificationAt != null ? lastNotificationAt.toString() : null);
+            map.put("notifications", notifications);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Applies rest-hook Subscription notifications to the caches.
+ *
+ * <p>A notification names a changed resource, in the body (the payload is the
+ * resource itself, or a Bundle of them) or only in the URL when it was deleted.
+ * Pushed Patients are stored in the {@link PatientCache} as they are, and their
+ * names in the {@link PatientNameIndex}. For the other types the patient's
+ * cached search is dropped and, if it was cached, loaded again in the
+ * background so the next read is still a hit; the {@link ResourceStore}
+ * stops answering for the patient and type until the next export. When the
+ * affected patient cannot be told, everything cached for the type is dropped.
+ */
+@Component
+public class SubscriptionNotificationHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(SubscriptionNotificationHandler.class);
+
+    @Autowired
+    private PatientCache patientCache;
+
+    @Autowired
+    private SubjectSearchCache subjectSearchCache;
+
+    @Autowired
+    private PatientNameIndex patientNameIndex;
+
+    @Autowired
+    private ResourceStore resourceStore;
+
+    @Autowired
+    private FhirJsonEncoder fhirJsonEncoder;
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    @Autowired
+    private ThreadPoolTaskExecutor upstreamExecutor;
+
+    @Value("${fhir.subscriptions.reprime:true}")
+    private boolean reprime;
+
+    /**
+     * Applies one notification for a subscription on {@code subscribedType}.
+     *
+     * @param body       the payload, possibly empty
+     * @param resourceId {@code Type/id} from the URL, if the server addressed the resource
+     * @param deleted    whether the server reported the resource as deleted
+     * @return what was done, for the response
+     */
+    public Map<String, Object> handle(String subscribedType, byte[] body, String resourceId, boolean deleted) {
+        List<IBaseResource> resources = parse(body);
+        Set<String> patients = new LinkedHashSet<>();
+        boolean cleared = false;
+
+        if (resources.isEmpty()) {
+            IdType id = resourceId != null ? new IdType(resourceId) : null;
+            if (id != null && "Patient".equals(id.getResourceType()) && id.hasIdPart()) {
+                patientCache.invalidate(id.getIdPart());
+                patientNameIndex.remove(id.getIdPart());
+                patients.add(id.getIdPart());
+            } else {
+                // Nothing says whose data changed
+                clear(subscribedType);
+                cleared = true;
+            }
+        }
+        for (IBaseResource resource : resources) {
+            String type = resource.fhirType();
+            if (resource instanceof Patient patient) {
+                if (deleted) {
+                    patientCache.invalidate(patient.getIdElement().getIdPart());
+                    patientNameIndex.remove(patient.getIdElement().getIdPart());
+                } else {
+                    patientCache.prime(patient);
+                    patientNameIndex.update(patient);
+                }
+                patients.add(patient.getIdElement().getIdPart());
+                continue;
+            }
+            if (!SubscriptionManager.SUPPORTED_TYPES.contains(type)) {
+                continue;
+            }
+            String patientId = subjectPatientId(resource);
+            if (patientId == null) {
+                clear(type);
+                cleared = true;
+                continue;
+            }
+            patients.add(patientId);
+            resourceStore.markChanged(type, patientId);
+            if (subjectSearchCache.invalidate(type, patientId) && reprime && !deleted) {
+                refreshLater(type, patientId);
+            }
+        }
+
+        logger.debug("Notification for {} changed {} resources of patients {}", subscribedType, resources.size(), patients);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("resources", resources.size());
+        result.put("patients", patients);
+        result.put("clearedAll", cleared);
+        return result;
+    }
+
+    private List<IBaseResource> parse(byte[] body) {
+        List<IBaseResource> resources = new ArrayList<>();
+        String json = body != null ? new String(body, StandardCharsets.UTF_8) : "";
+        if (json.isBlank()) {
+            return resources;
+        }
+        IBaseResource parsed = fhirJsonEncoder.parser(false).parseResource(json);
+        if (parsed instanceof Bundle bundle) {
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                if (entry.getResource() != null) {
+                    resources.add(entry.getResource());
+                }
+            }
+        } else {
+            resources.add(parsed);
+        }
+        return resources;
+    }
+
+    private String subjectPatientId(IBaseResource resource) {
+        FhirTerser terser = fhirContext.newTerser();
+        String reference = terser.getSinglePrimitiveValueOrNull(resource, "subject.reference");
+        if (reference == null) {
+            return null;
+        }
+        IdType id = new IdType(reference);
+        return "Patient".equals(id.getResourceType()) && id.hasIdPart() ? id.getIdPart() : null;
+    }
+
+    private void clear(String type) {
+        if ("Patient".equals(type)) {
+            patientCache.invalidateAll();
+            patientNameIndex.clearCoverage();
+        } else {
+            subjectSearchCache.invalidateAll(type);
+        }
+        resourceStore.markChanged(type);
+    }
+
+    private void refreshLater(String type, String patientId) {
+        try {
+            upstreamExecutor.execute(() -> {
+                try {
+                    subjectSearchCache.refresh(type, patientId);
+                } catch (RuntimeException e) {
+                    // The next read loads it instead
+                    logger.debug("Could not re-prime {} search of patient {}: {}", type, patientId, e.getMessage());
+                }
+            });
+        } catch (TaskRejectedException e) {
+            logger.debug("Skipped re-priming {} search of patient {}: upstream executor is saturated", type, patientId);
+        }
+    }
+}
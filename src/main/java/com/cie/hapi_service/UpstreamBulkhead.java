@@ -0,0 +1,281 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Isolates upstream calls per resource type and operation, so that a slow or
+ * failing kind of call cannot tie up every request thread.
+ *
+ * <p>Each compartment (e.g. {@code Observation:search}) has its own
+ * {@link AdaptiveConcurrencyLimit} and {@link CircuitBreaker}. A call that finds
+ * the limit reached or the circuit open is rejected at once with an
+ * {@link UpstreamRejectedException} instead of queueing behind the others.
+ * Connection failures, timeouts and 5xx/429 responses count as failures; other
+ * 4xx responses such as 404 are normal answers.
+ *
+ * <p>The latency fed to the limit runs until the response headers arrive, as
+ * marked by {@link #responseHeadersReceived()}, so that a large result's body
+ * download and parse does not read as queueing. Calls that got no response
+ * are timed until they end.
+ */
+@Component
+public class UpstreamBulkhead {
+
+    private static final Logger logger = LoggerFactory.getLogger(UpstreamBulkhead.class);
+
+    private static final ThreadLocal<HeaderClock> currentCall = new ThreadLocal<>();
+
+    private final MeterRegistry meterRegistry;
+
+    private final boolean enabled;
+
+    private final int initialLimit;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double backoffRatio;
+
+    private final double latencyTolerance;
+
+    private final int windowSize;
+
+    private final int minimumCalls;
+
+    private final double failureRateThreshold;
+
+    private final Duration openDuration;
+
+    private final int halfOpenCalls;
+
+    private final Duration retryAfter;
+
+    private final LongSupplier clock;
+
+    private final ConcurrentHashMap<String, Compartment> compartments = new ConcurrentHashMap<>();
+
+    @Autowired
+    public UpstreamBulkhead(MeterRegistry meterRegistry,
+                            @Value("${fhir.upstream.bulkhead.enabled:true}") boolean enabled,
+                            @Value("${fhir.upstream.bulkhead.limit.initial:20}") int initialLimit,
+                            @Value("${fhir.upstream.bulkhead.limit.min:2}") int minLimit,
+                            @Value("${fhir.upstream.bulkhead.limit.max:200}") int maxLimit,
+                            @Value("${fhir.upstream.bulkhead.limit.backoff-ratio:0.9}") double backoffRatio,
+                            @Value("${fhir.upstream.bulkhead.limit.latency-tolerance:2.0}") double latencyTolerance,
+                            @Value("${fhir.upstream.bulkhead.circuit.window-size:50}") int windowSize,
+                            @Value("${fhir.upstream.bulkhead.circuit.minimum-calls:20}") int minimumCalls,
+                            @Value("${fhir.upstream.bulkhead.circuit.failure-rate-threshold:0.5}") double failureRateThreshold,
+                            @Value("${fhir.upstream.bulkhead.circuit.open-duration:10s}") Duration openDuration,
+                            @Value("${fhir.upstream.bulkhead.circuit.half-open-calls:3}") int halfOpenCalls,
+                            @Value("${fhir.upstream.bulkhead.retry-after:1s}") Duration retryAfter) {
+        this(meterRegistry, enabled, initialLimit, minLimit, maxLimit, backoffRatio, latencyTolerance, windowSize,
+                minimumCalls, failureRateThreshold, openDuration, halfOpenCalls, retryAfter, System::nanoTime);
+    }
+
+    UpstreamBulkhead(MeterRegistry meterRegistry, boolean enabled, int initialLimit, int minLimit, int maxLimit,
+                     double backoffRatio, double latencyTolerance, int windowSize, int minimumCalls,
+                     double failureRateThreshold, Duration openDuration, int halfOpenCalls, Duration retryAfter,
+                     LongSupplier clock) {
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyTolerance = latencyTolerance;
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDuration = openDuration;
+        this.halfOpenCalls = halfOpenCalls;
+        this.retryAfter = retryAfter;
+        this.clock = clock;
+    }
+
+    /**
+     * Runs {@code call} inside the compartment for the resource type and
+     * operation, or throws {@link UpstreamRejectedException} without running it.
+     */
+    public <T> T execute(String resourceType, FhirOperation operation, Supplier<T> call) {
+        if (!enabled) {
+            return call.get();
+        }
+
+        Compartment compartment = compartments.computeIfAbsent(compartmentName(resourceType, operation), this::newCompartment);
+        if (!compartment.circuitBreaker.tryAcquire()) {
+            compartment.rejectedOpen.increment();
+            throw new UpstreamRejectedException(compartment.name, "circuit open",
+                    Duration.ofNanos(compartment.circuitBreaker.remainingOpenNanos()));
+        }
+        if (!compartment.limit.tryAcquire()) {
+            compartment.circuitBreaker.cancel();
+            compartment.rejectedLimit.increment();
+            throw new UpstreamRejectedException(compartment.name, "concurrency limit " + compartment.limit.getLimit() + " reached",
+                    retryAfter);
+        }
+
+        boolean failure = false;
+        boolean abandoned = false;
+        HeaderClock headers = new HeaderClock(clock);
+        HeaderClock outer = currentCall.get();
+        currentCall.set(headers);
+        long start = clock.getAsLong();
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            // A call aborted because the client left says nothing about the server.
+            // One aborted at the deadline does: the server was too slow
+            RequestDeadline deadline = RequestDeadline.current();
+            abandoned = deadline != null && deadline.isAbandoned();
+            failure = !abandoned && isOverloadFailure(e);
+            throw e;
+        } finally {
+            if (outer != null) {
+                currentCall.set(outer);
+            } else {
+                currentCall.remove();
+            }
+            if (abandoned) {
+                compartment.limit.cancel();
+                compartment.circuitBreaker.cancel();
+            } else {
+                long end = headers.receivedAt != null ? headers.receivedAt : clock.getAsLong();
+                release(compartment, end - start, failure);
+            }
+        }
+    }
+
+    /**
+     * Marks the arrival of response headers for the call running on this
+     * thread. Called by {@link FhirMetricsInterceptor} and for raw requests by
+     * {@link FhirUpstreamService}; the last response of a call counts.
+     */
+    static void responseHeadersReceived() {
+        HeaderClock headers = currentCall.get();
+        if (headers != null) {
+            headers.receivedAt = headers.clock.getAsLong();
+        }
+    }
+
+    private void release(Compartment compartment, long latencyNanos, boolean failure) {
+        compartment.limit.release(latencyNanos, failure);
+        CircuitBreaker.State before = compartment.circuitBreaker.getState();
+        compartment.circuitBreaker.onResult(failure);
+        CircuitBreaker.State after = compartment.circuitBreaker.getState();
+        if (before != after) {
+            logger.warn("Circuit for upstream {} changed from {} to {}", compartment.name, before, after);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        Map<String, Object> byCompartment = new TreeMap<>();
+        compartments.forEach((name, compartment) -> {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("limit", compartment.limit.getLimit());
+            stats.put("inFlight", compartment.limit.getInFlight());
+            stats.put("baselineLatencyMs", compartment.limit.getBaselineNanos() / 1_000_000.0);
+            stats.put("smoothedLatencyMs", compartment.limit.getSmoothedNanos() / 1_000_000.0);
+            stats.put("circuit", compartment.circuitBreaker.getState().name());
+            stats.put("failureRate", compartment.circuitBreaker.getFailureRate());
+            stats.put("timesOpened", compartment.circuitBreaker.getTimesOpened());
+            stats.put("rejectedLimit", (long) compartment.rejectedLimit.count());
+            stats.put("rejectedOpen", (long) compartment.rejectedOpen.count());
+            byCompartment.put(name, stats);
+        });
+        result.put("compartments", byCompartment);
+        return result;
+    }
+
+    /**
+     * Pages and history follow-ups share the limit of the search they belong to.
+     */
+    static String compartmentName(String resourceType, FhirOperation operation) {
+        FhirOperation group = switch (operation) {
+            case PAGE, HISTORY -> FhirOperation.SEARCH;
+            default -> operation;
+        };
+        return resourceType + ":" + group.name().toLowerCase(Locale.ROOT);
+    }
+
+    static boolean isOverloadFailure(RuntimeException e) {
+        if (e instanceof FhirClientConnectionException) {
+            // Connection refused, pool exhausted and socket timeouts all end up here
+            return true;
+        }
+        if (e instanceof BaseServerResponseException response) {
+            return response.getStatusCode() >= 500 || response.getStatusCode() == 429;
+        }
+        return false;
+    }
+
+    private Compartment newCompartment(String name) {
+        Compartment compartment = new Compartment(name,
+                new AdaptiveConcurrencyLimit(initialLimit, minLimit, maxLimit, backoffRatio, latencyTolerance),
+                new CircuitBreaker(windowSize, minimumCalls, failureRateThreshold, openDuration.toNanos(), halfOpenCalls, clock),
+                rejectionCounter(name, "limit"),
+                rejectionCounter(name, "circuit_open"));
+
+        Gauge.builder("fhir.upstream.bulkhead.limit", compartment.limit, AdaptiveConcurrencyLimit::getLimit)
+                .description("Current adaptive concurrency limit of an upstream compartment")
+                .tag("compartment", name)
+                .register(meterRegistry);
+        Gauge.builder("fhir.upstream.bulkhead.in.flight", compartment.limit, AdaptiveConcurrencyLimit::getInFlight)
+                .description("Upstream calls in flight in a compartment")
+                .tag("compartment", name)
+                .register(meterRegistry);
+        Gauge.builder("fhir.upstream.bulkhead.circuit.state", compartment.circuitBreaker, breaker -> breaker.getState().ordinal())
+                .description("Circuit state of an upstream compartment: 0 closed, 1 open, 2 half-open")
+                .tag("compartment", name)
+                .register(meterRegistry);
+        FunctionCounter.builder("fhir.upstream.bulkhead.circuit.opened", compartment.circuitBreaker, CircuitBreaker::getTimesOpened)
+                .description("Times the circuit of an upstream compartment opened")
+                .tag("compartment", name)
+                .register(meterRegistry);
+        return compartment;
+    }
+
+    private Counter rejectionCounter(String compartment, String reason) {
+        return Counter.builder("fhir.upstream.bulkhead.rejected")
+                .description("Upstream calls shed without being sent")
+                .tag("compartment", compartment)
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    private static final class HeaderClock {
+
+        private final LongSupplier clock;
+
+        private Long receivedAt;
+
+        private HeaderClock(LongSupplier clock) {
+            this.clock = clock;
+        }
+    }
+
+    private record Compartment(String name, AdaptiveConcurrencyLimit limit, CircuitBreaker circuitBreaker,
+                               Counter rejectedLimit, Counter rejectedOpen) {
+    }
+}
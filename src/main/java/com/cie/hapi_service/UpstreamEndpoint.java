@@ -0,0 +1,153 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One FHIR server base URL, with the latency, load and health that
+ * {@link UpstreamRouter} chooses by.
+ *
+ * <p>Latency is a peak-sensitive EWMA: a response slower than the estimate
+ * replaces it at once, faster ones pull it down over {@code decay}. While the
+ * endpoint is idle the estimate decays too, so a server that was slow once
+ * gets traffic again. After {@code ejectAfterFailures} consecutive connection
+ * failures or 5xx responses the endpoint is ejected for {@code ejectionTime};
+ * one more failure right after it comes back ejects it again for longer.
+ */
+final class UpstreamEndpoint {
+
+    /** Cap on how many ejection times a repeatedly failing endpoint is ejected for. */
+    private static final int MAX_EJECTION_MULTIPLIER = 10;
+
+    private final String baseUrl;
+
+    private final IGenericClient client;
+
+    private final long decayNanos;
+
+    private final int ejectAfterFailures;
+
+    private final long ejectionNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LongAdder requests = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    private final LongAdder ejections = new LongAdder();
+
+    // Guarded by this
+    private double latencyNanos;
+
+    private long observedAtNanos;
+
+    private int consecutiveFailures;
+
+    private int consecutiveEjections;
+
+    private boolean ejected;
+
+    private long ejectedUntilNanos;
+
+    UpstreamEndpoint(String baseUrl, IGenericClient client, long decayNanos, int ejectAfterFailures, long ejectionNanos, long nowNanos) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        this.client = client;
+        this.decayNanos = decayNanos;
+        this.ejectAfterFailures = ejectAfterFailures;
+        this.ejectionNanos = ejectionNanos;
+        this.observedAtNanos = nowNanos;
+    }
+
+    /** Base URL ending in {@code /}. */
+    String baseUrl() {
+        return baseUrl;
+    }
+
+    IGenericClient client() {
+        return client;
+    }
+
+    /**
+     * Expected cost of one more request: decayed latency times the requests
+     * that would be in flight. An endpoint without measurements costs nothing,
+     * so new and recovered endpoints are tried first.
+     */
+    synchronized double cost(long nowNanos) {
+        return decayed(nowNanos) * (inFlight.get() + 1);
+    }
+
+    synchronized boolean isAvailable(long nowNanos) {
+        return !ejected || nowNanos - ejectedUntilNanos >= 0;
+    }
+
+    void started() {
+        inFlight.incrementAndGet();
+        requests.increment();
+    }
+
+    /**
+     * Records the outcome of a request started with {@link #started()}.
+     *
+     * @return whether this failure ejected the endpoint
+     */
+    synchronized boolean finished(long nowNanos, long latencyNanos, boolean failed) {
+        inFlight.decrementAndGet();
+        double weight = Math.exp(-(double) Math.max(0, nowNanos - observedAtNanos) / decayNanos);
+        double current = this.latencyNanos * weight;
+        this.latencyNanos = latencyNanos > current ? latencyNanos : current + latencyNanos * (1 - weight);
+        this.observedAtNanos = nowNanos;
+
+        if (!failed) {
+            consecutiveFailures = 0;
+            consecutiveEjections = 0;
+            return false;
+        }
+        failures.increment();
+        consecutiveFailures++;
+        if (consecutiveFailures < ejectAfterFailures || !isAvailable(nowNanos)) {
+            return false;
+        }
+        // Failures stay counted, so one more after the ejection ends ejects it again
+        consecutiveEjections++;
+        ejected = true;
+        ejectedUntilNanos = nowNanos + ejectionNanos * Math.min(consecutiveEjections, MAX_EJECTION_MULTIPLIER);
+        ejections.increment();
+        return true;
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    long ejections() {
+        return ejections.sum();
+    }
+
+    synchronized double latencyMillis(long nowNanos) {
+        return decayed(nowNanos) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    synchronized Map<String, Object> stats(long nowNanos) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("baseUrl", baseUrl);
+        result.put("available", isAvailable(nowNanos));
+        result.put("ejectedForMs", isAvailable(nowNanos) ? 0 : TimeUnit.NANOSECONDS.toMillis(ejectedUntilNanos - nowNanos));
+        result.put("latencyMs", latencyMillis(nowNanos));
+        result.put("inFlight", inFlight.get());
+        result.put("requests", requests.sum());
+        result.put("failures", failures.sum());
+        result.put("consecutiveFailures", consecutiveFailures);
+        result.put("ejections", ejections.sum());
+        return result;
+    }
+
+    private double decayed(long nowNanos) {
+        return latencyNanos * Math.exp(-(double) Math.max(0, nowNanos - observedAtNanos) / decayNanos);
+    }
+}
@@ -0,0 +1,42 @@
+package com.cie.hapi_service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Bounded thread pool used to run upstream FHIR calls concurrently. When it
+ * is saturated, submissions throw {@link org.springframework.core.task.TaskRejectedException}.
+ */
+@Configuration
+public class UpstreamExecutorConfig {
+
+    @Value("${fhir.upstream.executor.core-pool-size:16}")
+    private int corePoolSize;
+
+    @Value("${fhir.upstream.executor.max-pool-size:64}")
+    private int maxPoolSize;
+
+    @Value("${fhir.upstream.executor.queue-capacity:256}")
+    private int queueCapacity;
+
+    @Bean
+    public ThreadPoolTaskExecutor upstreamExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(corePoolSize);
+        executor.setMaxPoolSize(maxPoolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("fhir-upstream-");
+        // When the pool is saturated, fail fast: running the call on the submitting thread
+        // would serialize fan-outs and escape the timeouts put on the returned futures
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        // Calls made for a client request keep its deadline and can be cancelled with it
+        executor.setTaskDecorator(RequestDeadline::propagate);
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.initialize();
+        return executor;
+    }
+}
@@ -0,0 +1,48 @@
+package com.cie.hapi_service;
+
+import java.time.Duration;
+
+/**
+ * Thrown instead of calling the FHIR server when its bulkhead sheds the call,
+ * either because the concurrency limit is reached or the circuit is open.
+ * Controllers answer it with a 503 and a {@code Retry-After} header.
+ */
+public class UpstreamRejectedException extends RuntimeException {
+
+    private final String compartment;
+
+    private final String reason;
+
+    private final Duration retryAfter;
+
+    public UpstreamRejectedException(String compartment, String reason, Duration retryAfter) {
+        super("Upstream " + compartment + " is shedding load (" + reason + "), retry after " + seconds(retryAfter) + "s");
+        this.compartment = compartment;
+        this.reason = reason;
+        this.retryAfter = retryAfter;
+    }
+
+    public String getCompartment() {
+        return compartment;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * {@link #getRetryAfter()} in whole seconds, as the Retry-After header expects.
+     */
+    public String getRetryAfterSeconds() {
+        return Long.toString(seconds(retryAfter));
+    }
+
+    private static long seconds(Duration duration) {
+        // Round up so clients never retry before the limit could have recovered
+        return Math.max(1, (duration.toMillis() + 999) / 1000);
+    }
+}
@@ -0,0 +1,129 @@
+package com.cie.hapi_service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight coalescing of identical upstream calls.
+ *
+ * <p>The first caller for a key runs the call; callers arriving with the same
+ * key while it is in flight wait for it and receive the same result or the same
+ * exception. Nothing is cached once the call completes. Because results are
+ * shared between callers they must be treated as read-only.
+ *
+ * <p>If the running call fails because its own client request was cancelled
+ * (see {@link RequestDeadline}), waiting callers do not inherit the failure
+ * but retry, so one of them takes over the call.
+ */
+@Component
+public class UpstreamRequestCoalescer implements MeterBinder {
+
+    @Value("${fhir.upstream.coalescing.enabled:true}")
+    private boolean enabled;
+
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder executed = new LongAdder();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> call) {
+        if (!enabled) {
+            executed.increment();
+            return call.get();
+        }
+
+        while (true) {
+            CompletableFuture<Object> own = new CompletableFuture<>();
+            CompletableFuture<Object> existing = inFlight.putIfAbsent(key, own);
+            if (existing != null) {
+                coalesced.increment();
+                try {
+                    return (T) await(existing);
+                } catch (LeaderCancelledException e) {
+                    continue;
+                }
+            }
+
+            executed.increment();
+            try {
+                T result = call.get();
+                own.complete(result);
+                return result;
+            } catch (RuntimeException | Error e) {
+                RequestDeadline deadline = RequestDeadline.current();
+                own.completeExceptionally(deadline != null && deadline.isCancelled() ? new LeaderCancelledException() : e);
+                throw e;
+            } finally {
+                inFlight.remove(key, own);
+            }
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("inFlight", inFlight.size());
+        result.put("executed", executed.sum());
+        result.put("coalesced", coalesced.sum());
+        return result;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("fhir.upstream.coalescing", executed, LongAdder::sum)
+                .description("Upstream calls by whether they were executed or joined an identical in-flight call")
+                .tag("result", "executed")
+                .register(registry);
+        FunctionCounter.builder("fhir.upstream.coalescing", coalesced, LongAdder::sum)
+                .description("Upstream calls by whether they were executed or joined an identical in-flight call")
+                .tag("result", "coalesced")
+                .register(registry);
+        Gauge.builder("fhir.upstream.coalescing.in.flight", inFlight, Map::size)
+                .description("Distinct upstream calls currently in flight")
+                .register(registry);
+    }
+
+    private static Object await(CompletableFuture<Object> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            // The waiting request was cancelled
+            Thread.currentThread().interrupt();
+            throw new RequestCancelledException("interrupted");
+        } catch (ExecutionException e) {
+            // Rethrow the leader's exception so followers map it to the same status code
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new CompletionException(e.getCause());
+        }
+    }
+
+    /**
+     * Hands a call back to its waiting callers when its own request was cancelled.
+     */
+    private static final class LeaderCancelledException extends RuntimeException {
+
+        LeaderCancelledException() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Chooses the FHIR server each upstream call goes to.
+ *
+ * <p>Servers form replica groups: a primary, which takes writes, and read
+ * replicas holding the same data. Reads go to the cheaper of two randomly
+ * picked available members of the group, by EWMA latency times requests in
+ * flight, which spreads load without sending everything to the one that
+ * looks fastest. Members that keep failing are ejected for a while; if a whole
+ * group is ejected its members are used anyway, as failing fast helps nobody.
+ *
+ * <p>With {@code fhir.server.shards}, data is split across several groups by
+ * patient. Calls about one patient go to the shard that owns the patient ID
+ * on a consistent hash ring. Calls without a patient, such as name searches,
+ * Subscriptions and bulk export, go to the group of {@code fhir.server.base-url}.
+ * Next pages always go back to the server that returned the first page.
+ */
+public class UpstreamRouter implements MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(UpstreamRouter.class);
+
+    private final Group defaultGroup;
+
+    private final Map<String, Group> shards = new LinkedHashMap<>();
+
+    private final ConsistentHashRing<Group> ring;
+
+    private final LongSupplier nanoClock;
+
+    /**
+     * @param shards shard groups, empty if data is not sharded; a group may share
+     *               endpoints with the default group
+     */
+    UpstreamRouter(Group defaultGroup, List<Group> shards, int virtualNodes, LongSupplier nanoClock) {
+        this.defaultGroup = defaultGroup;
+        this.nanoClock = nanoClock;
+        Map<String, Group> byPrimary = new LinkedHashMap<>();
+        for (Group shard : shards) {
+            this.shards.put(shard.name(), shard);
+            // The primary URL names the shard on the ring, so listing the shards in another order routes alike
+            byPrimary.put(shard.primary().baseUrl(), shard);
+        }
+        this.ring = shards.isEmpty() ? null : new ConsistentHashRing<>(byPrimary, virtualNodes);
+    }
+
+    /** The primary of the default group. */
+    UpstreamEndpoint primary() {
+        return defaultGroup.primary();
+    }
+
+    public boolean isSharded() {
+        return ring != null;
+    }
+
+    /**
+     * Name of the group holding the patient's data, for batching calls by group.
+     */
+    public String shardOf(String patientId) {
+        return groupFor(patientId).name();
+    }
+
+    /**
+     * Runs a read about {@code patientId}, or about no patient if it is
+     * {@code null}, on a member of the group holding the data.
+     */
+    <T> T read(String patientId, Function<UpstreamEndpoint, T> call) {
+        return execute(groupFor(patientId).choose(nanoClock.getAsLong()), call);
+    }
+
+    /**
+     * Runs a read on a member of the named group, as returned by {@link #shardOf}.
+     */
+    <T> T readGroup(String group, Function<UpstreamEndpoint, T> call) {
+        Group target = defaultGroup.name().equals(group) ? defaultGroup : shards.get(group);
+        if (target == null) {
+            throw new IllegalArgumentException("Unknown upstream group " + group);
+        }
+        return execute(target.choose(nanoClock.getAsLong()), call);
+    }
+
+    /**
+     * Runs a call on the primary of the default group, for writes and for what
+     * only the primary is sure to have, such as the Subscriptions it just created.
+     */
+    <T> T atPrimary(Function<UpstreamEndpoint, T> call) {
+        return execute(defaultGroup.primary(), call);
+    }
+
+    /**
+     * Runs a read on the primary of the group holding {@code patientId}, for
+     * reads that must not miss what a lagging replica has not applied yet.
+     */
+    <T> T readPrimary(String patientId, Function<UpstreamEndpoint, T> call) {
+        return execute(groupFor(patientId).primary(), call);
+    }
+
+    /**
+     * Runs a call on the server that {@code url} points at, such as a paging
+     * link; the default primary if it is none of the configured ones.
+     */
+    <T> T atUrl(String url, Function<UpstreamEndpoint, T> call) {
+        UpstreamEndpoint target = defaultGroup.primary();
+        int longestMatch = 0;
+        for (UpstreamEndpoint endpoint : endpoints()) {
+            if (url.startsWith(endpoint.baseUrl()) && endpoint.baseUrl().length() > longestMatch) {
+                target = endpoint;
+                longestMatch = endpoint.baseUrl().length();
+            }
+        }
+        return execute(target, call);
+    }
+
+    public List<Map<String, Object>> stats() {
+        long now = nanoClock.getAsLong();
+        List<Map<String, Object>> result = new ArrayList<>();
+        List<Group> groups = new ArrayList<>();
+        groups.add(defaultGroup);
+        groups.addAll(shards.values());
+        for (Group group : groups) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("group", group.name());
+            List<Map<String, Object>> members = new ArrayList<>();
+            for (UpstreamEndpoint endpoint : group.endpoints()) {
+                Map<String, Object> member = endpoint.stats(now);
+                member.put("role", endpoint == group.primary() ? "primary" : "replica");
+                members.add(member);
+            }
+            entry.put("endpoints", members);
+            result.add(entry);
+        }
+        return result;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (UpstreamEndpoint endpoint : endpoints()) {
+            Gauge.builder("fhir.upstream.endpoint.latency", endpoint, e -> e.latencyMillis(nanoClock.getAsLong()))
+                    .description("EWMA latency the router uses to choose between replicas")
+                    .baseUnit("milliseconds")
+                    .tag("endpoint", endpoint.baseUrl())
+                    .register(registry);
+            Gauge.builder("fhir.upstream.endpoint.in.flight", endpoint, UpstreamEndpoint::inFlight)
+                    .description("Calls in flight to the upstream server")
+                    .tag("endpoint", endpoint.baseUrl())
+                    .register(registry);
+            Gauge.builder("fhir.upstream.endpoint.available", endpoint, e -> e.isAvailable(nanoClock.getAsLong()) ? 1 : 0)
+                    .description("Whether the upstream server takes calls (1) or is ejected (0)")
+                    .tag("endpoint", endpoint.baseUrl())
+                    .register(registry);
+            FunctionCounter.builder("fhir.upstream.endpoint.ejections", endpoint, UpstreamEndpoint::ejections)
+                    .description("Times the upstream server was ejected after consecutive failures")
+                    .tag("endpoint", endpoint.baseUrl())
+                    .register(registry);
+        }
+    }
+
+    private Group groupFor(String patientId) {
+        return ring == null || patientId == null ? defaultGroup : ring.nodeFor(patientId);
+    }
+
+    private Set<UpstreamEndpoint> endpoints() {
+        Set<UpstreamEndpoint> endpoints = new LinkedHashSet<>(defaultGroup.endpoints());
+        shards.values().forEach(shard -> endpoints.addAll(shard.endpoints()));
+        return endpoints;
+    }
+
+    private <T> T execute(UpstreamEndpoint endpoint, Function<UpstreamEndpoint, T> call) {
+        boolean failed = false;
+        long start = nanoClock.getAsLong();
+        endpoint.started();
+        try {
+            return call.apply(endpoint);
+        } catch (BaseServerResponseException e) {
+            // Connection failures (status 0) and server errors count against the server, unless
+            // this request's deadline aborted the connection
+            RequestDeadline deadline = RequestDeadline.current();
+            failed = (e.getStatusCode() == 0 || e.getStatusCode() >= 500) && (deadline == null || !deadline.isCancelled());
+            throw e;
+        } finally {
+            long now = nanoClock.getAsLong();
+            if (endpoint.finished(now, now - start, failed)) {
+                logger.warn("Ejected upstream {} after consecutive failures; it gets no calls for a while", endpoint.baseUrl());
+            }
+        }
+    }
+
+    /**
+     * A primary and its read replicas.
+     */
+    record Group(String name, List<UpstreamEndpoint> endpoints) {
+
+        Group {
+            if (endpoints.isEmpty()) {
+                throw new IllegalArgumentException("Upstream group " + name + " has no servers");
+            }
+            endpoints = List.copyOf(endpoints);
+        }
+
+        UpstreamEndpoint primary() {
+            return endpoints.get(0);
+        }
+
+        /**
+         * Power of two choices among the available members.
+         */
+        UpstreamEndpoint choose(long nowNanos) {
+            List<UpstreamEndpoint> available = new ArrayList<>(endpoints.size());
+            for (UpstreamEndpoint endpoint : endpoints) {
+                if (endpoint.isAvailable(nowNanos)) {
+                    available.add(endpoint);
+                }
+            }
+            if (available.isEmpty()) {
+                available = endpoints;
+            }
+            if (available.size() == 1) {
+                return available.get(0);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(available.size());
+            int second = random.nextInt(available.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            UpstreamEndpoint a = available.get(first);
+            UpstreamEndpoint b = available.get(second);
+            return b.cost(nowNanos) < a.cost(nowNanos) ? b : a;
+        }
+    }
+}
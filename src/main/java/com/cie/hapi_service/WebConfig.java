@@ -0,0 +1,79 @@
+package com.cie.hapi_service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.List;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    @Autowired
+    private FhirJsonEncoder fhirJsonEncoder;
+
+    @Value("${fhir.stream.executor.max-pool-size:32}")
+    private int streamMaxPoolSize;
+
+    @Value("${fhir.stream.executor.queue-capacity:64}")
+    private int streamQueueCapacity;
+
+    @Value("${fhir.request.executor.max-pool-size:200}")
+    private int requestMaxPoolSize;
+
+    @Value("${fhir.request.executor.queue-capacity:1000}")
+    private int requestQueueCapacity;
+
+    /**
+     * Runs streaming response bodies. Kept separate from the upstream executor so
+     * a writer waiting on a prefetched page can never starve the fetch it waits on.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor asyncRequestExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(streamMaxPoolSize);
+        executor.setMaxPoolSize(streamMaxPoolSize);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setQueueCapacity(streamQueueCapacity);
+        executor.setThreadNamePrefix("http-stream-");
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * Runs FHIR-backed controller logic (see {@link FhirRequestExecutor}), so
+     * servlet threads are released while upstream calls are in flight. A full
+     * queue is rejected with a 503 rather than queueing past the deadline.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor requestHandlerExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(requestMaxPoolSize);
+        executor.setMaxPoolSize(requestMaxPoolSize);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setQueueCapacity(requestQueueCapacity);
+        executor.setThreadNamePrefix("fhir-request-");
+        executor.initialize();
+        return executor;
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(asyncRequestExecutor());
+    }
+
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        // Ahead of Jackson, which would otherwise try to serialize HAPI model objects as beans
+        converters.add(0, new FhirResourceHttpMessageConverter(fhirJsonEncoder));
+        converters.add(1, new RawFhirResponseHttpMessageConverter());
+        converters.add(2, new StoredResourcesHttpMessageConverter());
+        converters.add(3, new CachedSearchHttpMessageConverter());
+        converters.add(4, new CachedPatientHttpMessageConverter());
+    }
+}
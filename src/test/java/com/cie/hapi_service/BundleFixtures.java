@@ -0,0 +1,143 @@
+package com.cie.hapi_service;
+
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Generates resources and searchset Bundles shaped like the ones the upstream
+ * server returns.
+ */
+final class BundleFixtures {
+
+	static final String BASE_URL = "https://fhir.example.org/baseR4/";
+
+	private static final Instant START = Instant.parse("2020-01-01T00:00:00Z");
+
+	private BundleFixtures() {
+	}
+
+	static Bundle searchset(String resourceType, int entries) {
+		return searchset(BASE_URL, resourceType, entries, 0);
+	}
+
+	/**
+	 * One page of a search result; resources are numbered from {@code offset}.
+	 */
+	static Bundle searchset(String baseUrl, String resourceType, int entries, int offset) {
+		// Fixed seed so every run encodes the same content
+		Random random = new Random(42L + offset);
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.SEARCHSET);
+		bundle.addLink().setRelation(Bundle.LINK_SELF).setUrl(baseUrl + resourceType + "?subject=123");
+		for (int i = offset; i < offset + entries; i++) {
+			Resource resource = resource(resourceType, i, random);
+			bundle.addEntry()
+					.setFullUrl(baseUrl + resourceType + "/" + resource.getIdElement().getIdPart())
+					.setResource(resource)
+					.getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+		}
+		bundle.setTotal(entries);
+		return bundle;
+	}
+
+	static Patient patient(String id) {
+		Patient patient = new Patient();
+		patient.setId(id);
+		patient.getMeta().setVersionId("1").setLastUpdated(timestamp(0));
+		patient.addName()
+				.setUse(HumanName.NameUse.OFFICIAL)
+				.setFamily("Doe")
+				.addGiven("John");
+		patient.setGender(Enumerations.AdministrativeGender.MALE);
+		patient.setBirthDate(timestamp(0));
+		return patient;
+	}
+
+	private static Resource resource(String resourceType, int index, Random random) {
+		switch (resourceType) {
+			case "Observation":
+				return observation(index, random);
+			case "DiagnosticReport":
+				return diagnosticReport(index);
+			case "DocumentReference":
+				return documentReference(index);
+			default:
+				throw new IllegalArgumentException("Unsupported resource type: " + resourceType);
+		}
+	}
+
+	private static Observation observation(int index, Random random) {
+		Observation observation = new Observation();
+		observation.setId("obs-" + index);
+		observation.getMeta().setVersionId("1").setLastUpdated(timestamp(index));
+		observation.setStatus(Observation.ObservationStatus.FINAL);
+		observation.addCategory(concept("http://terminology.hl7.org/CodeSystem/observation-category", "vital-signs", "Vital Signs"));
+		observation.setCode(concept("http://loinc.org", "8867-4", "Heart rate"));
+		observation.setSubject(new Reference("Patient/123"));
+		observation.setEffective(new DateTimeType(timestamp(index)));
+		observation.setValue(new Quantity()
+				.setValue(50 + random.nextInt(70))
+				.setUnit("beats/minute")
+				.setSystem("http://unitsofmeasure.org")
+				.setCode("/min"));
+		return observation;
+	}
+
+	private static DiagnosticReport diagnosticReport(int index) {
+		DiagnosticReport report = new DiagnosticReport();
+		report.setId("dr-" + index);
+		report.getMeta().setVersionId("1").setLastUpdated(timestamp(index));
+		report.setStatus(DiagnosticReport.DiagnosticReportStatus.FINAL);
+		report.setCode(concept("http://loinc.org", "58410-2", "Complete blood count panel"));
+		report.setSubject(new Reference("Patient/123"));
+		report.setEffective(new DateTimeType(timestamp(index)));
+		report.setIssued(timestamp(index));
+		for (int i = 0; i < 5; i++) {
+			report.addResult(new Reference("Observation/obs-" + index + "-" + i));
+		}
+		report.setConclusion("Within normal limits.");
+		return report;
+	}
+
+	private static DocumentReference documentReference(int index) {
+		DocumentReference document = new DocumentReference();
+		document.setId("doc-" + index);
+		document.getMeta().setVersionId("1").setLastUpdated(timestamp(index));
+		document.setStatus(Enumerations.DocumentReferenceStatus.CURRENT);
+		document.setType(concept("http://loinc.org", "34133-9", "Summary of episode note"));
+		document.setSubject(new Reference("Patient/123"));
+		document.setDate(timestamp(index));
+		document.addContent().setAttachment(new Attachment()
+				.setContentType("application/pdf")
+				.setUrl("Binary/doc-" + index)
+				.setSize(48_000)
+				.setTitle("Discharge summary " + index));
+		return document;
+	}
+
+	private static CodeableConcept concept(String system, String code, String display) {
+		CodeableConcept concept = new CodeableConcept();
+		concept.addCoding().setSystem(system).setCode(code).setDisplay(display);
+		concept.setText(display);
+		return concept;
+	}
+
+	private static Date timestamp(int index) {
+		return Date.from(START.plusSeconds(index * 3600L));
+	}
+}
@@ -0,0 +1,71 @@
+package com.cie.hapi_service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConsistentHashRingTests {
+
+	private static final int KEYS = 30_000;
+
+	@Test
+	void mapsKeysIndependentlyOfNodeOrder() {
+		Map<String, String> nodes = new LinkedHashMap<>();
+		nodes.put("http://a/fhir/", "a");
+		nodes.put("http://b/fhir/", "b");
+		nodes.put("http://c/fhir/", "c");
+		Map<String, String> reversed = new LinkedHashMap<>();
+		reversed.put("http://c/fhir/", "c");
+		reversed.put("http://b/fhir/", "b");
+		reversed.put("http://a/fhir/", "a");
+
+		ConsistentHashRing<String> ring = new ConsistentHashRing<>(nodes, 128);
+		ConsistentHashRing<String> other = new ConsistentHashRing<>(reversed, 128);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(ring.nodeFor("patient-" + i), other.nodeFor("patient-" + i));
+		}
+	}
+
+	@Test
+	void spreadsKeysEvenly() {
+		ConsistentHashRing<String> ring = new ConsistentHashRing<>(nodes(3), 128);
+
+		Map<String, Integer> counts = new HashMap<>();
+		for (int i = 0; i < KEYS; i++) {
+			counts.merge(ring.nodeFor(Integer.toString(i)), 1, Integer::sum);
+		}
+
+		assertEquals(3, counts.size());
+		counts.values().forEach(count -> assertTrue(count > KEYS * 0.25 && count < KEYS * 0.42, counts.toString()));
+	}
+
+	@Test
+	void addingANodeOnlyMovesKeysToIt() {
+		ConsistentHashRing<String> three = new ConsistentHashRing<>(nodes(3), 128);
+		ConsistentHashRing<String> four = new ConsistentHashRing<>(nodes(4), 128);
+
+		int moved = 0;
+		for (int i = 0; i < KEYS; i++) {
+			String before = three.nodeFor(Integer.toString(i));
+			String after = four.nodeFor(Integer.toString(i));
+			if (!before.equals(after)) {
+				assertEquals("node-3", after);
+				moved++;
+			}
+		}
+		assertTrue(moved > KEYS * 0.15 && moved < KEYS * 0.35, moved + " keys moved");
+	}
+
+	private static Map<String, String> nodes(int count) {
+		Map<String, String> nodes = new LinkedHashMap<>();
+		for (int i = 0; i < count; i++) {
+			nodes.put("http://fhir-" + i + ".example.org/fhir/", "node-" + i);
+		}
+		return nodes;
+	}
+}
@@ -0,0 +1,56 @@
+package com.cie.hapi_service;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DeltaSyncTests {
+
+	private final DeltaSync deltaSync = new DeltaSync();
+
+	@Test
+	void resolvesTheWatermarkFromCursorOrSince() {
+		Instant since = Instant.parse("2024-03-01T10:15:30.250Z");
+		String cursor = new DeltaSync.Cursor("Observation", "123", since).encode();
+
+		assertEquals(since, deltaSync.watermark("Observation", "Patient/123", null, cursor));
+		assertEquals(Instant.parse("2024-03-01T10:00:00Z"), deltaSync.watermark("Observation", "123", "2024-03-01T11:00:00+01:00", null));
+		assertNull(deltaSync.watermark("Observation", "123", null, null));
+	}
+
+	@Test
+	void rejectsForeignAndMalformedCursors() {
+		String cursor = new DeltaSync.Cursor("Observation", "123", Instant.EPOCH).encode();
+
+		assertThrows(IllegalArgumentException.class, () -> deltaSync.watermark("DiagnosticReport", "123", null, cursor));
+		assertThrows(IllegalArgumentException.class, () -> deltaSync.watermark("Observation", "456", null, cursor));
+		assertThrows(IllegalArgumentException.class, () -> deltaSync.watermark("Observation", "123", "2024-01-01", cursor));
+		assertThrows(IllegalArgumentException.class, () -> deltaSync.watermark("Observation", "123", null, "not a cursor!"));
+		assertThrows(IllegalArgumentException.class, () -> deltaSync.watermark("Observation", "123", null, "bm9wZQ"));
+		assertThrows(IllegalArgumentException.class, () -> deltaSync.watermark("Observation", "123", "yesterday", null));
+	}
+
+	@Test
+	void turnsEnteredInErrorResourcesIntoTombstones() {
+		Observation current = new Observation();
+		current.setId("1");
+		current.setStatus(Observation.ObservationStatus.FINAL);
+		Observation retracted = new Observation();
+		retracted.setId("Observation/2/_history/3");
+		retracted.setStatus(Observation.ObservationStatus.ENTEREDINERROR);
+
+		assertSame(current, DeltaSync.tombstoneIfDeleted(current));
+		Resource tombstone = DeltaSync.tombstoneIfDeleted(retracted);
+		Bundle.BundleEntryRequestComponent request = ((Bundle) tombstone).getEntryFirstRep().getRequest();
+		assertEquals(Bundle.HTTPVerb.DELETE, request.getMethod());
+		assertEquals("Observation/2", request.getUrl());
+	}
+}
@@ -0,0 +1,455 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Subscription;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Minimal stand-in for an upstream FHIR R4 server, for tests and load runs.
+ *
+ * <p>Supports the interactions this service uses: capabilities, Patient read
+ * (with version ETags and 304 revalidation), Patient name search, subject
+ * searches with {@code _getpages} paging, batch Bundles of reads and a Bulk
+ * Data {@code $export} that completes on the first status poll, and rest-hook
+ * Subscriptions that it notifies when told to with {@link #notifySubscribers}. Latency,
+ * error rate and result size are configurable. Response bodies are encoded once
+ * and replayed, so the server spends its CPU on I/O rather than on HAPI.
+ */
+class FakeFhirServer implements AutoCloseable {
+
+	private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+	private final HttpServer server;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "fake-fhir");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final String baseUrl;
+
+	private final Map<String, byte[]> pages = new ConcurrentHashMap<>();
+
+	private final Map<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+
+	private volatile long latencyMs;
+
+	private volatile long jitterMs;
+
+	private volatile double errorRate;
+
+	private volatile int pageSize = 20;
+
+	private volatile int pageCount = 1;
+
+	private volatile int failingPage = -1;
+
+	private volatile String exportTypes = "Patient";
+
+	private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+	private final AtomicInteger subscriptionIds = new AtomicInteger();
+
+	private final HttpClient notificationClient = HttpClient.newHttpClient();
+
+	FakeFhirServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 512);
+		server.setExecutor(executor);
+		server.createContext("/fhir", this::handle);
+		baseUrl = "http://localhost:" + server.getAddress().getPort() + "/fhir/";
+	}
+
+	FakeFhirServer start() {
+		server.start();
+		return this;
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	String getBaseUrl() {
+		return baseUrl;
+	}
+
+	/**
+	 * Delays every response by {@code latencyMs} plus a random share of {@code jitterMs}.
+	 */
+	FakeFhirServer withLatency(long latencyMs, long jitterMs) {
+		this.latencyMs = latencyMs;
+		this.jitterMs = jitterMs;
+		return this;
+	}
+
+	/**
+	 * Fails this fraction of requests with a 503.
+	 */
+	FakeFhirServer withErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+		return this;
+	}
+
+	/**
+	 * Shapes subject search results as {@code pageCount} pages of {@code pageSize} entries.
+	 */
+	FakeFhirServer withResults(int pageSize, int pageCount) {
+		this.pageSize = pageSize;
+		this.pageCount = pageCount;
+		pages.clear();
+		return this;
+	}
+
+	/**
+	 * Fails fetches of the page with this index (the first page is 0) with a 500,
+	 * or none if negative.
+	 */
+	FakeFhirServer withFailingPage(int pageIndex) {
+		this.failingPage = pageIndex;
+		return this;
+	}
+
+	/**
+	 * Number of requests received per interaction, e.g. {@code "GET Patient/{id}"}.
+	 */
+	Map<String, Long> getRequestCounts() {
+		Map<String, Long> counts = new LinkedHashMap<>();
+		requestCounts.forEach((key, count) -> counts.put(key, count.sum()));
+		return counts;
+	}
+
+	long getRequestCount(String interaction) {
+		LongAdder count = requestCounts.get(interaction);
+		return count == null ? 0 : count.sum();
+	}
+
+	void resetRequestCounts() {
+		requestCounts.clear();
+	}
+
+	Map<String, Subscription> getSubscriptions() {
+		return subscriptions;
+	}
+
+	/**
+	 * Delivers a change to {@code resource} to every matching rest-hook, as
+	 * {@code PUT [endpoint]/[type]/[id]}, or {@code DELETE} with no body when
+	 * {@code deleted}. Returns the number of deliveries answered with 2xx.
+	 */
+	int notifySubscribers(IBaseResource resource, boolean deleted) throws IOException, InterruptedException {
+		String type = resource.fhirType();
+		int delivered = 0;
+		for (Subscription subscription : subscriptions.values()) {
+			if (!subscription.getCriteria().startsWith(type + "?")) {
+				continue;
+			}
+			HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(
+					subscription.getChannel().getEndpoint() + "/" + type + "/" + resource.getIdElement().getIdPart()));
+			for (StringType header : subscription.getChannel().getHeader()) {
+				String[] parts = header.getValue().split(":\\s*", 2);
+				request.header(parts[0], parts[1]);
+			}
+			if (deleted) {
+				request.DELETE();
+			} else {
+				request.header("Content-Type", "application/fhir+json")
+						.PUT(HttpRequest.BodyPublishers.ofByteArray(encode(resource)));
+			}
+			HttpResponse<Void> response = notificationClient.send(request.build(), HttpResponse.BodyHandlers.discarding());
+			if (response.statusCode() / 100 == 2) {
+				delivered++;
+			}
+		}
+		return delivered;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			String path = exchange.getRequestURI().getPath().substring("/fhir".length()).replaceAll("^/+|/+$", "");
+			Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			String method = exchange.getRequestMethod();
+			String[] segments = path.isEmpty() ? new String[0] : path.split("/");
+
+			String interaction = method + " " + interaction(segments, query);
+			requestCounts.computeIfAbsent(interaction, key -> new LongAdder()).increment();
+
+			delay();
+			if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+				send(exchange, 503, outcome("Simulated upstream failure"));
+				return;
+			}
+
+			if (method.equals("GET") && segments.length == 1 && segments[0].equals("$export")) {
+				exportTypes = query.getOrDefault("_type", "Patient");
+				exchange.getResponseHeaders().add("Content-Location", baseUrl + "$export-status");
+				exchange.sendResponseHeaders(202, -1);
+			} else if (segments.length == 1 && segments[0].equals("$export-status")) {
+				if (method.equals("DELETE")) {
+					exchange.sendResponseHeaders(202, -1);
+				} else {
+					sendBytes(exchange, 200, exportManifest(), "application/json");
+				}
+			} else if (method.equals("GET") && segments.length == 2 && segments[0].equals("$export-file")) {
+				sendBytes(exchange, 200, exportFile(segments[1]), "application/fhir+ndjson");
+			} else if (segments.length >= 1 && segments[0].equals("Subscription")) {
+				subscription(exchange, method, segments);
+			} else if (method.equals("GET") && segments.length == 1 && segments[0].equals("metadata")) {
+				send(exchange, 200, capabilities());
+			} else if (method.equals("GET") && query.containsKey("_getpages")) {
+				String[] token = query.get("_getpages").split(":");
+				int pageIndex = Integer.parseInt(query.get("_getpagesoffset"));
+				if (pageIndex == failingPage) {
+					send(exchange, 500, outcome("Simulated failure of page " + pageIndex));
+					return;
+				}
+				sendBytes(exchange, 200, page(token[0], pageIndex), null);
+			} else if (method.equals("GET") && segments.length == 2 && segments[0].equals("Patient")) {
+				readPatient(exchange, segments[1]);
+			} else if (method.equals("GET") && segments.length == 1 && segments[0].equals("Patient")) {
+				Bundle bundle = new Bundle();
+				bundle.setType(Bundle.BundleType.SEARCHSET);
+				for (int i = 1; i <= 3; i++) {
+					bundle.addEntry().setFullUrl(baseUrl + "Patient/" + i).setResource(BundleFixtures.patient(Integer.toString(i)));
+				}
+				bundle.setTotal(3);
+				send(exchange, 200, bundle);
+			} else if (method.equals("GET") && segments.length == 1 && query.containsKey("_lastUpdated")) {
+				send(exchange, 200, changedSince(segments[0], query.get("_lastUpdated")));
+			} else if (method.equals("GET") && segments.length == 1) {
+				sendBytes(exchange, 200, page(segments[0], 0), null);
+			} else if (method.equals("POST") && segments.length == 0) {
+				batch(exchange);
+			} else {
+				send(exchange, 404, outcome("Unsupported request: " + method + " " + path));
+			}
+		}
+	}
+
+	private void readPatient(HttpExchange exchange, String id) throws IOException {
+		if (id.startsWith("missing")) {
+			send(exchange, 404, outcome("Patient/" + id + " not found"));
+			return;
+		}
+		if (id.startsWith("unreachable")) {
+			// Closing without a response looks like a dropped connection to the client
+			return;
+		}
+		String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+		if (ifNoneMatch != null && ifNoneMatch.replace("W/", "").equals("\"1\"")) {
+			requestCounts.computeIfAbsent("GET Patient/{id} not modified", key -> new LongAdder()).increment();
+			exchange.getResponseHeaders().add("ETag", "W/\"1\"");
+			exchange.sendResponseHeaders(304, -1);
+			return;
+		}
+		exchange.getResponseHeaders().add("ETag", "W/\"1\"");
+		send(exchange, 200, BundleFixtures.patient(id));
+	}
+
+	private void subscription(HttpExchange exchange, String method, String[] segments) throws IOException {
+		if (method.equals("POST") && segments.length == 1) {
+			Subscription subscription;
+			try (InputStream body = exchange.getRequestBody()) {
+				subscription = FHIR_CONTEXT.newJsonParser().parseResource(Subscription.class, body);
+			}
+			String id = "sub-" + subscriptionIds.incrementAndGet();
+			subscription.setId("Subscription/" + id);
+			subscription.setStatus(Subscription.SubscriptionStatus.ACTIVE);
+			subscriptions.put(id, subscription);
+			exchange.getResponseHeaders().add("Location", baseUrl + "Subscription/" + id + "/_history/1");
+			send(exchange, 201, subscription);
+			return;
+		}
+		Subscription subscription = segments.length == 2 ? subscriptions.get(segments[1]) : null;
+		if (subscription == null) {
+			send(exchange, 404, outcome("Subscription not found"));
+		} else if (method.equals("DELETE")) {
+			subscriptions.remove(segments[1]);
+			exchange.sendResponseHeaders(204, -1);
+		} else {
+			send(exchange, 200, subscription);
+		}
+	}
+
+	private void batch(HttpExchange exchange) throws IOException {
+		Bundle request;
+		try (InputStream body = exchange.getRequestBody()) {
+			request = FHIR_CONTEXT.newJsonParser().parseResource(Bundle.class, body);
+		}
+		Bundle response = new Bundle();
+		response.setType(Bundle.BundleType.BATCHRESPONSE);
+		for (Bundle.BundleEntryComponent entry : request.getEntry()) {
+			String id = entry.getRequest().getUrl().substring("Patient/".length());
+			if (id.startsWith("missing")) {
+				response.addEntry().getResponse().setStatus("404 Not Found");
+			} else {
+				response.addEntry()
+						.setResource(BundleFixtures.patient(id))
+						.getResponse().setStatus("200 OK");
+			}
+		}
+		send(exchange, 200, response);
+	}
+
+	private byte[] page(String resourceType, int pageIndex) {
+		return pages.computeIfAbsent(resourceType + ":" + pageIndex, key -> {
+			Bundle bundle = BundleFixtures.searchset(baseUrl, resourceType, pageSize, pageIndex * pageSize);
+			bundle.setTotal(pageSize * pageCount);
+			if (pageIndex + 1 < pageCount) {
+				bundle.addLink()
+						.setRelation(Bundle.LINK_NEXT)
+						.setUrl(baseUrl + "?_getpages=" + resourceType + ":page&_getpagesoffset=" + (pageIndex + 1));
+			}
+			return encode(bundle);
+		});
+	}
+
+	/**
+	 * The first page of subject search results changed after a {@code gt} watermark,
+	 * stamped with the search time like a real server does.
+	 */
+	private Bundle changedSince(String resourceType, String lastUpdated) {
+		Date after = new DateTimeType(lastUpdated.substring("gt".length())).getValue();
+		Bundle bundle = BundleFixtures.searchset(baseUrl, resourceType, pageSize, 0);
+		bundle.getEntry().removeIf(entry -> !entry.getResource().getMeta().getLastUpdated().after(after));
+		bundle.setTotal(bundle.getEntry().size());
+		bundle.getMeta().setLastUpdated(new Date());
+		return bundle;
+	}
+
+	private byte[] exportManifest() {
+		StringBuilder manifest = new StringBuilder("{\"transactionTime\":\"")
+				.append(Instant.now())
+				.append("\",\"request\":\"").append(baseUrl).append("$export\",\"requiresAccessToken\":false,\"output\":[");
+		String[] types = exportTypes.split(",");
+		for (int i = 0; i < types.length; i++) {
+			manifest.append(i > 0 ? "," : "")
+					.append("{\"type\":\"").append(types[i]).append("\",\"url\":\"")
+					.append(baseUrl).append("$export-file/").append(types[i]).append("\"}");
+		}
+		return manifest.append("],\"error\":[]}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Exported NDJSON: Patients 123 and 456, and one page of other resources, all for Patient 123.
+	 */
+	private byte[] exportFile(String resourceType) {
+		StringBuilder ndjson = new StringBuilder();
+		if (resourceType.equals("Patient")) {
+			for (String id : new String[] {"123", "456"}) {
+				ndjson.append(new String(encode(BundleFixtures.patient(id)), StandardCharsets.UTF_8)).append('\n');
+			}
+		} else {
+			for (Bundle.BundleEntryComponent entry : BundleFixtures.searchset(baseUrl, resourceType, pageSize, 0).getEntry()) {
+				ndjson.append(new String(encode(entry.getResource()), StandardCharsets.UTF_8)).append('\n');
+			}
+		}
+		return ndjson.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private void delay() {
+		long delay = latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs + 1) : 0);
+		if (delay <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String interaction(String[] segments, Map<String, String> query) {
+		if (query.containsKey("_getpages")) {
+			return "page";
+		}
+		if (segments.length == 0) {
+			return "batch";
+		}
+		if (segments.length == 1) {
+			return segments[0].equals("metadata") ? "metadata" : segments[0] + "?";
+		}
+		return segments[0] + "/{id}";
+	}
+
+	private static CapabilityStatement capabilities() {
+		CapabilityStatement capabilities = new CapabilityStatement();
+		capabilities.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		capabilities.setDate(new Date());
+		capabilities.setKind(CapabilityStatement.CapabilityStatementKind.INSTANCE);
+		capabilities.setFhirVersion(Enumerations.FHIRVersion._4_0_1);
+		capabilities.addFormat("json");
+		return capabilities;
+	}
+
+	private static OperationOutcome outcome(String diagnostics) {
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue()
+				.setSeverity(OperationOutcome.IssueSeverity.ERROR)
+				.setCode(OperationOutcome.IssueType.PROCESSING)
+				.setDiagnostics(diagnostics);
+		return outcome;
+	}
+
+	private static void send(HttpExchange exchange, int status, IBaseResource resource) throws IOException {
+		sendBytes(exchange, status, encode(resource), null);
+	}
+
+	private static void sendBytes(HttpExchange exchange, int status, byte[] body, String contentType) throws IOException {
+		exchange.getResponseHeaders().add("Content-Type", contentType != null ? contentType : "application/fhir+json;charset=UTF-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static byte[] encode(IBaseResource resource) {
+		IParser parser = FHIR_CONTEXT.newJsonParser();
+		return parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) {
+		Map<String, String> query = new LinkedHashMap<>();
+		if (rawQuery == null || rawQuery.isEmpty()) {
+			return query;
+		}
+		for (String pair : rawQuery.split("&")) {
+			int separator = pair.indexOf('=');
+			String key = URLDecoder.decode(separator < 0 ? pair : pair.substring(0, separator), StandardCharsets.UTF_8);
+			String value = separator < 0 ? "" : URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8);
+			query.putIfAbsent(key, value);
+		}
+		return query;
+	}
+}
@@ -0,0 +1,385 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the service end to end against {@link FakeFhirServer}.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class FakeUpstreamIntegrationTests {
+
+	private static final FakeFhirServer UPSTREAM = startUpstream();
+
+	private static final String PUBLIC_BASE_URL = "https://fhir.example.org/public/";
+
+	private static final Path STORE_DIRECTORY = createStoreDirectory();
+
+	private static final long PATIENT_TTL_MS = 2000;
+
+	@Autowired
+	private TestRestTemplate restTemplate;
+
+	@Autowired
+	private PoolingHttpClientConnectionManager fhirConnectionManager;
+
+	@Autowired
+	private FhirRequestExecutor fhirRequestExecutor;
+
+	@Autowired
+	private FhirUpstreamService fhirUpstreamService;
+
+	@DynamicPropertySource
+	static void upstreamProperties(DynamicPropertyRegistry registry) {
+		registry.add("fhir.server.base-url", UPSTREAM::getBaseUrl);
+		registry.add("fhir.passthrough.public-base-url", () -> PUBLIC_BASE_URL);
+		registry.add("fhir.store.directory", () -> STORE_DIRECTORY.toString());
+		registry.add("fhir.cache.search.enabled", () -> "true");
+		registry.add("fhir.name-index.enabled", () -> "true");
+		registry.add("fhir.cache.patient.ttl", () -> PATIENT_TTL_MS + "ms");
+	}
+
+	@AfterAll
+	static void stopUpstream() throws IOException {
+		UPSTREAM.close();
+		FileSystemUtils.deleteRecursively(STORE_DIRECTORY);
+	}
+
+	@Test
+	void repeatedPatientReadsAreServedFromCache() {
+		for (int i = 0; i < 3; i++) {
+			ResponseEntity<String> response = restTemplate.getForEntity("/api/patients/cached-1", String.class);
+			assertEquals(HttpStatus.OK, response.getStatusCode());
+			assertTrue(response.getBody().contains("\"id\":\"cached-1\""));
+		}
+		assertEquals(1, UPSTREAM.getRequestCount("GET Patient/{id}"));
+	}
+
+	@Test
+	void expiredPatientsAreRevalidatedWithTheirETag() throws Exception {
+		ResponseEntity<String> read = restTemplate.getForEntity("/api/patients/etag-1?_pretty=true", String.class);
+		assertEquals(HttpStatus.OK, read.getStatusCode());
+		assertEquals("W/\"1\"", read.getHeaders().getETag());
+		assertTrue(read.getBody().contains("\"id\" : \"etag-1\""));
+		long reads = UPSTREAM.getRequestCount("GET Patient/{id}");
+		long notModified = UPSTREAM.getRequestCount("GET Patient/{id} not modified");
+
+		Thread.sleep(PATIENT_TTL_MS + 100);
+		ResponseEntity<String> revalidated = restTemplate.getForEntity("/api/patients/etag-1", String.class);
+
+		assertEquals(HttpStatus.OK, revalidated.getStatusCode());
+		assertEquals("W/\"1\"", revalidated.getHeaders().getETag());
+		assertTrue(revalidated.getBody().contains("\"id\":\"etag-1\""));
+		// One conditional read, answered 304, and the cached body reused
+		assertEquals(reads + 1, UPSTREAM.getRequestCount("GET Patient/{id}"));
+		assertEquals(notModified + 1, UPSTREAM.getRequestCount("GET Patient/{id} not modified"));
+	}
+
+	@Test
+	void coveredNameSearchesAreServedFromTheIndex() {
+		ResponseEntity<String> upstream = restTemplate.getForEntity("/api/patients/search?name=Doe", String.class);
+		assertEquals(HttpStatus.OK, upstream.getStatusCode());
+		long searches = UPSTREAM.getRequestCount("GET Patient?");
+
+		ResponseEntity<String> indexed = restTemplate.getForEntity("/api/patients/search?name=doe john", String.class);
+
+		assertEquals(HttpStatus.OK, indexed.getStatusCode());
+		assertTrue(indexed.getBody().contains("\"total\":3"));
+		assertTrue(indexed.getBody().contains("\"code\":\"SUBSETTED\""));
+		assertEquals(searches, UPSTREAM.getRequestCount("GET Patient?"));
+	}
+
+	@Test
+	void searchReturnsUpstreamBundle() {
+		ResponseEntity<String> response = restTemplate.getForEntity("/api/observations/patient/7", String.class);
+
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertTrue(response.getBody().contains("\"resourceType\":\"Bundle\""));
+		assertTrue(response.getBody().contains("\"resourceType\":\"Observation\""));
+	}
+
+	@Test
+	void elementsAreAppliedEvenWhenTheServerIgnoresThem() {
+		ResponseEntity<String> response = restTemplate.getForEntity("/api/observations/patient/7?_elements=code&_count=5", String.class);
+
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertTrue(response.getBody().contains("\"8867-4\""));
+		assertFalse(response.getBody().contains("valueQuantity"));
+
+		ResponseEntity<String> invalid = restTemplate.getForEntity("/api/observations/patient/7?_summary=maybe", String.class);
+		assertEquals(HttpStatus.BAD_REQUEST, invalid.getStatusCode());
+	}
+
+	@Test
+	void aggregatesObservationValuesIntoColumns() {
+		ResponseEntity<String> response = restTemplate.getForEntity(
+				"/api/observations/patient/7/aggregate?code=http://loinc.org|8867-4&downsample=lttb&points=3", String.class);
+
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		String body = response.getBody();
+		assertTrue(body.contains("\"code\":\"http://loinc.org|8867-4\""));
+		assertTrue(body.contains("\"unit\":\"beats/minute\""));
+		assertTrue(body.matches("(?s).*\"timestamps\":\\[\\d+,\\d+,\\d+].*"));
+	}
+
+	@Test
+	void streamsEveryPageOnceAndInOrder() {
+		List<String> expected = new ArrayList<>();
+		for (int page = 0; page < 4; page++) {
+			BundleFixtures.searchset(UPSTREAM.getBaseUrl(), "Observation", 3, page * 3).getEntry()
+					.forEach(entry -> expected.add(entry.getResource().getIdElement().getIdPart()));
+		}
+		long pages = UPSTREAM.getRequestCount("GET page");
+
+		try {
+			UPSTREAM.withResults(3, 4);
+			ResponseEntity<String> streamed = restTemplate.getForEntity("/api/observations/patient/paged-1/stream", String.class);
+
+			assertEquals(HttpStatus.OK, streamed.getStatusCode());
+			List<String> ids = streamed.getBody().lines()
+					.map(line -> FhirContext.forR4Cached().newJsonParser().parseResource(line).getIdElement().getIdPart())
+					.toList();
+			assertEquals(expected, ids);
+			assertEquals(pages + 3, UPSTREAM.getRequestCount("GET page"));
+		} finally {
+			UPSTREAM.withResults(20, 1);
+		}
+	}
+
+	@Test
+	void streamIsAbortedWhenAPageCannotBeFetched() {
+		try {
+			UPSTREAM.withResults(3, 4).withFailingPage(2);
+			// The 200 is already sent, so the client sees the body cut off
+			assertThrows(RestClientException.class,
+					() -> restTemplate.getForEntity("/api/observations/patient/paged-2/stream", String.class));
+		} finally {
+			UPSTREAM.withResults(20, 1).withFailingPage(-1);
+		}
+	}
+
+	@Test
+	void passthroughRewritesBundleUrlsOnly() {
+		ResponseEntity<String> response = restTemplate.getForEntity("/api/diagnosticreports/patient/7?_pretty=true", String.class);
+
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		String body = response.getBody();
+		assertTrue(body.contains("\"fullUrl\" : \"" + PUBLIC_BASE_URL + "DiagnosticReport/"));
+		assertTrue(body.contains("\"url\" : \"" + PUBLIC_BASE_URL + "DiagnosticReport?subject=123\""));
+		assertFalse(body.contains(UPSTREAM.getBaseUrl()));
+		// References inside resources are left alone
+		assertTrue(body.contains("\"reference\" : \"Patient/"));
+	}
+
+	@Test
+	void passthroughResponsesThatCameTooLateReleaseTheirConnection() throws Exception {
+		CountDownLatch received = new CountDownLatch(1);
+		CountDownLatch answered = new CountDownLatch(1);
+		DeferredResult<ResponseEntity<?>> result = fhirRequestExecutor.submit(() -> {
+			RawFhirResponse response = fhirUpstreamService.searchBySubjectRaw(DiagnosticReport.class, "7", SearchOptions.NONE);
+			received.countDown();
+			try {
+				answered.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return ResponseEntity.ok(response);
+		});
+		assertTrue(received.await(10, TimeUnit.SECONDS));
+		// The client was answered, e.g. with a 504, before the upstream response arrived
+		result.setResult(ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT).build());
+		answered.countDown();
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (fhirConnectionManager.getTotalStats().getLeased() > 0) {
+			assertTrue(System.nanoTime() < deadline, "upstream connection was not released");
+			Thread.sleep(20);
+		}
+	}
+
+	@Test
+	void exportedPatientsAreServedFromTheStore() throws Exception {
+		ResponseEntity<String> started = restTemplate.postForEntity("/api/ops/store/ingest", null, String.class);
+		assertEquals(HttpStatus.ACCEPTED, started.getStatusCode());
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (restTemplate.getForObject("/api/ops/store", String.class).contains("\"ingesting\":true")) {
+			assertTrue(System.nanoTime() < deadline, "ingest did not finish");
+			Thread.sleep(50);
+		}
+		long searches = UPSTREAM.getRequestCount("GET DocumentReference?");
+
+		ResponseEntity<String> stored = restTemplate.getForEntity("/api/documentreferences/patient/123", String.class);
+		ResponseEntity<String> storedEmpty = restTemplate.getForEntity("/api/documentreferences/patient/456", String.class);
+		ResponseEntity<String> streamed = restTemplate.getForEntity("/api/documentreferences/patient/123/stream", String.class);
+
+		assertEquals(HttpStatus.OK, stored.getStatusCode());
+		assertTrue(stored.getBody().contains("\"total\":20"));
+		assertTrue(storedEmpty.getBody().contains("\"total\":0"));
+		assertEquals(20, streamed.getBody().split("\n").length);
+		assertEquals(searches, UPSTREAM.getRequestCount("GET DocumentReference?"));
+
+		// Patients that were not exported fall back to the server
+		restTemplate.getForEntity("/api/documentreferences/patient/789", String.class);
+		assertEquals(searches + 1, UPSTREAM.getRequestCount("GET DocumentReference?"));
+
+		// A pushed change to an exported patient's data is read from the server from then on
+		assertEquals(HttpStatus.CREATED, restTemplate.postForEntity("/api/subscriptions/DocumentReference", null, String.class).getStatusCode());
+		DocumentReference document = new DocumentReference();
+		document.setId("doc-1");
+		document.setSubject(new Reference("Patient/123"));
+		assertEquals(1, UPSTREAM.notifySubscribers(document, false));
+		restTemplate.getForEntity("/api/documentreferences/patient/123", String.class);
+		assertEquals(searches + 2, UPSTREAM.getRequestCount("GET DocumentReference?"));
+		restTemplate.delete("/api/subscriptions/DocumentReference");
+	}
+
+	@Test
+	void everythingMergesEveryPageAndFlagsWhatWasLeftOut() {
+		ResponseEntity<String> everything = restTemplate.getForEntity("/api/patients/ev-1/everything", String.class);
+		assertEquals(HttpStatus.OK, everything.getStatusCode());
+		assertTrue(everything.getBody().contains("\"total\":61"));
+		assertFalse(everything.getBody().contains("\"incomplete\""));
+
+		try {
+			// 12 pages per search, of which fhir.everything.max-pages (10) are merged
+			UPSTREAM.withResults(2, 12);
+			ResponseEntity<String> paged = restTemplate.getForEntity("/api/patients/ev-2/everything", String.class);
+			assertEquals(HttpStatus.OK, paged.getStatusCode());
+			assertTrue(paged.getBody().contains("\"total\":64"));
+			assertEquals(3, paged.getBody().split("\"code\":\"incomplete\"", -1).length - 1);
+		} finally {
+			UPSTREAM.withResults(20, 1);
+		}
+
+		assertEquals(HttpStatus.NOT_FOUND, restTemplate.getForEntity("/api/patients/missing-1/everything", String.class).getStatusCode());
+		assertEquals(HttpStatus.SERVICE_UNAVAILABLE, restTemplate.getForEntity("/api/patients/unreachable-1/everything", String.class).getStatusCode());
+	}
+
+	@Test
+	void batchReadsRejectIdsThatAreNotFhirIds() {
+		ResponseEntity<String> read = restTemplate.postForEntity("/api/patients/_batch", List.of(" 123 ", "456"), String.class);
+		assertEquals(HttpStatus.OK, read.getStatusCode());
+		assertTrue(read.getBody().contains("\"fullUrl\":\"Patient/123\""));
+
+		for (String id : List.of("1?_count=1000", "1/_history", "Patient/1")) {
+			ResponseEntity<String> rejected = restTemplate.postForEntity("/api/patients/_batch", List.of("123", id), String.class);
+			assertEquals(HttpStatus.BAD_REQUEST, rejected.getStatusCode(), id);
+		}
+	}
+
+	@Test
+	void changesAreStreamedAfterTheCursor() {
+		String changes = "/api/diagnosticreports/patient/sync-1/changes";
+		ResponseEntity<String> all = restTemplate.getForEntity(changes, String.class);
+		assertEquals(HttpStatus.OK, all.getStatusCode());
+		assertEquals(20, all.getBody().split("\n").length);
+		String cursor = all.getHeaders().getFirst(DeltaSync.CURSOR_HEADER);
+		assertNotNull(cursor);
+
+		ResponseEntity<String> since = restTemplate.getForEntity(changes + "?since=2020-01-01T04:30:00Z", String.class);
+		assertEquals(15, since.getBody().split("\n").length);
+
+		// Nothing changed upstream since the first call
+		ResponseEntity<String> none = restTemplate.getForEntity(changes + "?cursor=" + cursor, String.class);
+		assertEquals(HttpStatus.OK, none.getStatusCode());
+		assertNull(none.getBody());
+		assertNotNull(none.getHeaders().getFirst(DeltaSync.CURSOR_HEADER));
+
+		ResponseEntity<String> foreign = restTemplate.getForEntity("/api/observations/patient/sync-1/changes?cursor=" + cursor, String.class);
+		assertEquals(HttpStatus.BAD_REQUEST, foreign.getStatusCode());
+	}
+
+	@Test
+	void subscriptionNotificationsKeepCachesCurrent() throws Exception {
+		String observations = "/api/observations/patient/sub-1";
+		long searches = UPSTREAM.getRequestCount("GET Observation?");
+		restTemplate.getForEntity(observations, String.class);
+		restTemplate.getForEntity(observations, String.class);
+		assertEquals(searches + 1, UPSTREAM.getRequestCount("GET Observation?"));
+
+		assertEquals(HttpStatus.CREATED, restTemplate.postForEntity("/api/subscriptions/Observation", null, String.class).getStatusCode());
+		assertEquals(HttpStatus.CREATED, restTemplate.postForEntity("/api/subscriptions/Patient", null, String.class).getStatusCode());
+
+		// A changed Observation re-primes the patient's cached search in the background
+		Observation observation = new Observation();
+		observation.setId("obs-1");
+		observation.setSubject(new Reference("Patient/sub-1"));
+		assertEquals(1, UPSTREAM.notifySubscribers(observation, false));
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (UPSTREAM.getRequestCount("GET Observation?") < searches + 2) {
+			assertTrue(System.nanoTime() < deadline, "search was not re-primed");
+			Thread.sleep(20);
+		}
+		restTemplate.getForEntity(observations, String.class);
+		assertEquals(searches + 2, UPSTREAM.getRequestCount("GET Observation?"));
+
+		// A pushed Patient replaces the cached one without a read
+		restTemplate.getForEntity("/api/patients/sub-1", String.class);
+		long reads = UPSTREAM.getRequestCount("GET Patient/{id}");
+		Patient patient = new Patient();
+		patient.setId("sub-1");
+		patient.getMeta().setVersionId("2");
+		patient.addName().setFamily("Pushed");
+		assertEquals(1, UPSTREAM.notifySubscribers(patient, false));
+		assertTrue(restTemplate.getForObject("/api/patients/sub-1", String.class).contains("\"family\":\"Pushed\""));
+		assertEquals(reads, UPSTREAM.getRequestCount("GET Patient/{id}"));
+
+		ResponseEntity<String> unauthorized = restTemplate.exchange("/api/subscriptions/hook/Patient/Patient/sub-1",
+				HttpMethod.DELETE, null, String.class);
+		assertEquals(HttpStatus.UNAUTHORIZED, unauthorized.getStatusCode());
+
+		restTemplate.delete("/api/subscriptions/Observation");
+		restTemplate.delete("/api/subscriptions/Patient");
+		assertTrue(UPSTREAM.getSubscriptions().isEmpty());
+	}
+
+	private static Path createStoreDirectory() {
+		try {
+			return Files.createTempDirectory("resource-store");
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static FakeFhirServer startUpstream() {
+		try {
+			return new FakeFhirServer().start();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package com.cie.hapi_service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class FhirOperationTests {
+
+	private static final String BASE = "https://fhir.example.org/baseR4/";
+
+	@Test
+	void classifiesReadsAndSearches() {
+		assertEquals(FhirOperation.READ, FhirOperation.classify("GET", BASE + "Patient/123", BASE));
+		assertEquals(FhirOperation.VREAD, FhirOperation.classify("GET", BASE + "Patient/123/_history/2", BASE));
+		assertEquals(FhirOperation.SEARCH, FhirOperation.classify("GET", BASE + "Observation?subject=123", BASE));
+		assertEquals(FhirOperation.SEARCH, FhirOperation.classify("POST", BASE + "Observation/_search", BASE));
+		assertEquals(FhirOperation.PAGE, FhirOperation.classify("GET", "https://fhir.example.org/baseR4?_getpages=abc&_getpagesoffset=20", BASE));
+		assertEquals(FhirOperation.CAPABILITIES, FhirOperation.classify("GET", BASE + "metadata", BASE));
+	}
+
+	@Test
+	void classifiesWrites() {
+		assertEquals(FhirOperation.TRANSACTION, FhirOperation.classify("POST", "https://fhir.example.org/baseR4", BASE));
+		assertEquals(FhirOperation.CREATE, FhirOperation.classify("POST", BASE + "Subscription", BASE));
+		assertEquals(FhirOperation.UPDATE, FhirOperation.classify("PUT", BASE + "Patient/123", BASE));
+		assertEquals(FhirOperation.DELETE, FhirOperation.classify("DELETE", BASE + "Subscription/9", BASE));
+	}
+
+	@Test
+	void extractsResourceType() {
+		assertEquals("Observation", FhirOperation.resourceType(BASE + "Observation?subject=123", BASE));
+		assertEquals("Patient", FhirOperation.resourceType(BASE + "Patient/123", BASE));
+		assertNull(FhirOperation.resourceType("https://fhir.example.org/baseR4", BASE));
+		assertNull(FhirOperation.resourceType(BASE + "metadata", BASE));
+	}
+}
@@ -0,0 +1,80 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.mock.http.MockHttpInputMessage;
+import org.springframework.mock.http.MockHttpOutputMessage;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FhirResourceHttpMessageConverterTests {
+
+	private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+	private final FhirResourceHttpMessageConverter converter =
+			new FhirResourceHttpMessageConverter(new FhirJsonEncoder(FHIR_CONTEXT, new SimpleMeterRegistry()));
+
+	@AfterEach
+	void resetRequestContext() {
+		RequestContextHolder.resetRequestAttributes();
+	}
+
+	@Test
+	void writesCompactJsonByDefault() throws Exception {
+		MockHttpOutputMessage output = new MockHttpOutputMessage();
+
+		converter.write(patient(), FhirResourceHttpMessageConverter.FHIR_JSON, output);
+
+		String body = output.getBodyAsString(StandardCharsets.UTF_8);
+		assertTrue(body.startsWith("{\"resourceType\":\"Patient\""));
+		assertFalse(body.contains("\n"));
+	}
+
+	@Test
+	void writesPrettyJsonWhenRequested() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setParameter("_pretty", "true");
+		RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+		MockHttpOutputMessage output = new MockHttpOutputMessage();
+
+		converter.write(patient(), MediaType.APPLICATION_JSON, output);
+
+		assertTrue(output.getBodyAsString(StandardCharsets.UTF_8).contains("\n"));
+	}
+
+	@Test
+	void readsResourceOfRequestedType() throws Exception {
+		String json = FHIR_CONTEXT.newJsonParser().encodeResourceToString(patient());
+
+		Patient read = (Patient) converter.read(Patient.class,
+				new MockHttpInputMessage(json.getBytes(StandardCharsets.UTF_8)));
+
+		assertEquals("Doe", read.getNameFirstRep().getFamily());
+	}
+
+	@Test
+	void rejectsInvalidJson() {
+		assertThrows(HttpMessageNotReadableException.class, () -> converter.read(Patient.class,
+				new MockHttpInputMessage("{\"resourceType\":".getBytes(StandardCharsets.UTF_8))));
+	}
+
+	private static Patient patient() {
+		Patient patient = new Patient();
+		patient.setId("123");
+		patient.addName().setFamily("Doe").addGiven("John");
+		return patient;
+	}
+}
@@ -0,0 +1,211 @@
+package com.cie.hapi_service;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop load test of the service against {@link FakeFhirServer}.
+ *
+ * <p>Starts the fake upstream and the application on free ports, then runs
+ * {@code load.concurrency} workers that each send one request at a time, picking
+ * an endpoint and a patient at random. After a warm-up it reports throughput,
+ * latency percentiles and error counts per endpoint, plus the number of requests
+ * that reached the upstream.
+ *
+ * <p>Run with {@code ./mvnw -Pload-test verify -DskipTests -Dload.args="..."}.
+ * Settings are system properties, given as {@code -Dkey=value} inside
+ * {@code load.args}:
+ * <ul>
+ *   <li>{@code load.concurrency} (16), {@code load.duration} (30s), {@code load.warmup} (10s)</li>
+ *   <li>{@code load.patients} (100): number of distinct patient ids</li>
+ *   <li>{@code load.endpoints}: comma-separated paths, {@code {id}} is replaced by a patient id</li>
+ *   <li>{@code fake.latency} (20ms), {@code fake.jitter} (10ms), {@code fake.error-rate} (0),
+ *       {@code fake.page-size} (20), {@code fake.pages} (1)</li>
+ * </ul>
+ * Other arguments are passed to the application, e.g.
+ * {@code --fhir.cache.patient.enabled=false} to measure without the cache.
+ */
+public class LoadTestHarness {
+
+	private static final String DEFAULT_ENDPOINTS = String.join(",",
+			"/api/patients/{id}",
+			"/api/patients/{id}/everything",
+			"/api/observations/patient/{id}",
+			"/api/observations/patient/{id}/stream",
+			"/api/diagnosticreports/patient/{id}",
+			"/api/documentreferences/patient/{id}");
+
+	public static void main(String[] args) throws Exception {
+		List<String> appArgs = new ArrayList<>();
+		for (String arg : args) {
+			// -Dkey=value after the main class, as the load-test profile passes them
+			if (arg.startsWith("-D") && arg.contains("=")) {
+				System.setProperty(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+			} else {
+				appArgs.add(arg);
+			}
+		}
+
+		int concurrency = Integer.getInteger("load.concurrency", 16);
+		Duration duration = duration("load.duration", "30s");
+		Duration warmup = duration("load.warmup", "10s");
+		int patients = Integer.getInteger("load.patients", 100);
+		List<String> endpoints = Arrays.asList(System.getProperty("load.endpoints", DEFAULT_ENDPOINTS).split(","));
+
+		try (FakeFhirServer upstream = new FakeFhirServer()
+				.withLatency(duration("fake.latency", "20ms").toMillis(), duration("fake.jitter", "10ms").toMillis())
+				.withErrorRate(Double.parseDouble(System.getProperty("fake.error-rate", "0")))
+				.withResults(Integer.getInteger("fake.page-size", 20), Integer.getInteger("fake.pages", 1))
+				.start()) {
+
+			appArgs.addAll(0, List.of(
+					"--server.port=0",
+					"--fhir.server.base-url=" + upstream.getBaseUrl()));
+
+			try (ConfigurableApplicationContext app = SpringApplication.run(HapiServiceApplication.class, appArgs.toArray(String[]::new))) {
+				String baseUrl = "http://localhost:" + app.getEnvironment().getProperty("local.server.port");
+				ExecutorService clientExecutor = Executors.newFixedThreadPool(Math.max(4, concurrency / 4));
+				try {
+					HttpClient client = HttpClient.newBuilder()
+							.version(HttpClient.Version.HTTP_1_1)
+							.executor(clientExecutor)
+							.build();
+
+					System.out.printf("Warming up for %s with %d workers against %s%n", warmup, concurrency, upstream.getBaseUrl());
+					run(client, baseUrl, endpoints, patients, concurrency, warmup);
+
+					upstream.resetRequestCounts();
+					System.out.printf("Measuring for %s%n", duration);
+					Map<String, Stats> results = run(client, baseUrl, endpoints, patients, concurrency, duration);
+
+					report(results, duration, upstream.getRequestCounts());
+				} finally {
+					clientExecutor.shutdownNow();
+				}
+			}
+		}
+	}
+
+	private static Duration duration(String property, String defaultValue) {
+		return DurationStyle.detectAndParse(System.getProperty(property, defaultValue));
+	}
+
+	private static Map<String, Stats> run(HttpClient client, String baseUrl, List<String> endpoints, int patients,
+			int concurrency, Duration duration) throws InterruptedException {
+		Map<String, Stats> results = new LinkedHashMap<>();
+		endpoints.forEach(endpoint -> results.put(endpoint, new Stats()));
+		long deadline = System.nanoTime() + duration.toNanos();
+
+		ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			workers.execute(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				while (System.nanoTime() < deadline) {
+					String endpoint = endpoints.get(random.nextInt(endpoints.size()));
+					String path = endpoint.replace("{id}", Integer.toString(1 + random.nextInt(patients)));
+					HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+							.timeout(Duration.ofSeconds(60))
+							.GET()
+							.build();
+					long start = System.nanoTime();
+					try {
+						HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+						results.get(endpoint).record(System.nanoTime() - start, response.statusCode() < 400);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					} catch (Exception e) {
+						results.get(endpoint).record(System.nanoTime() - start, false);
+					}
+				}
+			});
+		}
+		workers.shutdown();
+		workers.awaitTermination(duration.toMillis() + 120_000, TimeUnit.MILLISECONDS);
+		return results;
+	}
+
+	private static void report(Map<String, Stats> results, Duration duration, Map<String, Long> upstreamCounts) {
+		double seconds = duration.toMillis() / 1000.0;
+		Stats total = new Stats();
+		System.out.println();
+		System.out.printf("%-45s %10s %10s %10s %10s %10s %8s%n", "endpoint", "requests", "req/s", "p50 ms", "p99 ms", "p999 ms", "errors");
+		for (Map.Entry<String, Stats> entry : results.entrySet()) {
+			Stats stats = entry.getValue();
+			total.merge(stats);
+			print(entry.getKey(), stats, seconds);
+		}
+		print("total", total, seconds);
+
+		System.out.println();
+		long upstreamTotal = upstreamCounts.values().stream().mapToLong(Long::longValue).sum();
+		System.out.printf("Upstream requests: %d (%.2f per client request)%n", upstreamTotal,
+				total.count() == 0 ? 0.0 : (double) upstreamTotal / total.count());
+		upstreamCounts.forEach((interaction, count) -> System.out.printf("  %-30s %d%n", interaction, count));
+	}
+
+	private static void print(String name, Stats stats, double seconds) {
+		System.out.printf("%-45s %10d %10.1f %10.2f %10.2f %10.2f %8d%n", name, stats.count(), stats.count() / seconds,
+				stats.percentileMillis(0.50), stats.percentileMillis(0.99), stats.percentileMillis(0.999), stats.errors.get());
+	}
+
+	/**
+	 * Latencies of one endpoint. Samples are kept in full so the tail percentiles are exact.
+	 */
+	private static final class Stats {
+
+		private long[] samples = new long[1024];
+
+		private int size;
+
+		private final AtomicLong errors = new AtomicLong();
+
+		synchronized void record(long nanos, boolean success) {
+			if (size == samples.length) {
+				samples = Arrays.copyOf(samples, size * 2);
+			}
+			samples[size++] = nanos;
+			if (!success) {
+				errors.incrementAndGet();
+			}
+		}
+
+		synchronized void merge(Stats other) {
+			for (int i = 0; i < other.size; i++) {
+				record(other.samples[i], true);
+			}
+			errors.addAndGet(other.errors.get());
+		}
+
+		synchronized int count() {
+			return size;
+		}
+
+		synchronized double percentileMillis(double percentile) {
+			if (size == 0) {
+				return 0.0;
+			}
+			long[] sorted = Arrays.copyOf(samples, size);
+			Arrays.sort(sorted);
+			int index = (int) Math.min(size - 1, Math.ceil(percentile * size) - 1);
+			return sorted[Math.max(0, index)] / 1_000_000.0;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package com.cie.hapi_service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ObservationSeriesTests {
+
+	@Test
+	void sortsOutOfOrderPointsAndKeepsStatistics() {
+		ObservationSeries series = new ObservationSeries(2);
+		series.add(30, 3.0);
+		series.add(10, 1.0);
+		series.add(20, 5.0);
+		series.add(10, 2.0);
+
+		assertArrayEquals(new long[] {10, 10, 20, 30}, series.timestamps());
+		// Equal timestamps keep their insertion order
+		assertArrayEquals(new double[] {1.0, 2.0, 5.0, 3.0}, series.values());
+		assertEquals(1.0, series.min());
+		assertEquals(5.0, series.max());
+		assertEquals(2.75, series.mean());
+	}
+
+	@Test
+	void lttbKeepsEndpointsAndPeaks() {
+		ObservationSeries series = new ObservationSeries();
+		for (int i = 0; i < 100; i++) {
+			series.add(i * 1000L, i == 37 ? 500.0 : 60.0 + (i % 2));
+		}
+
+		ObservationSeries sampled = series.lttb(10);
+
+		long[] timestamps = sampled.timestamps();
+		double[] values = sampled.values();
+		assertEquals(10, sampled.size());
+		assertEquals(0L, timestamps[0]);
+		assertEquals(99_000L, timestamps[9]);
+		assertEquals(500.0, Arrays.stream(values).max().getAsDouble());
+		// Statistics still describe the full series
+		assertEquals(500.0, sampled.max());
+		assertEquals(series.mean(), sampled.mean());
+		assertEquals(100, sampled.count());
+		assertEquals(series.size(), series.lttb(200).size());
+	}
+
+	@Test
+	void bucketsAverageEqualTimeIntervals() {
+		ObservationSeries series = new ObservationSeries();
+		series.add(0, 1.0);
+		series.add(10, 3.0);
+		series.add(50, 10.0);
+		series.add(99, 20.0);
+
+		ObservationSeries sampled = series.buckets(2);
+
+		assertArrayEquals(new long[] {5, 75}, sampled.timestamps());
+		assertArrayEquals(new double[] {2.0, 15.0}, sampled.values());
+	}
+}
@@ -0,0 +1,168 @@
+package com.cie.hapi_service;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class PatientNameIndexTests {
+
+	private PatientNameIndex index;
+
+	@BeforeEach
+	void createIndex() {
+		index = new PatientNameIndex(true, 1000, 20, Duration.ofMinutes(1), "http://fhir.example.org/fhir");
+		ReflectionTestUtils.setField(index, "subscriptionManager", new SubscriptionManager());
+	}
+
+	@Test
+	void foldsCaseAndAccents() {
+		assertEquals(List.of("zoe", "o", "brien", "muller"), PatientNameIndex.words("  Zoë O'Brien-MÜLLER "));
+	}
+
+	@Test
+	void answersOnlyCoveredQueries() {
+		assertNull(index.search("jo", false));
+
+		index.recordSearch("Jo", searchset(false, patient("1", "Doe", "John"), patient("2", "Jones", "Mary"),
+				patient("3", "Müller", "Joanna")), Instant.now());
+
+		assertEquals(List.of("1", "2", "3"), ids(index.search("jo", false)));
+		assertEquals(List.of("1"), ids(index.search("john", false)));
+		assertEquals(List.of("3"), ids(index.search("joan mull", false)));
+		assertEquals(List.of(), ids(index.search("joh smith", false)));
+		// Nothing says every "Mary" was returned
+		assertNull(index.search("mary", false));
+	}
+
+	@Test
+	void pagedResultsDoNotCoverTheQuery() {
+		index.recordSearch("jo", searchset(true, patient("1", "Doe", "John")), Instant.now());
+
+		assertNull(index.search("jo", false));
+	}
+
+	@Test
+	void aResetWhileAddingDoesNotCoverTheQuery() {
+		index = new PatientNameIndex(true, 2, 20, Duration.ofMinutes(1), "http://fhir.example.org/fhir");
+		ReflectionTestUtils.setField(index, "subscriptionManager", new SubscriptionManager());
+
+		index.recordSearch("jo", searchset(false, patient("1", "Doe", "John"), patient("2", "Jones", "Mary"),
+				patient("3", "Müller", "Joanna")), Instant.now());
+
+		assertNull(index.search("jo", false));
+	}
+
+	@Test
+	void matchesTyposWhenFuzzy() {
+		index.recordSearch("jo", searchset(false, patient("1", "Doe", "John"), patient("2", "Johnson", "Anna")), Instant.now());
+
+		assertNull(index.search("jhon", false));
+		assertEquals(List.of("1", "2"), ids(index.search("jhon", true)));
+		assertEquals(List.of("2"), ids(index.search("jonhson", true)));
+		assertNull(index.search("xyz", true));
+	}
+
+	@Test
+	void appliesUpdatesAndRemovals() {
+		index.recordSearch("jo", searchset(false, patient("1", "Doe", "John")), Instant.now());
+
+		index.update(patient("4", "Jolie", "Angelina"));
+		index.update(patient("1", "Smith", "Jack"));
+		assertEquals(List.of("4"), ids(index.search("jo", false)));
+
+		index.remove("4");
+		assertEquals(List.of(), ids(index.search("jo", false)));
+	}
+
+	@Test
+	void lateSearchResultsDoNotUndoNewerChanges() {
+		index.recordSearch("jo", searchset(false, patient("1", "Doe", "John", "1"), patient("4", "Jolie", "Angelina", "1")), Instant.now());
+		index.update(patient("1", "Smith", "Jack", "2"));
+		index.remove("4");
+
+		// Answered before the update and the removal, recorded after them
+		index.recordSearch("jo", searchset(false, patient("1", "Doe", "John", "1"), patient("4", "Jolie", "Angelina", "1")), Instant.now());
+
+		assertEquals(List.of(), ids(index.search("jo", false)));
+		index.update(patient("1", "Jones", "Jack", "3"));
+		assertEquals(List.of("1"), ids(index.search("jo", false)));
+	}
+
+	@Test
+	void olderHistoryVersionsDoNotReplaceNewerOnes() {
+		index.recordSearch("jo", searchset(false, patient("1", "Doe", "John", "3")), Instant.now());
+
+		Bundle history = new Bundle();
+		history.setType(Bundle.BundleType.HISTORY);
+		history.addEntry().setResource(patient("1", "Smith", "Jack", "2")).getRequest().setMethod(Bundle.HTTPVerb.PUT);
+		assertEquals(0, index.applyHistory(history, new HashSet<>()));
+
+		assertEquals(List.of("1"), ids(index.search("jo", false)));
+	}
+
+	@Test
+	void appliesTheNewestHistoryEntryOfEachPatient() {
+		index.recordSearch("jo", searchset(false, patient("1", "Doe", "John"), patient("2", "Jones", "Mary")), Instant.now());
+
+		Bundle history = new Bundle();
+		history.setType(Bundle.BundleType.HISTORY);
+		history.addEntry().getRequest().setMethod(Bundle.HTTPVerb.DELETE).setUrl("Patient/1/_history/2");
+		history.addEntry().setResource(patient("1", "Doe", "John")).getRequest().setMethod(Bundle.HTTPVerb.PUT);
+		history.addEntry().setResource(patient("5", "Jordan", "Lee")).getRequest().setMethod(Bundle.HTTPVerb.POST);
+		assertEquals(2, index.applyHistory(history, new HashSet<>()));
+
+		assertEquals(List.of("2", "5"), ids(index.search("jo", false)));
+	}
+
+	@Test
+	void measuresDistanceToAPrefix() {
+		assertEquals(0, PatientNameIndex.prefixDistance("joh", "johnson", 2));
+		assertEquals(1, PatientNameIndex.prefixDistance("jhon", "john", 1));
+		assertEquals(1, PatientNameIndex.prefixDistance("jonh", "johnson", 1));
+		assertEquals(1, PatientNameIndex.prefixDistance("smiht", "smith", 1));
+		assertEquals(2, PatientNameIndex.prefixDistance("xmiht", "smith", 1));
+	}
+
+	private static Patient patient(String id, String family, String given) {
+		Patient patient = new Patient();
+		patient.setId(id);
+		patient.addName().setFamily(family).addGiven(given);
+		return patient;
+	}
+
+	private static Patient patient(String id, String family, String given, String versionId) {
+		Patient patient = patient(id, family, given);
+		patient.getMeta().setVersionId(versionId);
+		return patient;
+	}
+
+	private static Bundle searchset(boolean paged, Patient... patients) {
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.SEARCHSET);
+		for (Patient patient : patients) {
+			bundle.addEntry().setResource(patient);
+		}
+		if (paged) {
+			bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://fhir.example.org/fhir?_getpages=1");
+		}
+		return bundle;
+	}
+
+	private static List<String> ids(Bundle bundle) {
+		assertNotNull(bundle);
+		return bundle.getEntry().stream()
+				.map(entry -> entry.getResource().getIdElement().getIdPart())
+				.toList();
+	}
+}
@@ -0,0 +1,91 @@
+package com.cie.hapi_service;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestDeadlineTests {
+
+	@Test
+	void cancelAbortsInFlightUpstreamRequests() throws Exception {
+		try (FakeFhirServer upstream = new FakeFhirServer().withLatency(10_000, 0).start();
+			 CloseableHttpClient client = HttpClients.createDefault()) {
+			RequestDeadline deadline = new RequestDeadline(Duration.ofSeconds(30));
+			HttpGet request = new HttpGet(upstream.getBaseUrl() + "Patient/slow");
+			deadline.register(request);
+
+			CompletableFuture<Void> call = CompletableFuture.runAsync(() -> {
+				try {
+					client.execute(request).close();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			TimeUnit.MILLISECONDS.sleep(200);
+			long start = System.nanoTime();
+			deadline.cancel(RequestDeadline.CLIENT_GONE);
+
+			ExecutionException failure = assertThrows(ExecutionException.class, () -> call.get(5, TimeUnit.SECONDS));
+			assertInstanceOf(IOException.class, failure.getCause().getCause());
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+			assertTrue(deadline.isAbandoned());
+			assertThrows(RequestCancelledException.class, () -> deadline.register(new HttpGet(upstream.getBaseUrl() + "Patient/1")));
+		}
+	}
+
+	@Test
+	void propagatesTheDeadlineToTasks() {
+		RequestDeadline deadline = new RequestDeadline(Duration.ofSeconds(30));
+		AtomicReference<RequestDeadline> seen = new AtomicReference<>();
+
+		Runnable task;
+		try (RequestDeadline.Scope ignored = deadline.bind()) {
+			task = RequestDeadline.propagate(() -> seen.set(RequestDeadline.current()));
+		}
+		assertNull(RequestDeadline.current());
+
+		task.run();
+		assertSame(deadline, seen.get());
+		assertNull(RequestDeadline.current());
+	}
+
+	@Test
+	void childDeadlinesEndNoLaterThanTheirParentAndAreCancelledWithIt() {
+		RequestDeadline parent = new RequestDeadline(Duration.ofMillis(500));
+		RequestDeadline shorter = parent.child(Duration.ofMillis(100));
+		RequestDeadline longer = parent.child(Duration.ofSeconds(30));
+
+		assertTrue(shorter.remainingMillis() <= 100);
+		assertTrue(longer.remainingMillis() <= 500);
+
+		parent.cancel(RequestDeadline.CLIENT_GONE);
+		assertTrue(shorter.isAbandoned());
+		assertTrue(longer.isAbandoned());
+		assertTrue(parent.child(Duration.ofSeconds(1)).isCancelled());
+	}
+
+	@Test
+	void clampsTheSocketTimeoutToTheTimeLeft() {
+		RequestDeadline deadline = new RequestDeadline(Duration.ofMillis(500));
+		RequestConfig config = RequestConfig.custom()
+				.setSocketTimeout(60_000)
+				.build();
+
+		assertTrue(RequestDeadlineInterceptor.clamp(config, deadline).getSocketTimeout() <= 500);
+	}
+}
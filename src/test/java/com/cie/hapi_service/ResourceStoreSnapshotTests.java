@@ -0,0 +1,104 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResourceStoreSnapshotTests {
+
+	private static final Instant EXPORTED = Instant.parse("2024-05-01T12:00:00Z");
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void groupsLinesByPatientAcrossFiles() throws Exception {
+		Path first = Files.writeString(directory.resolve("Observation-0.ndjson"),
+				"{\"resourceType\":\"Observation\",\"id\":\"a\",\"subject\":{\"reference\":\"Patient/1\"}}\n"
+						+ "{\"resourceType\":\"Observation\",\"id\":\"b\",\"subject\":{\"reference\":\"Patient/2\"}}\r\n"
+						+ "\n"
+						+ "{\"resourceType\":\"Observation\",\"id\":\"orphan\"}\n");
+		// No final newline
+		Path second = Files.writeString(directory.resolve("Observation-1.ndjson"),
+				"{\"resourceType\":\"Observation\",\"id\":\"c\",\"subject\":{\"reference\":\"https://fhir.example.org/Patient/1/_history/3\"}}");
+		Path patients = Files.writeString(directory.resolve("Patient-0.ndjson"),
+				"{\"resourceType\":\"Patient\",\"meta\":{\"versionId\":\"1\"},\"id\":\"1\"}\n{\"resourceType\":\"Patient\",\"id\":\"3\"}\n");
+		Map<String, List<Path>> files = new LinkedHashMap<>();
+		files.put("Patient", List.of(patients));
+		files.put("Observation", List.of(first, second));
+
+		ResourceStoreSnapshot.build(directory.resolve("snapshot"), EXPORTED, files);
+		// Read back from disk, as after a restart
+		ResourceStoreSnapshot snapshot = ResourceStoreSnapshot.open(directory.resolve("snapshot"));
+
+		assertEquals(EXPORTED, snapshot.getTransactionTime());
+		StoredResources patientOne = snapshot.find("Observation", "1");
+		assertEquals(2, patientOne.getCount());
+		ByteArrayOutputStream ndjson = new ByteArrayOutputStream();
+		patientOne.writeNdjson(ndjson);
+		String lines = ndjson.toString(StandardCharsets.UTF_8);
+		assertTrue(lines.contains("\"id\":\"a\"") && lines.contains("\"id\":\"c\"") && lines.endsWith("}\n"));
+		assertFalse(lines.contains("\"id\":\"b\""));
+
+		assertEquals(1, snapshot.find("Observation", "2").getCount());
+		assertNull(snapshot.find("Observation", "3"));
+		assertTrue(snapshot.containsPatient("3"));
+		assertFalse(snapshot.containsPatient("2"));
+	}
+
+	@Test
+	void aSnapshotReopenedAfterARestartIsNotUsedUntilTheNextIngest() throws Exception {
+		Path file = Files.writeString(directory.resolve("Observation-0.ndjson"),
+				"{\"resourceType\":\"Observation\",\"id\":\"a\",\"subject\":{\"reference\":\"Patient/1\"}}\n");
+		ResourceStoreSnapshot.build(directory.resolve("snapshot-1"), Instant.now(), Map.of("Observation", List.of(file)));
+		Files.writeString(directory.resolve("CURRENT"), "snapshot-1");
+
+		ResourceStore store = new ResourceStore();
+		ReflectionTestUtils.setField(store, "meterRegistry", new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(store, "enabled", true);
+		ReflectionTestUtils.setField(store, "directory", directory);
+		ReflectionTestUtils.setField(store, "maxAge", Duration.ofHours(24));
+		ReflectionTestUtils.setField(store, "types", List.of("Observation"));
+		store.openCurrentSnapshot();
+
+		assertNotNull(store.stats().get("transactionTime"));
+		assertNull(store.find("Observation", "1"));
+	}
+
+	@Test
+	void writesStoredLinesAsSearchsetBundle() throws Exception {
+		Path file = Files.writeString(directory.resolve("Observation-0.ndjson"),
+				"{\"resourceType\":\"Observation\",\"id\":\"a\",\"subject\":{\"reference\":\"Patient/1\"}}\r\n"
+						+ "{\"resourceType\":\"Observation\",\"id\":\"b\",\"subject\":{\"reference\":\"Patient/1\"}}\n");
+		ResourceStoreSnapshot snapshot = ResourceStoreSnapshot.build(directory.resolve("snapshot"), EXPORTED,
+				Map.of("Observation", List.of(file)));
+
+		ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+		snapshot.find("Observation", "1").writeBundle(bundle);
+
+		Bundle parsed = FhirContext.forR4Cached().newJsonParser()
+				.parseResource(Bundle.class, bundle.toString(StandardCharsets.UTF_8));
+		assertEquals(2, parsed.getTotal());
+		assertEquals("b", parsed.getEntry().get(1).getResource().getIdElement().getIdPart());
+		assertEquals(EXPORTED, parsed.getMeta().getLastUpdated().toInstant());
+	}
+}
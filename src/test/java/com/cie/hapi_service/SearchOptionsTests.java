@@ -0,0 +1,58 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchOptionsTests {
+
+	@Test
+	void parsesAndCanonicalizesParameters() {
+		SearchOptions options = SearchOptions.of(" valueQuantity, code ,", "TRUE", 20, "-date,code");
+
+		assertEquals(Set.of("code", "valueQuantity"), options.elements());
+		assertEquals(SummaryEnum.TRUE, options.summary());
+		assertEquals(List.of("-date", "code"), options.sort());
+		assertTrue(options.isProjection());
+		assertEquals("&_elements=code%2CvalueQuantity&_summary=true&_count=20&_sort=-date%2Ccode", options.toQueryString());
+		// Element order does not split coalescing keys
+		assertEquals(options.key(), SearchOptions.of("code,valueQuantity", "true", 20, "-date,code").key());
+
+		assertSame(SearchOptions.NONE, SearchOptions.of(null, " ", null, ""));
+		assertEquals("", SearchOptions.NONE.key());
+		assertFalse(SearchOptions.of(null, "false", 50, "date").isProjection());
+	}
+
+	@Test
+	void rejectsMalformedParameters() {
+		assertThrows(IllegalArgumentException.class, () -> SearchOptions.of("code&x=1", null, null, null));
+		assertThrows(IllegalArgumentException.class, () -> SearchOptions.of(null, "maybe", null, null));
+		assertThrows(IllegalArgumentException.class, () -> SearchOptions.of(null, null, SearchOptions.MAX_COUNT + 1, null));
+		assertThrows(IllegalArgumentException.class, () -> SearchOptions.of(null, null, null, "date desc"));
+	}
+
+	@Test
+	void prunesBundleEntriesButNotTheBundle() {
+		IParser parser = FhirContext.forR4Cached().newJsonParser();
+		SearchOptions.of("code", null, null, null).configure(parser, true);
+
+		String json = parser.encodeResourceToString(BundleFixtures.searchset("Observation", 2));
+
+		assertTrue(json.contains("\"link\""));
+		assertTrue(json.contains("\"fullUrl\""));
+		assertTrue(json.contains("\"8867-4\""));
+		assertFalse(json.contains("valueQuantity"));
+		assertFalse(json.contains("\"category\""));
+	}
+}
@@ -0,0 +1,188 @@
+package com.cie.hapi_service;
+
+import org.springframework.boot.convert.DurationStyle;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long a new instance of the service takes to answer its first
+ * requests, as an autoscaled instance would experience it.
+ *
+ * <p>Starts {@link FakeFhirServer}, then launches the application in a new JVM
+ * {@code startup.runs} times. Each run reports, from process start:
+ * <ul>
+ *   <li>the time to the first successful {@code /api/patients/{id}} response,</li>
+ *   <li>of which the time until the port accepted connections, and</li>
+ *   <li>the latency of the first request to each of the three subject searches,
+ *       which is where lazy model scanning and parser setup show up.</li>
+ * </ul>
+ *
+ * <p>Run with {@code ./mvnw -Pstartup-benchmark verify -DskipTests -Dstartup.args="..."}.
+ * Settings are system properties, given as {@code -Dkey=value} inside
+ * {@code startup.args}:
+ * <ul>
+ *   <li>{@code startup.runs} (5), {@code startup.timeout} (120s)</li>
+ *   <li>{@code startup.jar}: run this executable jar instead of the test classpath,
+ *       e.g. the one extracted by the {@code appcds} profile</li>
+ *   <li>{@code startup.jvm-args}: space-separated JVM options for the application,
+ *       e.g. {@code -XX:SharedArchiveFile=target/appcds/application.jsa}</li>
+ * </ul>
+ * Other arguments are passed to the application, e.g.
+ * {@code --fhir.context.warm-up=false} to measure without the warm-up. The
+ * application's output goes to {@code target/startup-benchmark.log}.
+ */
+public class StartupBenchmark {
+
+	private static final String FIRST_REQUEST = "/api/patients/1";
+
+	private static final List<String> SEARCHES = List.of(
+			"/api/observations/patient/1",
+			"/api/diagnosticreports/patient/1",
+			"/api/documentreferences/patient/1");
+
+	public static void main(String[] args) throws Exception {
+		List<String> appArgs = new ArrayList<>();
+		for (String arg : args) {
+			// -Dkey=value after the main class, as the startup-benchmark profile passes them
+			if (arg.startsWith("-D") && arg.contains("=")) {
+				System.setProperty(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+			} else {
+				appArgs.add(arg);
+			}
+		}
+		int runs = Integer.getInteger("startup.runs", 5);
+		Duration timeout = DurationStyle.detectAndParse(System.getProperty("startup.timeout", "120s"));
+		String jvmArgs = System.getProperty("startup.jvm-args", "").trim();
+		String jar = System.getProperty("startup.jar", "").trim();
+		File log = Path.of("target", "startup-benchmark.log").toFile();
+
+		HttpClient client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(Duration.ofSeconds(1))
+				.build();
+
+		List<Long> ready = new ArrayList<>();
+		List<Long> listening = new ArrayList<>();
+		List<List<Long>> searches = new ArrayList<>();
+		SEARCHES.forEach(search -> searches.add(new ArrayList<>()));
+
+		try (FakeFhirServer upstream = new FakeFhirServer().start()) {
+			for (int run = 1; run <= runs; run++) {
+				int port = freePort();
+				List<String> command = new ArrayList<>();
+				command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+				if (!jvmArgs.isEmpty()) {
+					command.addAll(Arrays.asList(jvmArgs.split("\\s+")));
+				}
+				if (jar.isEmpty()) {
+					command.addAll(List.of("-cp", System.getProperty("java.class.path"), HapiServiceApplication.class.getName()));
+				} else {
+					command.addAll(List.of("-jar", jar));
+				}
+				command.add("--server.port=" + port);
+				command.add("--fhir.server.base-url=" + upstream.getBaseUrl());
+				command.addAll(appArgs);
+
+				String baseUrl = "http://localhost:" + port;
+				long start = System.nanoTime();
+				Process process = new ProcessBuilder(command)
+						.redirectErrorStream(true)
+						.redirectOutput(ProcessBuilder.Redirect.appendTo(log))
+						.start();
+				try {
+					long firstConnection = -1;
+					long deadline = start + timeout.toNanos();
+					while (true) {
+						if (!process.isAlive()) {
+							throw new IllegalStateException("Application exited with " + process.exitValue() + "; see " + log);
+						}
+						if (System.nanoTime() > deadline) {
+							throw new IllegalStateException("No successful response within " + timeout + "; see " + log);
+						}
+						try {
+							int status = get(client, baseUrl + FIRST_REQUEST);
+							if (firstConnection < 0) {
+								firstConnection = System.nanoTime();
+							}
+							if (status == 200) {
+								break;
+							}
+						} catch (ConnectException e) {
+							// Not listening yet
+						}
+						Thread.sleep(5);
+					}
+					long end = System.nanoTime();
+					ready.add(end - start);
+					listening.add(firstConnection - start);
+
+					StringBuilder line = new StringBuilder(String.format("Run %d: first response after %d ms (listening after %d ms)",
+							run, millis(end - start), millis(firstConnection - start)));
+					for (int i = 0; i < SEARCHES.size(); i++) {
+						long searchStart = System.nanoTime();
+						int status = get(client, baseUrl + SEARCHES.get(i));
+						long latency = System.nanoTime() - searchStart;
+						if (status != 200) {
+							throw new IllegalStateException(SEARCHES.get(i) + " returned " + status);
+						}
+						searches.get(i).add(latency);
+						line.append(String.format(", %s %d ms", SEARCHES.get(i), millis(latency)));
+					}
+					System.out.println(line);
+				} finally {
+					process.destroy();
+					if (!process.waitFor(30, TimeUnit.SECONDS)) {
+						process.destroyForcibly();
+					}
+				}
+			}
+		}
+
+		System.out.println();
+		System.out.printf("%-40s %8s %8s %8s%n", "ms over " + runs + " runs", "min", "median", "max");
+		print("time to first successful response", ready);
+		print("time until listening", listening);
+		for (int i = 0; i < SEARCHES.size(); i++) {
+			print("first " + SEARCHES.get(i), searches.get(i));
+		}
+	}
+
+	private static int get(HttpClient client, String url) throws IOException, InterruptedException {
+		HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+				.timeout(Duration.ofSeconds(30))
+				.GET()
+				.build();
+		return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static void print(String name, List<Long> nanos) {
+		List<Long> sorted = new ArrayList<>(nanos);
+		Collections.sort(sorted);
+		System.out.printf("%-40s %8d %8d %8d%n", name,
+				millis(sorted.get(0)), millis(sorted.get(sorted.size() / 2)), millis(sorted.get(sorted.size() - 1)));
+	}
+
+	private static long millis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+}
@@ -0,0 +1,162 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpstreamBulkheadTests {
+
+	private static final long MS = 1_000_000L;
+
+	private final AtomicLong now = new AtomicLong();
+
+	@Test
+	void limitGrowsWhileLatencyStaysLowAndShrinksWhenItRises() {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(4, 1, 10, 0.5, 2.0);
+
+		for (int i = 0; i < 10; i++) {
+			fillAndRelease(limit, 10 * MS);
+		}
+		assertEquals(10, limit.getLimit());
+
+		// One slow call is smoothed away
+		assertTrue(limit.tryAcquire());
+		limit.release(50 * MS, false);
+		assertEquals(10, limit.getLimit());
+
+		// Queueing upstream: latency stays well above twice the baseline
+		assertTrue(limit.tryAcquire());
+		limit.release(50 * MS, false);
+		assertEquals(5, limit.getLimit());
+
+		assertTrue(limit.tryAcquire());
+		limit.release(10 * MS, true);
+		assertEquals(2, limit.getLimit());
+	}
+
+	@Test
+	void limitHoldsUnderMixedLatenciesWithFastOutliers() {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10, 2, 10, 0.9, 2.0);
+		long[] latencies = {5 * MS, 6 * MS, 8 * MS, 12 * MS};
+
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(limit.tryAcquire());
+			// Now and then a call answers from the server's cache
+			limit.release(i % 50 == 0 ? MS : latencies[i % latencies.length], false);
+		}
+
+		assertEquals(10, limit.getLimit());
+		assertEquals(5 * MS, limit.getBaselineNanos());
+	}
+
+	@Test
+	void bodyDownloadDoesNotCountAsLatency() {
+		UpstreamBulkhead bulkhead = bulkhead(10);
+
+		for (int i = 0; i < 200; i++) {
+			boolean largeResult = i % 2 == 0;
+			bulkhead.execute("Observation", FhirOperation.SEARCH, () -> {
+				now.addAndGet(5 * MS);
+				UpstreamBulkhead.responseHeadersReceived();
+				if (largeResult) {
+					// Reading and parsing a big Bundle
+					now.addAndGet(200 * MS);
+				}
+				return "ok";
+			});
+		}
+
+		assertEquals(10, limit(bulkhead, "Observation:search"));
+	}
+
+	@Test
+	void rejectsCallsBeyondTheLimit() {
+		UpstreamBulkhead bulkhead = bulkhead(1);
+
+		UpstreamRejectedException rejected = bulkhead.execute("Observation", FhirOperation.SEARCH,
+				() -> assertThrows(UpstreamRejectedException.class,
+						() -> bulkhead.execute("Observation", FhirOperation.PAGE, () -> "nested")));
+
+		assertEquals("Observation:search", rejected.getCompartment());
+		assertEquals("1", rejected.getRetryAfterSeconds());
+		// Other compartments are unaffected
+		assertEquals("ok", bulkhead.execute("Patient", FhirOperation.READ, () -> "ok"));
+	}
+
+	@Test
+	void circuitOpensOnFailuresAndClosesAfterSuccessfulTrials() {
+		UpstreamBulkhead bulkhead = bulkhead(10);
+
+		for (int i = 0; i < 4; i++) {
+			assertThrows(FhirClientConnectionException.class, () -> bulkhead.execute("Patient", FhirOperation.READ, () -> {
+				throw new FhirClientConnectionException("timeout");
+			}));
+		}
+		UpstreamRejectedException rejected = assertThrows(UpstreamRejectedException.class,
+				() -> bulkhead.execute("Patient", FhirOperation.READ, () -> "ok"));
+		assertEquals("10", rejected.getRetryAfterSeconds());
+
+		now.addAndGet(Duration.ofSeconds(10).toNanos());
+		assertEquals("ok", bulkhead.execute("Patient", FhirOperation.READ, () -> "ok"));
+		assertEquals("ok", bulkhead.execute("Patient", FhirOperation.READ, () -> "ok"));
+		assertEquals("ok", bulkhead.execute("Patient", FhirOperation.READ, () -> "ok"));
+		assertEquals("ok", bulkhead.execute("Patient", FhirOperation.READ, () -> "ok"));
+	}
+
+	@Test
+	void notFoundIsNotAFailure() {
+		UpstreamBulkhead bulkhead = bulkhead(10);
+
+		for (int i = 0; i < 10; i++) {
+			assertThrows(ResourceNotFoundException.class, () -> bulkhead.execute("Patient", FhirOperation.READ, () -> {
+				throw new ResourceNotFoundException("Patient/1");
+			}));
+		}
+		assertEquals("ok", bulkhead.execute("Patient", FhirOperation.READ, () -> "ok"));
+	}
+
+	@Test
+	void halfOpenBreakerAdmitsOnlyTrialCalls() {
+		CircuitBreaker breaker = new CircuitBreaker(4, 2, 0.5, 100, 1, now::get);
+		breaker.onResult(true);
+		breaker.onResult(true);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		now.addAndGet(100);
+		assertTrue(breaker.tryAcquire());
+		assertFalse(breaker.tryAcquire());
+		breaker.onResult(true);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int limit(UpstreamBulkhead bulkhead, String compartment) {
+		Map<String, Map<String, Object>> compartments = (Map<String, Map<String, Object>>) bulkhead.stats().get("compartments");
+		return (int) compartments.get(compartment).get("limit");
+	}
+
+	private UpstreamBulkhead bulkhead(int maxLimit) {
+		return new UpstreamBulkhead(new SimpleMeterRegistry(), true, maxLimit, 1, maxLimit, 0.9, 2.0,
+				10, 4, 0.5, Duration.ofSeconds(10), 3, Duration.ofMillis(500), now::get);
+	}
+
+	private static void fillAndRelease(AdaptiveConcurrencyLimit limit, long latencyNanos) {
+		int acquired = 0;
+		while (limit.tryAcquire()) {
+			acquired++;
+		}
+		for (int i = 0; i < acquired; i++) {
+			limit.release(latencyNanos, false);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.cie.hapi_service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class UpstreamRequestCoalescerTests {
+
+	private final UpstreamRequestCoalescer coalescer = new UpstreamRequestCoalescer();
+
+	UpstreamRequestCoalescerTests() {
+		ReflectionTestUtils.setField(coalescer, "enabled", true);
+	}
+
+	@Test
+	void concurrentCallersWithSameKeyShareOneCall() throws Exception {
+		int callers = 8;
+		AtomicInteger calls = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(callers);
+		try {
+			List<Future<Object>> results = new ArrayList<>();
+			Object shared = new Object();
+			for (int i = 0; i < callers; i++) {
+				results.add(executor.submit(() -> coalescer.execute("Observation?subject=Patient/1", () -> {
+					calls.incrementAndGet();
+					await(release);
+					return shared;
+				})));
+			}
+			// Give every caller the chance to join the in-flight call before it completes
+			while ((long) coalescer.stats().get("coalesced") < callers - 1) {
+				Thread.sleep(5);
+			}
+			release.countDown();
+
+			for (Future<Object> result : results) {
+				assertSame(shared, result.get(5, TimeUnit.SECONDS));
+			}
+			assertEquals(1, calls.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void completedCallsAreNotCached() {
+		AtomicInteger calls = new AtomicInteger();
+
+		coalescer.execute("Patient/1", calls::incrementAndGet);
+		coalescer.execute("Patient/1", calls::incrementAndGet);
+
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	void leaderExceptionIsRethrown() {
+		IllegalStateException failure = new IllegalStateException("upstream down");
+
+		IllegalStateException thrown = assertThrows(IllegalStateException.class,
+				() -> coalescer.execute("Patient/1", () -> {
+					throw failure;
+				}));
+
+		assertSame(failure, thrown);
+		assertEquals(0, coalescer.stats().get("inFlight"));
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.cie.hapi_service;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpstreamRouterTests {
+
+	private final AtomicLong now = new AtomicLong();
+
+	@Test
+	void prefersTheFasterReplica() {
+		UpstreamEndpoint fast = endpoint("http://fast/fhir/");
+		UpstreamEndpoint slow = endpoint("http://slow/fhir/");
+		UpstreamRouter router = new UpstreamRouter(new UpstreamRouter.Group("default", List.of(fast, slow)), List.of(), 16, now::get);
+
+		Map<UpstreamEndpoint, Integer> calls = new HashMap<>();
+		for (int i = 0; i < 200; i++) {
+			router.read(null, endpoint -> {
+				now.addAndGet(Duration.ofMillis(endpoint == fast ? 5 : 50).toNanos());
+				return calls.merge(endpoint, 1, Integer::sum);
+			});
+		}
+
+		assertTrue(calls.get(fast) > 190, calls.toString());
+	}
+
+	@Test
+	void ejectsAFailingReplicaUntilItsEjectionTimeIsOver() {
+		UpstreamEndpoint failing = endpoint("http://failing/fhir/");
+		UpstreamEndpoint healthy = endpoint("http://healthy/fhir/");
+		UpstreamRouter router = new UpstreamRouter(new UpstreamRouter.Group("default", List.of(failing, healthy)), List.of(), 16, now::get);
+
+		for (int i = 0; i < 3; i++) {
+			assertThrows(FhirClientConnectionException.class, () -> router.atUrl("http://failing/fhir/Patient/1", endpoint -> {
+				throw new FhirClientConnectionException(new IOException("Connection refused"));
+			}));
+		}
+		assertFalse(failing.isAvailable(now.get()));
+		for (int i = 0; i < 20; i++) {
+			assertSame(healthy, router.read(null, endpoint -> endpoint));
+		}
+
+		now.addAndGet(Duration.ofSeconds(30).toNanos());
+		assertTrue(failing.isAvailable(now.get()));
+
+		// Failing again right away ejects it for twice as long
+		assertThrows(FhirClientConnectionException.class, () -> router.atUrl("http://failing/fhir/Patient/1", endpoint -> {
+			throw new FhirClientConnectionException(new IOException("Connection refused"));
+		}));
+		now.addAndGet(Duration.ofSeconds(59).toNanos());
+		assertFalse(failing.isAvailable(now.get()));
+		assertEquals(2, failing.ejections());
+	}
+
+	@Test
+	void routesPatientsToTheirShard() {
+		UpstreamEndpoint first = endpoint("http://shard-a/fhir/");
+		UpstreamEndpoint second = endpoint("http://shard-b/fhir/");
+		UpstreamRouter router = new UpstreamRouter(new UpstreamRouter.Group("default", List.of(first)),
+				List.of(new UpstreamRouter.Group("shard-0", List.of(first)), new UpstreamRouter.Group("shard-1", List.of(second))), 128, now::get);
+
+		Map<String, Integer> patientsByShard = new HashMap<>();
+		for (int i = 0; i < 100; i++) {
+			String patientId = Integer.toString(i);
+			String shard = router.shardOf(patientId);
+			UpstreamEndpoint used = router.read(patientId, endpoint -> endpoint);
+			assertSame(shard.equals("shard-0") ? first : second, used);
+			patientsByShard.merge(shard, 1, Integer::sum);
+		}
+
+		assertEquals(2, patientsByShard.size());
+		assertSame(first, router.read(null, endpoint -> endpoint));
+	}
+
+	private UpstreamEndpoint endpoint(String baseUrl) {
+		return new UpstreamEndpoint(baseUrl, null, Duration.ofSeconds(10).toNanos(), 3, Duration.ofSeconds(30).toNanos(), now.get());
+	}
+}